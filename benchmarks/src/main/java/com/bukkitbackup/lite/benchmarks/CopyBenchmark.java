@@ -0,0 +1,44 @@
+package com.bukkitbackup.lite.benchmarks;
+
+import com.bukkitbackup.lite.utils.FileUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copies a tree to the temp folder, as a backup does before zipping when
+ * files are not streamed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CopyBenchmark {
+
+    private File dest;
+
+    @Benchmark
+    public void copyDirectory(TreeState tree, TreeCounters counters) throws IOException {
+        dest = new File(tree.getWork(), "copy");
+        FileUtils.copyDirectory(tree.getSource(), dest, null, true);
+        counters.add(tree);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteCopy() throws IOException {
+        TreeGenerator.deleteTree(dest);
+    }
+}
@@ -0,0 +1,48 @@
+package com.bukkitbackup.lite.benchmarks;
+
+import com.bukkitbackup.lite.utils.FileUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Deletes a tree, as clearing the temp folder and old backups does.
+ *
+ * Each call deletes a fresh mirror of the tree made of hard links, so the
+ * time and allocation of setting it up stay small beside the delete. The
+ * bytes counter is the size the tree would have freed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DeleteBenchmark {
+
+    private File mirror;
+
+    @Setup(Level.Invocation)
+    public void linkTree(TreeState tree) throws IOException {
+        mirror = new File(tree.getWork(), "delete");
+        TreeGenerator.deleteTree(mirror);
+        TreeGenerator.linkTree(tree.getSource(), mirror);
+    }
+
+    @Benchmark
+    public void deleteDirectory(TreeState tree, TreeCounters counters) throws IOException {
+        FileUtils.deleteDirectory(mirror);
+        counters.add(tree);
+    }
+}
@@ -0,0 +1,36 @@
+package com.bukkitbackup.lite.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the files and bytes a benchmark has gone through, which JMH reports
+ * per second beside the operation rate, as "files" and "bytes". An operation
+ * is a whole tree, so these are what can be compared between tree shapes.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class TreeCounters {
+
+    public long files;
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        files = 0;
+        bytes = 0;
+    }
+
+    /**
+     * Counts a whole tree as done.
+     *
+     * @param tree The tree.
+     */
+    public void add(TreeState tree) {
+        files += tree.getFileCount();
+        bytes += tree.getTotalSize();
+    }
+}
@@ -0,0 +1,149 @@
+package com.bukkitbackup.lite.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * Builds and clears the file trees the benchmarks run over.
+ *
+ * Trees are made from a seed, so every run of a benchmark sees the same
+ * files. Files are written in 4 KB blocks that are partly random and partly
+ * zeros, like the padded sectors of a region file, so they compress about as
+ * well as world data does rather than not at all or down to nothing.
+ */
+public final class TreeGenerator {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int FILES_PER_FOLDER = 256;
+
+    private TreeGenerator() {
+    }
+
+    /**
+     * Gets the folder to build trees in, which can be set with the
+     * "benchmark.dir" system property. It should be on the disk being
+     * measured, rather than a RAM backed temp folder.
+     *
+     * @return The folder.
+     */
+    public static File getBaseFolder() {
+        return new File(System.getProperty("benchmark.dir", System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * Builds a tree, in folders of up to 256 files.
+     *
+     * @param root The folder to build it in, which should not exist yet.
+     * @param spec The shape of the tree.
+     * @param seed The seed for file sizes and contents.
+     * @return The total size of the files.
+     * @throws IOException If a file cannot be written.
+     */
+    public static long generate(File root, TreeSpec spec, long seed) throws IOException {
+        Random random = new Random(seed);
+        byte[] block = new byte[BLOCK_SIZE];
+        long range = spec.getMaxSize() - spec.getMinSize();
+        long total = 0;
+        for (int i = 0; i < spec.getFileCount(); i++) {
+            File folder = new File(root, "d" + (i / FILES_PER_FOLDER));
+            if (i % FILES_PER_FOLDER == 0 && !folder.mkdirs()) {
+                throw new IOException("Failed to create folder '" + folder + "'");
+            }
+            long size = spec.getMinSize() + (range > 0 ? (long) (random.nextDouble() * (range + 1)) : 0);
+            writeFile(new File(folder, "f" + i + ".dat"), size, random, block);
+            total += size;
+        }
+        return total;
+    }
+
+    private static void writeFile(File file, long size, Random random, byte[] block) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            long left = size;
+            while (left > 0) {
+                int length = (int) Math.min(BLOCK_SIZE, left);
+
+                // Somewhere between a quarter and all of each block holds data.
+                int filled = Math.min(length, BLOCK_SIZE / 4 + random.nextInt(BLOCK_SIZE - BLOCK_SIZE / 4 + 1));
+                random.nextBytes(block);
+                for (int j = filled; j < length; j++) {
+                    block[j] = 0;
+                }
+                out.write(block, 0, length);
+                left -= length;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Mirrors a tree with hard links, so it can be deleted without having to
+     * copy the data first. Files are copied where links are not supported.
+     *
+     * @param source The tree to mirror.
+     * @param dest Where to put the mirror.
+     * @throws IOException If the mirror cannot be made.
+     */
+    public static void linkTree(File source, File dest) throws IOException {
+        final Path sourcePath = source.toPath();
+        final Path destPath = dest.toPath();
+        Files.walkFileTree(sourcePath, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(destPath.resolve(sourcePath.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path link = destPath.resolve(sourcePath.relativize(file));
+                try {
+                    Files.createLink(link, file);
+                } catch (UnsupportedOperationException uoe) {
+                    Files.copy(file, link, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Deletes a tree, if it is there. This does not use FileUtils, so that
+     * clearing up after a benchmark does not depend on the code under test.
+     *
+     * @param root The tree to delete.
+     * @throws IOException If it cannot be deleted.
+     */
+    public static void deleteTree(File root) throws IOException {
+        if (!root.exists()) {
+            return;
+        }
+        Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ioe) throws IOException {
+                if (ioe != null) {
+                    throw ioe;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,90 @@
+package com.bukkitbackup.lite.benchmarks;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The shape of a generated file tree: how many files, and the range their
+ * sizes are spread over.
+ *
+ * It is written as "count x min-max", such as "4000x1k-16k" for a folder of
+ * small NBT files, or "24x2m-8m" for a few region files. Sizes take a k, m or
+ * g suffix, and a single size such as "100x64k" makes every file the same.
+ */
+public class TreeSpec {
+
+    private static final Pattern SPEC_PATTERN = Pattern.compile("^([0-9]+)x([0-9]+[kmg]?)(?:-([0-9]+[kmg]?))?$");
+
+    private final int fileCount;
+    private final long minSize;
+    private final long maxSize;
+
+    public TreeSpec(int fileCount, long minSize, long maxSize) {
+        if (fileCount < 0 || minSize < 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("Bad tree shape: " + fileCount + " files of " + minSize + "-" + maxSize + " bytes");
+        }
+        this.fileCount = fileCount;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Reads a spec such as "4000x1k-16k".
+     *
+     * @param spec The spec.
+     * @return The tree shape.
+     * @throws IllegalArgumentException If the spec cannot be read.
+     */
+    public static TreeSpec parse(String spec) {
+        Matcher matcher = SPEC_PATTERN.matcher(spec.trim().toLowerCase(Locale.ENGLISH));
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Bad tree spec '" + spec + "', expected something like 4000x1k-16k");
+        }
+        long min = parseSize(matcher.group(2));
+        long max = matcher.group(3) != null ? parseSize(matcher.group(3)) : min;
+        return new TreeSpec(Integer.parseInt(matcher.group(1)), min, max);
+    }
+
+    /**
+     * Reads a size such as "16k" or "10g".
+     *
+     * @param size The size, with an optional k, m or g suffix.
+     * @return The size in bytes.
+     * @throws NumberFormatException If the size cannot be read.
+     */
+    public static long parseSize(String size) {
+        size = size.trim().toLowerCase(Locale.ENGLISH);
+        long multiplier = 1;
+        switch (size.charAt(size.length() - 1)) {
+            case 'g':
+                multiplier *= 1024;
+            case 'm':
+                multiplier *= 1024;
+            case 'k':
+                multiplier *= 1024;
+                size = size.substring(0, size.length() - 1);
+                break;
+            default:
+                break;
+        }
+        return Long.parseLong(size) * multiplier;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public long getMinSize() {
+        return minSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public String toString() {
+        return fileCount + "x" + minSize + "-" + maxSize;
+    }
+}
@@ -0,0 +1,82 @@
+package com.bukkitbackup.lite.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A generated tree for a benchmark to run over, and a work folder beside it
+ * for the output. Both are built once for each trial, and deleted after it.
+ *
+ * The shape of the tree is set with the "tree" parameter, such as
+ * "-p tree=20000x512-4k" for many player and NBT files, or "-p tree=8x8m-16m"
+ * for a few large region files.
+ */
+@State(Scope.Benchmark)
+public class TreeState {
+
+    private static final long SEED = 0x4261636b75704cL;
+
+    @Param({"4000x1k-16k", "24x2m-8m"})
+    public String tree;
+
+    private File folder;
+    private File source;
+    private File work;
+    private TreeSpec spec;
+    private long totalSize;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        spec = TreeSpec.parse(tree);
+        File base = TreeGenerator.getBaseFolder();
+        if (!base.isDirectory() && !base.mkdirs()) {
+            throw new IOException("Failed to create folder '" + base + "'");
+        }
+        folder = Files.createTempDirectory(base.toPath(), "backuplite-bench").toFile();
+        source = new File(folder, "source");
+        work = new File(folder, "work");
+        totalSize = TreeGenerator.generate(source, spec, SEED);
+        if (!work.mkdir()) {
+            throw new IOException("Failed to create folder '" + work + "'");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        TreeGenerator.deleteTree(folder);
+    }
+
+    /**
+     * Gets the generated tree, which benchmarks must not change.
+     *
+     * @return The root of the tree.
+     */
+    public File getSource() {
+        return source;
+    }
+
+    /**
+     * Gets a folder for output, which benchmarks should clear up after each
+     * call.
+     *
+     * @return The folder.
+     */
+    public File getWork() {
+        return work;
+    }
+
+    public int getFileCount() {
+        return spec.getFileCount();
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+}
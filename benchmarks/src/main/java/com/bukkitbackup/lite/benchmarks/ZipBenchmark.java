@@ -0,0 +1,57 @@
+package com.bukkitbackup.lite.benchmarks;
+
+import com.bukkitbackup.lite.utils.FileUtils;
+import com.bukkitbackup.lite.utils.ZipArchiveWriter;
+import com.bukkitbackup.lite.utils.ZipPipeline;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Zips a tree into one archive, as the backup's final step does, on one
+ * compression thread or several.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ZipBenchmark {
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"64"})
+    public int bufferMB;
+
+    private File zipFile;
+
+    @Benchmark
+    public List<ZipArchiveWriter.Entry> zipDir(TreeState tree, TreeCounters counters) throws IOException {
+        zipFile = new File(tree.getWork(), "backup.zip");
+        long budget = bufferMB > 0 ? bufferMB * FileUtils.ONE_MB : ZipPipeline.DEFAULT_BUDGET;
+        List<ZipArchiveWriter.Entry> entries = FileUtils.zipDir(tree.getSource().getPath(), zipFile.getPath(), threads, budget);
+        counters.add(tree);
+        return entries;
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteZip() throws IOException {
+        Files.deleteIfExists(zipFile.toPath());
+    }
+}
@@ -0,0 +1,146 @@
+package com.bukkitbackup.lite.benchmarks.headless;
+
+import com.bukkitbackup.lite.benchmarks.TreeGenerator;
+import com.bukkitbackup.lite.benchmarks.TreeSpec;
+import com.bukkitbackup.lite.benchmarks.world.ServerGenerator;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times whole backups of generated servers, from the scheduled task firing to
+ * the backup being stored, at a few world sizes.
+ *
+ * Each server folder is built once, from a fixed seed, and kept for later
+ * runs. Every run starts with no backups, in a fresh JVM started in the
+ * server folder, and reports the wall time, the peak heap, and the bytes
+ * read, written and kept. Options:
+ * <pre>
+ *   --dir folder        where to build the servers (benchmark.dir, or the temp folder)
+ *   --sizes 1g,10g,50g  the world sizes
+ *   --runs 3            runs at each size
+ *   --seed 1            the seed to build from
+ *   --jvm "-Xmx1g"      options for the JVM each backup runs in
+ *   --verbose           show the plugin's log
+ *   key=value           config.yml settings for the backup, such as streambackup=true
+ * </pre>
+ * Run it from the benchmarks jar:
+ * <pre>
+ *   java -cp target/benchmarks.jar com.bukkitbackup.lite.benchmarks.headless.EndToEndBenchmark --sizes 1g
+ * </pre>
+ */
+public final class EndToEndBenchmark {
+
+    private EndToEndBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File folder = TreeGenerator.getBaseFolder();
+        List<String> sizes = Arrays.asList("1g", "10g", "50g");
+        int runs = 3;
+        long seed = 1;
+        String jvmOptions = "-Xmx1g";
+        boolean verbose = false;
+        List<String> settings = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--dir")) {
+                folder = new File(args[++i]);
+            } else if (args[i].equals("--sizes")) {
+                sizes = Arrays.asList(args[++i].split(","));
+            } else if (args[i].equals("--runs")) {
+                runs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--seed")) {
+                seed = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--jvm")) {
+                jvmOptions = args[++i];
+            } else if (args[i].equals("--verbose")) {
+                verbose = true;
+            } else if (args[i].contains("=")) {
+                settings.add(args[i]);
+            } else {
+                throw new IllegalArgumentException("Unknown option '" + args[i] + "'");
+            }
+        }
+
+        System.out.println(String.format("%-6s %4s %10s %9s %10s %10s %10s %10s %10s",
+                "size", "run", "wall s", "MB/s", "cleanup s", "heap MB", "read MB", "write MB", "kept MB"));
+        for (String size : sizes) {
+            long worldBytes = TreeSpec.parseSize(size);
+            File root = new File(folder, "backuplite-server-" + size.trim() + "-" + seed);
+            long generateStart = System.currentTimeMillis();
+            if (new ServerGenerator(worldBytes, seed).generate(root)) {
+                System.out.println("Built " + root + " in " + (System.currentTimeMillis() - generateStart) / 1000 + "s.");
+            }
+            for (int run = 1; run <= runs; run++) {
+                TreeGenerator.deleteTree(new File(root, "backups"));
+                TreeGenerator.deleteTree(new File(root, "plugins/BackupLite"));
+                Map<String, String> result = runBackup(root, jvmOptions, settings, verbose);
+                long wallMillis = Long.parseLong(result.get("wallMillis"));
+                System.out.println(String.format("%-6s %4d %10.1f %9.1f %10.1f %10.1f %10.1f %10.1f %10.1f%s",
+                        size, run,
+                        wallMillis / 1000.0,
+                        megabytes(worldBytes) / Math.max(1, wallMillis) * 1000,
+                        Long.parseLong(result.get("cleanupMillis")) / 1000.0,
+                        megabytes(Long.parseLong(result.get("peakHeapBytes"))),
+                        megabytes(Long.parseLong(result.get("bytesRead"))),
+                        megabytes(Long.parseLong(result.get("bytesWritten"))),
+                        megabytes(Long.parseLong(result.get("backupBytes"))),
+                        "FINISHED".equals(result.get("state")) ? "" : "  " + result.get("state")));
+            }
+        }
+    }
+
+    /**
+     * Runs a backup in its own JVM, in the server folder.
+     *
+     * @return The values from its results line.
+     */
+    private static Map<String, String> runBackup(File root, String jvmOptions, List<String> settings, boolean verbose) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        for (String option : jvmOptions.trim().split("\\s+")) {
+            if (!option.isEmpty()) {
+                command.add(option);
+            }
+        }
+        command.add("-cp");
+        command.add(new File(System.getProperty("java.class.path")).getAbsolutePath());
+        command.add(HeadlessBackup.class.getName());
+        command.addAll(settings);
+
+        Process process = new ProcessBuilder(command).directory(root).redirectErrorStream(true).start();
+        Map<String, String> result = null;
+        BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(HeadlessBackup.RESULT_PREFIX)) {
+                    result = new HashMap<String, String>();
+                    for (String pair : line.substring(HeadlessBackup.RESULT_PREFIX.length()).split(" ")) {
+                        int split = pair.indexOf('=');
+                        result.put(pair.substring(0, split), pair.substring(split + 1));
+                    }
+                } else if (verbose) {
+                    System.out.println("  " + line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        int exitCode = process.waitFor();
+        if (result == null) {
+            throw new IOException("The backup exited with " + exitCode + " and no results, run with --verbose to see why.");
+        }
+        return result;
+    }
+
+    private static double megabytes(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+}
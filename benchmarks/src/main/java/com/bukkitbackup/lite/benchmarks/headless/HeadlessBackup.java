@@ -0,0 +1,224 @@
+package com.bukkitbackup.lite.benchmarks.headless;
+
+import com.bukkitbackup.lite.config.Settings;
+import com.bukkitbackup.lite.threading.BackupJob;
+import com.bukkitbackup.lite.threading.BackupJobManager;
+import com.bukkitbackup.lite.threading.DeletionService;
+import com.bukkitbackup.lite.threading.PrepareBackup;
+import com.bukkitbackup.lite.utils.FileStager;
+import com.bukkitbackup.lite.utils.FileUtils;
+import com.bukkitbackup.lite.utils.LogUtils;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs one scheduled backup of the server folder it is started in, on a
+ * {@link HeadlessServer}, then prints a line of results for
+ * {@link EndToEndBenchmark} to read.
+ *
+ * The plugin is set up the way BackupLite does on enable, with the default
+ * config.yml and any "key=value" arguments put over it. Backup paths are
+ * relative to the working folder, as they are on a real server, which is why
+ * this runs in a process of its own.
+ */
+public final class HeadlessBackup {
+
+    /**
+     * The start of the results line.
+     */
+    public static final String RESULT_PREFIX = "RESULT ";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long SAMPLE_MILLIS = 5;
+
+    private HeadlessBackup() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File root = new File(".");
+        Map<String, String> overrides = new LinkedHashMap<String, String>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got '" + arg + "'");
+            }
+            overrides.put(arg.substring(0, split).trim(), arg.substring(split + 1).trim());
+        }
+
+        // The backup runs whoever is online, and nothing should reload under it.
+        overrides.put("backupemptyserver", "true");
+        overrides.put("watchconfig", "false");
+
+        HeadlessServer headless = new HeadlessServer(root, findWorlds(root));
+        LogUtils.initLogUtils(headless.getPlugin());
+        File dataFolder = headless.getPlugin().getDataFolder();
+        if (!dataFolder.isDirectory() && !dataFolder.mkdirs()) {
+            throw new IOException("Failed to create folder '" + dataFolder + "'");
+        }
+        File configFile = new File(dataFolder, "config.yml");
+        writeConfig(configFile, overrides);
+
+        Settings settings = new Settings(configFile);
+        BackupJobManager jobManager = new BackupJobManager(headless.getServer(), headless.getPlugin(), settings);
+        PrepareBackup prepareBackup = new PrepareBackup(headless.getServer(), settings, jobManager);
+        FileStager.Mode stagingMode = FileStager.detect(root, new File(settings.getStringProperty("backuppath"), "temp"), settings.getStringProperty("stagingmode").trim());
+        LogUtils.sendLog("Backup staging mode: " + stagingMode.name().toLowerCase() + ".");
+
+        HeapSampler heapSampler = new HeapSampler();
+        heapSampler.start();
+        long startTime = System.nanoTime();
+
+        // Run it as the backup schedule would.
+        headless.getServer().getScheduler().scheduleAsyncDelayedTask(headless.getPlugin(), prepareBackup);
+        BackupJob job;
+        while ((job = jobManager.getLastJob()) == null) {
+            Thread.sleep(SAMPLE_MILLIS);
+        }
+        long wallMillis = (System.nanoTime() - startTime) / 1000000;
+
+        // The temp folder is deleted in the background, after the job is done.
+        DeletionService.get().awaitIdle(0);
+        long cleanupMillis = (System.nanoTime() - startTime) / 1000000 - wallMillis;
+        DeletionService.shutdown();
+        heapSampler.interrupt();
+        heapSampler.join();
+        headless.shutdown();
+
+        System.out.println(RESULT_PREFIX
+                + "state=" + job.getState().name()
+                + " wallMillis=" + wallMillis
+                + " cleanupMillis=" + cleanupMillis
+                + " peakHeapBytes=" + heapSampler.getPeak()
+                + " bytesRead=" + FileUtils.PROGRESS.getBytesRead()
+                + " bytesWritten=" + FileUtils.PROGRESS.getBytesWritten()
+                + " backupBytes=" + getBackupSize(new File(settings.getStringProperty("backuppath")))
+                + " files=" + FileUtils.PROGRESS.getFilesDone()
+                + " commands=" + headless.getCommandCount());
+        System.exit(job.getState() == BackupJob.State.FINISHED ? 0 : 1);
+    }
+
+    /**
+     * Finds the worlds in the server folder, which are the folders with a
+     * level.dat.
+     */
+    private static String[] findWorlds(File root) {
+        List<String> worlds = new ArrayList<String>();
+        File[] folders = root.listFiles();
+        if (folders != null) {
+            for (File folder : folders) {
+                if (new File(folder, "level.dat").isFile()) {
+                    worlds.add(folder.getName());
+                }
+            }
+        }
+        Collections.sort(worlds);
+        return worlds.toArray(new String[worlds.size()]);
+    }
+
+    /**
+     * Writes the default config.yml, with the given keys changed.
+     */
+    private static void writeConfig(File configFile, Map<String, String> overrides) throws IOException {
+        InputStream defaults = Settings.class.getResourceAsStream("/resources/config.yml");
+        if (defaults == null) {
+            throw new IOException("The default config.yml is missing from the plugin jar.");
+        }
+        Map<String, String> left = new LinkedHashMap<String, String>(overrides);
+        BufferedReader in = new BufferedReader(new InputStreamReader(defaults, UTF8));
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(configFile), UTF8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int split = line.indexOf(':');
+                if (!line.startsWith("#") && split > 0 && left.containsKey(line.substring(0, split).trim())) {
+                    String key = line.substring(0, split).trim();
+                    line = key + ": " + left.remove(key);
+                }
+                out.write(line);
+                out.newLine();
+            }
+            for (Map.Entry<String, String> entry : left.entrySet()) {
+                out.write(entry.getKey() + ": " + entry.getValue());
+                out.newLine();
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    /**
+     * Adds up the size of the backups folder, leaving out the temp folder.
+     */
+    private static long getBackupSize(File backupsFolder) throws IOException {
+        final Path temp = new File(backupsFolder, "temp").toPath();
+        final long[] size = new long[1];
+        if (!backupsFolder.isDirectory()) {
+            return 0;
+        }
+        Files.walkFileTree(backupsFolder.toPath(), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return dir.equals(temp) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                size[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return size[0];
+    }
+
+    /**
+     * Samples how much of the heap is in use, keeping the highest. Samples
+     * are a few milliseconds apart, so the peak is a little under the true
+     * one, by at most what was allocated in between.
+     */
+    private static class HeapSampler extends Thread {
+
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private volatile long peak;
+
+        HeapSampler() {
+            super("Heap sampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+                    Thread.sleep(SAMPLE_MILLIS);
+                }
+            } catch (InterruptedException ie) {
+                peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+            }
+        }
+
+        long getPeak() {
+            return peak;
+        }
+    }
+}
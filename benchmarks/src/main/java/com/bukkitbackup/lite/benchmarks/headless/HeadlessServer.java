@@ -0,0 +1,299 @@
+package com.bukkitbackup.lite.benchmarks.headless;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.scheduler.BukkitScheduler;
+
+/**
+ * Just enough of a server, in process, for BackupLite's backup path to run
+ * without Bukkit: the worlds, the plugin, and a scheduler.
+ *
+ * The server, plugin and scheduler are proxies that answer the calls the
+ * backup makes, and return nothing, zero or false for the rest, so they keep
+ * working as the Bukkit API grows. Sync tasks run one at a time on a "main
+ * thread" that ticks every 50ms, and async tasks run on a pool beside it.
+ * Commands such as save-all are only counted, as there is nothing to save.
+ */
+public class HeadlessServer {
+
+    private static final long TICK_MILLIS = 50;
+
+    private final File worldContainer;
+    private final List<World> worlds = new ArrayList<World>();
+    private final Logger logger = Logger.getLogger("Minecraft");
+    private final ScheduledExecutorService mainThread = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("Server thread"));
+    private final ScheduledExecutorService asyncPool = new ScheduledThreadPoolExecutor(8, new NamedThreadFactory("Craft Scheduler Thread"));
+    private final Map<Integer, Future<?>> tasks = new ConcurrentHashMap<Integer, Future<?>>();
+    private final AtomicInteger lastTaskId = new AtomicInteger();
+    private final AtomicInteger commands = new AtomicInteger();
+    private final Server server;
+    private final Plugin plugin;
+
+    /**
+     * Creates a server.
+     *
+     * @param worldContainer The folder the worlds are in.
+     * @param worldNames The worlds, which are folders in it.
+     */
+    public HeadlessServer(File worldContainer, String... worldNames) {
+        this.worldContainer = worldContainer;
+        server = proxy(Server.class, new ServerHandler());
+        plugin = proxy(Plugin.class, new PluginHandler());
+        for (final String worldName : worldNames) {
+            worlds.add(proxy(World.class, new Handler() {
+                @Override
+                Object handle(Method method, Object[] args) {
+                    if (method.getName().equals("getName")) {
+                        return worldName;
+                    } else if (method.getName().equals("getWorldFolder")) {
+                        return new File(HeadlessServer.this.worldContainer, worldName);
+                    }
+                    return UNHANDLED;
+                }
+            }));
+        }
+    }
+
+    public Server getServer() {
+        return server;
+    }
+
+    /**
+     * Gets the plugin, which looks like BackupLite to the rest of the server.
+     *
+     * @return The plugin.
+     */
+    public Plugin getPlugin() {
+        return plugin;
+    }
+
+    /**
+     * Gets how many console commands were sent, such as save-all.
+     *
+     * @return The count.
+     */
+    public int getCommandCount() {
+        return commands.get();
+    }
+
+    /**
+     * Stops the scheduler, waiting for running tasks to finish.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void shutdown() throws InterruptedException {
+        mainThread.shutdownNow();
+        asyncPool.shutdownNow();
+        mainThread.awaitTermination(10, TimeUnit.SECONDS);
+        asyncPool.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private class ServerHandler extends Handler {
+
+        private final PluginManager pluginManager = proxy(PluginManager.class, new Handler() {
+            @Override
+            Object handle(Method method, Object[] args) {
+                if (method.getName().equals("getPlugin")) {
+                    return "BackupLite".equals(args[0]) ? plugin : null;
+                }
+                return UNHANDLED;
+            }
+        });
+        private final BukkitScheduler scheduler = proxy(BukkitScheduler.class, new SchedulerHandler());
+
+        @Override
+        Object handle(Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getPluginManager")) {
+                return pluginManager;
+            } else if (name.equals("getScheduler")) {
+                return scheduler;
+            } else if (name.equals("getWorlds")) {
+                return Collections.unmodifiableList(worlds);
+            } else if (name.equals("getWorld") && args[0] instanceof String) {
+                for (World world : worlds) {
+                    if (world.getName().equals(args[0])) {
+                        return world;
+                    }
+                }
+                return null;
+            } else if (name.equals("getWorldContainer")) {
+                return worldContainer;
+            } else if (name.equals("getLogger")) {
+                return logger;
+            } else if (name.equals("getName")) {
+                return "HeadlessServer";
+            } else if (name.equals("broadcastMessage")) {
+                logger.info(String.valueOf(args[0]));
+                return 0;
+            } else if (name.equals("dispatchCommand")) {
+                commands.incrementAndGet();
+                return true;
+            }
+            return UNHANDLED;
+        }
+    }
+
+    private class PluginHandler extends Handler {
+
+        private final PluginDescriptionFile description = new PluginDescriptionFile("BackupLite", "headless", "com.bukkitbackup.lite.BackupLite");
+
+        @Override
+        Object handle(Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getServer")) {
+                return server;
+            } else if (name.equals("getDescription")) {
+                return description;
+            } else if (name.equals("getName")) {
+                return description.getName();
+            } else if (name.equals("isEnabled")) {
+                return true;
+            } else if (name.equals("getDataFolder")) {
+                return new File("plugins", description.getName());
+            } else if (name.equals("getLogger")) {
+                return logger;
+            }
+            return UNHANDLED;
+        }
+    }
+
+    /**
+     * Runs the schedule calls the plugin makes: the sync and async, delayed
+     * and repeating ones, and cancelling them.
+     */
+    private class SchedulerHandler extends Handler {
+
+        @Override
+        Object handle(Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("cancelTask")) {
+                Future<?> task = tasks.remove((Integer) args[0]);
+                if (task != null) {
+                    task.cancel(false);
+                }
+                return null;
+            } else if (name.equals("cancelTasks") || name.equals("cancelAllTasks")) {
+                for (Future<?> task : tasks.values()) {
+                    task.cancel(false);
+                }
+                tasks.clear();
+                return null;
+            } else if (!name.startsWith("schedule")) {
+                return UNHANDLED;
+            }
+            ScheduledExecutorService executor = name.startsWith("scheduleSync") ? mainThread : asyncPool;
+            final Runnable runnable = (Runnable) args[1];
+            long delay = args.length > 2 ? (Long) args[2] : 0;
+            final int id = lastTaskId.incrementAndGet();
+            if (name.endsWith("RepeatingTask")) {
+                long period = Math.max(1, (Long) args[3]);
+                tasks.put(id, executor.scheduleAtFixedRate(runnable, delay * TICK_MILLIS, period * TICK_MILLIS, TimeUnit.MILLISECONDS));
+            } else {
+                tasks.put(id, executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            runnable.run();
+                        } finally {
+                            tasks.remove(id);
+                        }
+                    }
+                }, delay * TICK_MILLIS, TimeUnit.MILLISECONDS));
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Answers a proxy's calls, falling back to an empty value of the right
+     * type for the calls it does not handle.
+     */
+    private abstract static class Handler implements InvocationHandler {
+
+        static final Object UNHANDLED = new Object();
+
+        abstract Object handle(Method method, Object[] args);
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getDeclaringClass() == Object.class) {
+                if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                } else if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                return "Headless" + proxy.getClass().getInterfaces()[0].getSimpleName();
+            }
+            Object result = handle(method, args == null ? new Object[0] : args);
+            return result != UNHANDLED ? result : emptyValue(method.getReturnType());
+        }
+
+        private static Object emptyValue(Class<?> type) {
+            if (type == boolean.class) {
+                return false;
+            } else if (type == int.class) {
+                return 0;
+            } else if (type == short.class) {
+                return (short) 0;
+            } else if (type == byte.class) {
+                return (byte) 0;
+            } else if (type == long.class) {
+                return 0L;
+            } else if (type == float.class) {
+                return 0F;
+            } else if (type == double.class) {
+                return 0D;
+            } else if (type == char.class) {
+                return '\0';
+            } else if (type.isArray()) {
+                return Array.newInstance(type.getComponentType(), 0);
+            } else if (type.isAssignableFrom(List.class)) {
+                return Collections.emptyList();
+            }
+            return null;
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + " " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(HeadlessServer.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+}
@@ -0,0 +1,146 @@
+package com.bukkitbackup.lite.benchmarks.world;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the NBT format that chunks, level.dat and player files are stored
+ * in. Only the tags the generated worlds need are here.
+ *
+ * Named tags are written with the methods that take a name; list elements
+ * are written with the ones that do not, after {@link #beginList}.
+ */
+public class NbtWriter {
+
+    public static final byte TAG_END = 0;
+    public static final byte TAG_BYTE = 1;
+    public static final byte TAG_SHORT = 2;
+    public static final byte TAG_INT = 3;
+    public static final byte TAG_LONG = 4;
+    public static final byte TAG_FLOAT = 5;
+    public static final byte TAG_DOUBLE = 6;
+    public static final byte TAG_BYTE_ARRAY = 7;
+    public static final byte TAG_STRING = 8;
+    public static final byte TAG_LIST = 9;
+    public static final byte TAG_COMPOUND = 10;
+    public static final byte TAG_INT_ARRAY = 11;
+
+    private final DataOutputStream out;
+
+    public NbtWriter(OutputStream out) {
+        this.out = new DataOutputStream(out);
+    }
+
+    public NbtWriter beginCompound(String name) throws IOException {
+        writeHeader(TAG_COMPOUND, name);
+        return this;
+    }
+
+    public NbtWriter endCompound() throws IOException {
+        out.writeByte(TAG_END);
+        return this;
+    }
+
+    /**
+     * Starts a list. Its elements follow, written without names, and need no
+     * end tag.
+     *
+     * @param name The name of the list.
+     * @param type The tag type of the elements.
+     * @param length The number of elements.
+     * @return This writer.
+     * @throws IOException If it cannot be written.
+     */
+    public NbtWriter beginList(String name, byte type, int length) throws IOException {
+        writeHeader(TAG_LIST, name);
+        out.writeByte(length == 0 ? TAG_END : type);
+        out.writeInt(length);
+        return this;
+    }
+
+    public NbtWriter writeByte(String name, int value) throws IOException {
+        writeHeader(TAG_BYTE, name);
+        out.writeByte(value);
+        return this;
+    }
+
+    public NbtWriter writeShort(String name, int value) throws IOException {
+        writeHeader(TAG_SHORT, name);
+        out.writeShort(value);
+        return this;
+    }
+
+    public NbtWriter writeInt(String name, int value) throws IOException {
+        writeHeader(TAG_INT, name);
+        out.writeInt(value);
+        return this;
+    }
+
+    public NbtWriter writeLong(String name, long value) throws IOException {
+        writeHeader(TAG_LONG, name);
+        out.writeLong(value);
+        return this;
+    }
+
+    public NbtWriter writeFloat(String name, float value) throws IOException {
+        writeHeader(TAG_FLOAT, name);
+        out.writeFloat(value);
+        return this;
+    }
+
+    public NbtWriter writeString(String name, String value) throws IOException {
+        writeHeader(TAG_STRING, name);
+        out.writeUTF(value);
+        return this;
+    }
+
+    public NbtWriter writeByteArray(String name, byte[] value) throws IOException {
+        writeHeader(TAG_BYTE_ARRAY, name);
+        out.writeInt(value.length);
+        out.write(value);
+        return this;
+    }
+
+    public NbtWriter writeIntArray(String name, int[] value) throws IOException {
+        writeHeader(TAG_INT_ARRAY, name);
+        out.writeInt(value.length);
+        for (int i : value) {
+            out.writeInt(i);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a double list element.
+     *
+     * @param value The value.
+     * @return This writer.
+     * @throws IOException If it cannot be written.
+     */
+    public NbtWriter writeDouble(double value) throws IOException {
+        out.writeDouble(value);
+        return this;
+    }
+
+    /**
+     * Writes a float list element.
+     *
+     * @param value The value.
+     * @return This writer.
+     * @throws IOException If it cannot be written.
+     */
+    public NbtWriter writeFloat(float value) throws IOException {
+        out.writeFloat(value);
+        return this;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    private void writeHeader(byte type, String name) throws IOException {
+        out.writeByte(type);
+        out.writeUTF(name);
+    }
+}
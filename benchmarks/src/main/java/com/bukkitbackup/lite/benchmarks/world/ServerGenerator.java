@@ -0,0 +1,156 @@
+package com.bukkitbackup.lite.benchmarks.world;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Builds the folder a server runs in: an overworld, nether and end, and a
+ * plugins folder full of configs, as BackupLite finds them on a real server.
+ *
+ * Building tens of gigabytes takes a while, so a folder that was already
+ * built with the same size and seed is left as it is.
+ */
+public class ServerGenerator {
+
+    /**
+     * The worlds, with the region folder inside each, and their share of the
+     * size.
+     */
+    private static final String[][] WORLDS = {
+        {"world", "region", "75"},
+        {"world_nether", "DIM-1/region", "15"},
+        {"world_the_end", "DIM1/region", "10"}};
+    private static final int PLUGIN_COUNT = 40;
+    private static final String MARKER_FILE = ".generated";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final long worldBytes;
+    private final long seed;
+
+    /**
+     * Creates a generator.
+     *
+     * @param worldBytes About how big the worlds should be, together.
+     * @param seed The seed everything comes from.
+     */
+    public ServerGenerator(long worldBytes, long seed) {
+        this.worldBytes = worldBytes;
+        this.seed = seed;
+    }
+
+    /**
+     * Builds the server folder, unless it is already there.
+     *
+     * @param root The server folder.
+     * @return True if it was built, false if it was already there.
+     * @throws IOException If a file cannot be written.
+     */
+    public boolean generate(File root) throws IOException {
+        File marker = new File(root, MARKER_FILE);
+        if (getDescription().equals(readMarker(marker))) {
+            return false;
+        }
+        if (root.exists()) {
+            throw new IOException("'" + root + "' is already there, but was not built for " + getDescription() + ". Delete it first.");
+        }
+        WorldGenerator worldGenerator = new WorldGenerator(seed);
+
+        // About 20 players for each gigabyte.
+        int players = (int) Math.min(10000, 20 + worldBytes / (50L << 20));
+        for (int i = 0; i < WORLDS.length; i++) {
+            long bytes = worldBytes * Integer.parseInt(WORLDS[i][2]) / 100;
+            worldGenerator.generateWorld(new File(root, WORLDS[i][0]), WORLDS[i][1], bytes, i == 0 ? players : 0);
+        }
+        generatePlugins(new File(root, "plugins"), players);
+
+        Writer out = new OutputStreamWriter(new FileOutputStream(marker), UTF8);
+        try {
+            out.write(getDescription());
+        } finally {
+            out.close();
+        }
+        return true;
+    }
+
+    /**
+     * Gets the names of the worlds this builds.
+     *
+     * @return The world folder names.
+     */
+    public static String[] getWorldNames() {
+        String[] names = new String[WORLDS.length];
+        for (int i = 0; i < WORLDS.length; i++) {
+            names[i] = WORLDS[i][0];
+        }
+        return names;
+    }
+
+    private String getDescription() {
+        return "worlds=" + worldBytes + " seed=" + seed;
+    }
+
+    private static String readMarker(File marker) throws IOException {
+        if (!marker.isFile()) {
+            return null;
+        }
+        Reader in = new InputStreamReader(new FileInputStream(marker), UTF8);
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[256];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                text.append(buffer, 0, read);
+            }
+            return text.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Builds plugin folders, each with a config.yml, and for every fifth one
+     * a file for each player, the way plugins that keep user data do.
+     */
+    private void generatePlugins(File pluginsFolder, int players) throws IOException {
+        Random random = new Random(seed ^ 0x706c7567696e73L);
+        for (int i = 0; i < PLUGIN_COUNT; i++) {
+            File pluginFolder = new File(pluginsFolder, "Plugin" + (i + 1));
+            WorldGenerator.mkdirs(pluginFolder);
+            writeYaml(new File(pluginFolder, "config.yml"), 20 + random.nextInt(400), random);
+            if (i % 5 == 0) {
+                File dataFolder = new File(pluginFolder, "userdata");
+                WorldGenerator.mkdirs(dataFolder);
+                for (int j = 0; j < players; j++) {
+                    writeYaml(new File(dataFolder, "player" + j + ".yml"), 5 + random.nextInt(40), random);
+                }
+            }
+        }
+    }
+
+    private static void writeYaml(File file, int lines, Random random) throws IOException {
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+        try {
+            out.write("# Generated for benchmarking.");
+            out.newLine();
+            for (int i = 0; i < lines; i++) {
+                if (i % 10 == 0) {
+                    out.write("section" + (i / 10) + ":");
+                } else {
+                    out.write("    key" + i + ": " + (random.nextBoolean() ? Long.toString(random.nextLong(), 36) : Boolean.toString(random.nextBoolean())));
+                }
+                out.newLine();
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
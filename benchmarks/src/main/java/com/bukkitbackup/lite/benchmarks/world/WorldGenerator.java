@@ -0,0 +1,303 @@
+package com.bukkitbackup.lite.benchmarks.world;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Builds world folders that look like the real thing to a backup: region
+ * files with valid headers and zlib compressed chunks, a gzipped level.dat
+ * and player files.
+ *
+ * Compressing a chunk for every slot would make large worlds take longer to
+ * build than to back up, so chunks are drawn from a pool of different ones,
+ * compressed once. Picked at random, no two runs of chunks line up, so the
+ * pool does not make worlds dedupe or compress better than real ones. The
+ * coordinates inside a chunk do not match its slot, which nothing in a backup
+ * looks at.
+ */
+public class WorldGenerator {
+
+    private static final int SECTOR_SIZE = 4096;
+    private static final int CHUNKS_PER_REGION = 1024;
+    private static final int POOL_SIZE = 1024;
+    private static final byte COMPRESSION_ZLIB = 2;
+    private static final int BASE_TIMESTAMP = 1330000000;
+
+    private final long seed;
+    private final Random random;
+    private final byte[][] chunkPool = new byte[POOL_SIZE][];
+    private final long averageChunkBytes;
+
+    /**
+     * Creates a generator, and compresses its pool of chunks.
+     *
+     * @param seed The seed everything it builds comes from.
+     * @throws IOException If a chunk cannot be compressed.
+     */
+    public WorldGenerator(long seed) throws IOException {
+        this.seed = seed;
+        this.random = new Random(seed);
+        long total = 0;
+        for (int i = 0; i < POOL_SIZE; i++) {
+            chunkPool[i] = compressChunk(i);
+            total += getSectors(chunkPool[i]) * SECTOR_SIZE;
+        }
+        averageChunkBytes = total / POOL_SIZE;
+    }
+
+    /**
+     * Builds a world folder.
+     *
+     * @param worldFolder The folder to build it in.
+     * @param regionPath The region folder inside it, such as "region", or
+     * "DIM-1/region" for the nether.
+     * @param regionBytes About how much region data to write.
+     * @param players How many player files to write, 0 for none.
+     * @return The size of the files written.
+     * @throws IOException If a file cannot be written.
+     */
+    public long generateWorld(File worldFolder, String regionPath, long regionBytes, int players) throws IOException {
+        File regionFolder = new File(worldFolder, regionPath);
+        mkdirs(regionFolder);
+        long written = 0;
+
+        // Lay the regions out in a square around the spawn.
+        long regionSize = 2L * SECTOR_SIZE + CHUNKS_PER_REGION * averageChunkBytes;
+        int regions = (int) Math.max(1, (regionBytes + regionSize - 1) / regionSize);
+        int side = (int) Math.ceil(Math.sqrt(regions));
+        long left = regionBytes;
+        for (int i = 0; i < regions; i++) {
+            int chunks = (int) Math.max(1, Math.min(CHUNKS_PER_REGION, (left - 2L * SECTOR_SIZE) / averageChunkBytes));
+            File region = new File(regionFolder, "r." + (i % side - side / 2) + "." + (i / side - side / 2) + ".mca");
+            long size = writeRegion(region, chunks);
+            written += size;
+            left -= size;
+        }
+
+        written += writeLevel(new File(worldFolder, "level.dat"), worldFolder.getName());
+        written += writeBytes(new File(worldFolder, "uid.dat"), 16);
+        written += writeBytes(new File(worldFolder, "session.lock"), 8);
+        if (players > 0) {
+            File playerFolder = new File(worldFolder, "playerdata");
+            mkdirs(playerFolder);
+            for (int i = 0; i < players; i++) {
+                UUID uuid = new UUID(random.nextLong(), random.nextLong());
+                written += writePlayer(new File(playerFolder, uuid + ".dat"));
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Writes a region file: the location and timestamp tables, then each
+     * chunk, padded out to whole sectors.
+     */
+    private long writeRegion(File region, int chunks) throws IOException {
+        byte[][] payloads = new byte[chunks][];
+        ByteBuffer header = ByteBuffer.allocate(2 * SECTOR_SIZE);
+        int sector = 2;
+        for (int i = 0; i < chunks; i++) {
+            payloads[i] = chunkPool[random.nextInt(POOL_SIZE)];
+            int sectors = getSectors(payloads[i]);
+            header.putInt(i * 4, (sector << 8) | sectors);
+            header.putInt(SECTOR_SIZE + i * 4, BASE_TIMESTAMP + random.nextInt(1000000));
+            sector += sectors;
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(region), 1 << 20);
+        try {
+            out.write(header.array());
+            byte[] padding = new byte[SECTOR_SIZE];
+            for (byte[] payload : payloads) {
+                int length = payload.length + 1;
+                out.write(length >>> 24);
+                out.write(length >>> 16);
+                out.write(length >>> 8);
+                out.write(length);
+                out.write(COMPRESSION_ZLIB);
+                out.write(payload);
+                out.write(padding, 0, getSectors(payload) * SECTOR_SIZE - payload.length - 5);
+            }
+        } finally {
+            out.close();
+        }
+        return (long) sector * SECTOR_SIZE;
+    }
+
+    private static int getSectors(byte[] payload) {
+        return (payload.length + 5 + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    }
+
+    /**
+     * Makes one chunk, in the Anvil layout, and compresses it. The terrain is
+     * rolling stone under dirt and grass, with ores and caves, so it
+     * compresses about as well as a real one.
+     */
+    private byte[] compressChunk(int index) throws IOException {
+        Random chunkRandom = new Random(seed ^ (index * 0x9E3779B97F4A7C15L));
+        int[] heightMap = new int[256];
+        byte[] biomes = new byte[256];
+        int baseHeight = 56 + chunkRandom.nextInt(24);
+        double phaseX = chunkRandom.nextDouble() * Math.PI * 2;
+        double phaseZ = chunkRandom.nextDouble() * Math.PI * 2;
+        int topHeight = 0;
+        for (int z = 0; z < 16; z++) {
+            for (int x = 0; x < 16; x++) {
+                int height = baseHeight + (int) (4 * Math.sin(phaseX + x / 5.0) + 3 * Math.cos(phaseZ + z / 4.0));
+                heightMap[z * 16 + x] = height;
+                biomes[z * 16 + x] = (byte) (baseHeight > 70 ? 3 : 1);
+                topHeight = Math.max(topHeight, height);
+            }
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(96 * 1024);
+        DeflaterOutputStream out = new DeflaterOutputStream(buffer);
+        NbtWriter nbt = new NbtWriter(out);
+        nbt.beginCompound("");
+        nbt.beginCompound("Level");
+        nbt.writeInt("xPos", index % 32);
+        nbt.writeInt("zPos", index / 32);
+        nbt.writeLong("LastUpdate", chunkRandom.nextInt(10000000));
+        nbt.writeByte("TerrainPopulated", 1);
+        nbt.writeByteArray("Biomes", biomes);
+        nbt.writeIntArray("HeightMap", heightMap);
+
+        int sections = topHeight / 16 + 1;
+        nbt.beginList("Sections", NbtWriter.TAG_COMPOUND, sections);
+        for (int y = 0; y < sections; y++) {
+            byte[] blocks = new byte[4096];
+            byte[] data = new byte[2048];
+            byte[] skyLight = new byte[2048];
+            for (int i = 0; i < 4096; i++) {
+                int height = heightMap[i & 255];
+                int blockY = y * 16 + (i >> 8);
+                int block;
+                if (blockY > height) {
+                    block = 0;
+                    skyLight[i >> 1] |= (byte) ((i & 1) == 0 ? 0x0F : 0xF0);
+                } else if (blockY == height) {
+                    block = 2;
+                } else if (blockY > height - 4) {
+                    block = 3;
+                } else if (blockY == 0) {
+                    block = 7;
+                } else {
+                    int roll = chunkRandom.nextInt(1000);
+                    block = roll < 40 ? 0 : roll < 52 ? 16 : roll < 58 ? 15 : roll < 60 ? 14 : roll < 61 ? 56 : roll < 90 ? 13 : 1;
+                }
+                blocks[i] = (byte) block;
+            }
+            nbt.writeByte("Y", y);
+            nbt.writeByteArray("Blocks", blocks);
+            nbt.writeByteArray("Data", data);
+            nbt.writeByteArray("SkyLight", skyLight);
+            nbt.writeByteArray("BlockLight", new byte[2048]);
+            nbt.endCompound();
+        }
+        nbt.beginList("Entities", NbtWriter.TAG_COMPOUND, 0);
+        nbt.beginList("TileEntities", NbtWriter.TAG_COMPOUND, 0);
+        nbt.endCompound();
+        nbt.endCompound();
+        nbt.flush();
+        out.close();
+        return buffer.toByteArray();
+    }
+
+    private long writeLevel(File file, String name) throws IOException {
+        GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+        try {
+            NbtWriter nbt = new NbtWriter(out);
+            nbt.beginCompound("");
+            nbt.beginCompound("Data");
+            nbt.writeLong("RandomSeed", seed);
+            nbt.writeString("LevelName", name);
+            nbt.writeString("generatorName", "default");
+            nbt.writeInt("version", 19133);
+            nbt.writeInt("GameType", 0);
+            nbt.writeInt("SpawnX", 0);
+            nbt.writeInt("SpawnY", 64);
+            nbt.writeInt("SpawnZ", 0);
+            nbt.writeLong("Time", random.nextInt(100000000));
+            nbt.writeLong("LastPlayed", BASE_TIMESTAMP * 1000L);
+            nbt.writeLong("SizeOnDisk", 0);
+            nbt.writeByte("MapFeatures", 1);
+            nbt.writeByte("hardcore", 0);
+            nbt.writeByte("raining", 0);
+            nbt.writeByte("thundering", 0);
+            nbt.writeInt("rainTime", random.nextInt(100000));
+            nbt.writeInt("thunderTime", random.nextInt(100000));
+            nbt.endCompound();
+            nbt.endCompound();
+            nbt.flush();
+        } finally {
+            out.close();
+        }
+        return file.length();
+    }
+
+    private long writePlayer(File file) throws IOException {
+        GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+        try {
+            NbtWriter nbt = new NbtWriter(out);
+            nbt.beginCompound("");
+            nbt.beginList("Pos", NbtWriter.TAG_DOUBLE, 3);
+            nbt.writeDouble(random.nextInt(4000) - 2000 + random.nextDouble());
+            nbt.writeDouble(64 + random.nextInt(32) + random.nextDouble());
+            nbt.writeDouble(random.nextInt(4000) - 2000 + random.nextDouble());
+            nbt.beginList("Motion", NbtWriter.TAG_DOUBLE, 3);
+            nbt.writeDouble(0).writeDouble(-0.0784).writeDouble(0);
+            nbt.beginList("Rotation", NbtWriter.TAG_FLOAT, 2);
+            nbt.writeFloat(random.nextFloat() * 360).writeFloat(random.nextFloat() * 90 - 45);
+            nbt.writeShort("Health", 1 + random.nextInt(20));
+            nbt.writeShort("Air", 300);
+            nbt.writeShort("Fire", -20);
+            nbt.writeFloat("FallDistance", 0);
+            nbt.writeByte("OnGround", 1);
+            nbt.writeInt("Dimension", 0);
+            nbt.writeInt("foodLevel", random.nextInt(21));
+            nbt.writeInt("XpLevel", random.nextInt(40));
+            nbt.writeFloat("XpP", random.nextFloat());
+            int items = random.nextInt(37);
+            nbt.beginList("Inventory", NbtWriter.TAG_COMPOUND, items);
+            for (int slot = 0; slot < items; slot++) {
+                nbt.writeShort("id", 1 + random.nextInt(400));
+                nbt.writeShort("Damage", 0);
+                nbt.writeByte("Count", 1 + random.nextInt(64));
+                nbt.writeByte("Slot", slot);
+                nbt.endCompound();
+            }
+            nbt.endCompound();
+            nbt.flush();
+        } finally {
+            out.close();
+        }
+        return file.length();
+    }
+
+    private long writeBytes(File file, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return length;
+    }
+
+    static void mkdirs(File folder) throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Failed to create folder '" + folder + "'");
+        }
+    }
+}
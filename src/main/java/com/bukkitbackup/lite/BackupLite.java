@@ -1,10 +1,14 @@
 package com.bukkitbackup.lite;
 
+import com.bukkitbackup.lite.config.ConfigWatcher;
 import com.bukkitbackup.lite.config.Settings;
 import com.bukkitbackup.lite.config.UpdateChecker;
 import com.bukkitbackup.lite.events.CommandHandler;
 import com.bukkitbackup.lite.events.EventListener;
+import com.bukkitbackup.lite.threading.BackupJobManager;
+import com.bukkitbackup.lite.threading.DeletionService;
 import com.bukkitbackup.lite.threading.PrepareBackup;
+import com.bukkitbackup.lite.utils.FileStager;
 import com.bukkitbackup.lite.utils.LogUtils;
 import com.bukkitbackup.lite.utils.MetricUtils;
 import com.bukkitbackup.lite.utils.SharedUtils;
@@ -21,6 +25,10 @@ public class BackupLite extends JavaPlugin {
     private String clientID;
     private static Settings settings;
     private PrepareBackup prepareBackup;
+    private BackupJobManager jobManager;
+    private ConfigWatcher configWatcher;
+    private int scheduledInterval;
+    private String stagingSettings;
 
     @Override
     public void onLoad() {
@@ -28,6 +36,17 @@ public class BackupLite extends JavaPlugin {
         LogUtils.initLogUtils(this);
         SharedUtils.checkFolderAndCreate(pluginDataFolder);
         settings = new Settings(new File(pluginDataFolder, "config.yml"));
+        settings.addReloadListener(new Runnable() {
+            @Override
+            public void run() {
+                getServer().getScheduler().scheduleSyncDelayedTask(BackupLite.this, new Runnable() {
+                    @Override
+                    public void run() {
+                        applySettings();
+                    }
+                });
+            }
+        });
         try {
             MetricUtils metricUtils = new MetricUtils(this);
             metricUtils.start();
@@ -41,24 +60,31 @@ public class BackupLite extends JavaPlugin {
     @Override
     public void onEnable() {
 
-        prepareBackup = new PrepareBackup(getServer(), settings);
+        jobManager = new BackupJobManager(getServer(), this, settings);
+        prepareBackup = new PrepareBackup(getServer(), settings, jobManager);
 
-        getCommand("backup").setExecutor(new CommandHandler(prepareBackup, this, settings));
-        getCommand("bu").setExecutor(new CommandHandler(prepareBackup, this, settings));
+        // Work out how files can be staged into the temp folder.
+        detectStagingMode();
+
+        getCommand("backup").setExecutor(new CommandHandler(jobManager, this, settings));
+        getCommand("bu").setExecutor(new CommandHandler(jobManager, this, settings));
 
         // Initalize Event Listener.
         EventListener eventListener = new EventListener(prepareBackup, this, settings);
         getServer().getPluginManager().registerEvents(eventListener, this);
 
         // Configure main backup task schedule.
-        int backupInterval = settings.getIntervalInMinutes("backupinterval");
-        if (backupInterval != -1 && backupInterval != 0) {
+        scheduleBackups();
 
-            // Convert to server ticks.
-            int backupIntervalInTicks = (backupInterval * 1200);
-            backupTaskID = getServer().getScheduler().scheduleAsyncRepeatingTask(this, prepareBackup, backupIntervalInTicks, backupIntervalInTicks);
-        } else {
-            LogUtils.sendLog("Backup schedule is disabled.");
+        // Reload the settings when config.yml is saved.
+        if (settings.getBooleanProperty("watchconfig", true)) {
+            configWatcher = new ConfigWatcher(settings);
+            try {
+                configWatcher.start();
+            } catch (IOException ex) {
+                LogUtils.exceptionLog(ex, "Failed to watch the configuration for changes.");
+                configWatcher = null;
+            }
         }
 
         // Notify loading complete.
@@ -68,10 +94,72 @@ public class BackupLite extends JavaPlugin {
     @Override
     public void onDisable() {
 
+        // Stop watching the configuration.
+        if (configWatcher != null) {
+            configWatcher.stop();
+            configWatcher = null;
+        }
+
         // Stop and scheduled tasks.
         this.getServer().getScheduler().cancelTasks(this);
+        backupTaskID = -2;
+
+        // Stop deleting in the background.
+        DeletionService.shutdown();
 
         // Shutdown complete.
         LogUtils.sendLog(this.getDescription().getFullName() + " has completely un-loaded!");
     }
+
+    /**
+     * Applies reloaded settings that were only read when the plugin was
+     * enabled. The backup schedule is only restarted if its interval changed,
+     * and everything else is left running.
+     */
+    private void applySettings() {
+        if (!isEnabled()) {
+            return;
+        }
+        if (!getStagingSettings().equals(stagingSettings)) {
+            detectStagingMode();
+        }
+        if (settings.getIntervalInMinutes("backupinterval") != scheduledInterval) {
+            scheduleBackups();
+        }
+    }
+
+    /**
+     * Works out how files can be staged into the temp folder.
+     */
+    private void detectStagingMode() {
+        stagingSettings = getStagingSettings();
+        File stagingFolder = new File(settings.getStringProperty("backuppath"), "temp");
+        FileStager.Mode stagingMode = FileStager.detect(getServer().getWorldContainer(), stagingFolder, settings.getStringProperty("stagingmode").trim());
+        LogUtils.sendLog("Backup staging mode: " + stagingMode.name().toLowerCase() + ".");
+    }
+
+    private String getStagingSettings() {
+        return settings.getStringProperty("backuppath") + File.pathSeparator + settings.getStringProperty("stagingmode").trim();
+    }
+
+    /**
+     * Schedules the backup task, replacing the one already scheduled.
+     */
+    private void scheduleBackups() {
+        if (backupTaskID != -2) {
+            getServer().getScheduler().cancelTask(backupTaskID);
+            backupTaskID = -2;
+        }
+
+        int backupInterval = settings.getIntervalInMinutes("backupinterval");
+        scheduledInterval = backupInterval;
+        if (backupInterval != -1 && backupInterval != 0) {
+
+            // Convert to server ticks.
+            int backupIntervalInTicks = (backupInterval * 1200);
+            backupTaskID = getServer().getScheduler().scheduleAsyncRepeatingTask(this, prepareBackup, backupIntervalInTicks, backupIntervalInTicks);
+        } else {
+            LogUtils.sendLog("Backup schedule is disabled.");
+        }
+    }
 }
@@ -0,0 +1,105 @@
+package com.bukkitbackup.lite.config;
+
+import com.bukkitbackup.lite.utils.LogUtils;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+public class ConfigWatcher implements Runnable {
+
+    private static final long SETTLE_TIME = 500L;
+
+    private final Settings settings;
+    private final Path configPath;
+    private final Thread worker;
+    private WatchService watchService;
+
+    /**
+     * Watches config.yml, and reloads the settings when it is saved, without
+     * restarting the plugin.
+     *
+     * Editors often save in several steps, so the reload waits until the file
+     * has been quiet for a moment. A file that does not load leaves the old
+     * settings in use.
+     *
+     * @param settings The settings to reload.
+     */
+    public ConfigWatcher(Settings settings) {
+        this.settings = settings;
+        this.configPath = settings.getConfigurationFile().getAbsoluteFile().toPath();
+        worker = new Thread(this, "BackupLite config watcher");
+        worker.setDaemon(true);
+    }
+
+    /**
+     * Starts watching.
+     *
+     * @throws IOException If the folder cannot be watched.
+     */
+    public void start() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        configPath.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        worker.start();
+    }
+
+    /**
+     * Stops watching.
+     */
+    public void stop() {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to stop watching the configuration.");
+        }
+        worker.interrupt();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                if (!isConfigEvent(watchService.take())) {
+                    continue;
+                }
+
+                // Wait for the writes to settle.
+                WatchKey key;
+                while ((key = watchService.poll(SETTLE_TIME, TimeUnit.MILLISECONDS)) != null) {
+                    isConfigEvent(key);
+                }
+                if (settings.reload()) {
+                    LogUtils.sendLog("Reloaded configuration.");
+                }
+            }
+        } catch (InterruptedException ie) {
+            // Stopped.
+        } catch (ClosedWatchServiceException cwse) {
+            // Stopped.
+        }
+    }
+
+    /**
+     * Checks the events of a key, and makes it ready for more.
+     *
+     * @return True if any of them were for config.yml.
+     */
+    private boolean isConfigEvent(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.context() instanceof Path && configPath.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
@@ -3,15 +3,22 @@ package com.bukkitbackup.lite.config;
 import com.bukkitbackup.lite.utils.LogUtils;
 import com.bukkitbackup.lite.utils.SharedUtils;
 import java.io.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 
 public final class Settings {
-    
-    private File configurationFile;
-    private FileConfiguration yamlConfig;
+
+    private static final Pattern INTERVAL_PATTERN = Pattern.compile("^([0-9]+)([a-z]?)$");
+
+    private final File configurationFile;
+    private final List<Runnable> reloadListeners = new CopyOnWriteArrayList<Runnable>();
+    private volatile Snapshot snapshot = new Snapshot(Collections.<String, Object>emptyMap());
 
     public Settings(File configurationFile) {
         this.configurationFile = configurationFile;
@@ -20,7 +27,7 @@ public final class Settings {
         checkAndCreateConfig();
 
         // Load the properties into memory.
-        loadProperties();
+        reload();
 
         // Create backups folder.
         if (SharedUtils.checkFolderAndCreate(new File(this.getStringProperty("backuppath"))))
@@ -40,15 +47,48 @@ public final class Settings {
     }
 
     /**
-     * Load the configuration to memory from the configurationFile.
+     * Load the configuration to memory from the configurationFile, and tell
+     * the reload listeners. If it cannot be read, the values already loaded
+     * stay in use.
+     *
+     * @return True if the configuration was loaded.
      */
-    private void loadProperties() {
+    public boolean reload() {
         try {
-            yamlConfig = new YamlConfiguration();
+            YamlConfiguration yamlConfig = new YamlConfiguration();
             yamlConfig.load(configurationFile);
+            snapshot = new Snapshot(yamlConfig.getValues(false));
         } catch (Exception ex) {
             LogUtils.exceptionLog(ex, "Failed to load configuration.");
+            return false;
+        }
+        for (Runnable listener : reloadListeners) {
+            listener.run();
         }
+        return true;
+    }
+
+    /**
+     * Adds something to run after each reload, on the thread that reloaded.
+     *
+     * @param listener The listener.
+     */
+    public void addReloadListener(Runnable listener) {
+        reloadListeners.add(listener);
+    }
+
+    public File getConfigurationFile() {
+        return configurationFile;
+    }
+
+    /**
+     * Gets the values as they are now. They do not change if the
+     * configuration is reloaded, so a backup can use them from start to end.
+     *
+     * @return The values.
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
     }
 
     /**
@@ -92,7 +132,19 @@ public final class Settings {
      * @return The value of the property, defaults to -1.
      */
     public int getIntProperty(String property) {
-        return yamlConfig.getInt(property, -1);
+        return snapshot.getIntProperty(property);
+    }
+
+    /**
+     * Gets the value of a integer property, for options that older
+     * configuration files may not contain yet.
+     *
+     * @param property The name of the property.
+     * @param defaultValue The value to use if the property is not set.
+     * @return The value of the property.
+     */
+    public int getIntProperty(String property, int defaultValue) {
+        return snapshot.getIntProperty(property, defaultValue);
     }
 
     /**
@@ -102,7 +154,19 @@ public final class Settings {
      * @return The value of the property, defaults to true.
      */
     public boolean getBooleanProperty(String property) {
-        return yamlConfig.getBoolean(property, true);
+        return snapshot.getBooleanProperty(property);
+    }
+
+    /**
+     * Gets the value of a boolean property, for options that older
+     * configuration files may not contain yet.
+     *
+     * @param property The name of the property.
+     * @param defaultValue The value to use if the property is not set.
+     * @return The value of the property.
+     */
+    public boolean getBooleanProperty(String property, boolean defaultValue) {
+        return snapshot.getBooleanProperty(property, defaultValue);
     }
 
     /**
@@ -112,53 +176,149 @@ public final class Settings {
      * @return The value of the property.
      */
     public String getStringProperty(String property) {
-        return yamlConfig.getString(property, "");
+        return snapshot.getStringProperty(property);
     }
 
     /**
-     * Method that gets the amount of time between backups. - Checks string for
-     * no automatic backup. - Checks for if only number (as minutes). - Checks
-     * for properly formatted string. - If unknown amount of time, sets as
-     * minutes.
+     * Gets the amount of time between backups.
      *
+     * @param forSetting The name of the property.
      * @return Amount of time between backups. (In minutes)
      */
     public int getIntervalInMinutes(String forSetting) {
-        String settingInterval = getStringProperty(forSetting).trim().toLowerCase();
-        // If it is null or set to disable.
-        if (settingInterval.equals("-1") || settingInterval == null) {
+        return snapshot.getIntervalInMinutes(forSetting);
+    }
+
+    /**
+     * Reads an interval setting, such as "15m", "2h", "1d" or "1w". A plain
+     * number is in minutes, and "-1" turns the interval off.
+     *
+     * @param value The setting's value.
+     * @return The interval in minutes, or 0 if it is off or cannot be read.
+     */
+    private static int parseInterval(String value) {
+        String settingInterval = value.trim().toLowerCase();
+        // If it is set to disable.
+        if (settingInterval.equals("-1")) {
+            return 0;
+        }
+        Matcher intervalTime = INTERVAL_PATTERN.matcher(settingInterval);
+        if (!intervalTime.matches()) {
+            LogUtils.sendLog("Error formatting time.");
             return 0;
         }
+        int time = Integer.parseInt(intervalTime.group(1));
+        String letter = intervalTime.group(2);
         // If it is just a number, return minutes.
-        if (settingInterval.matches("^[0-9]+$")) {
-            return Integer.parseInt(settingInterval);
-        } else if (settingInterval.matches("[0-9]+[a-z]")) {
-            Pattern timePattern = Pattern.compile("^([0-9]+)[a-z]$");
-            Matcher amountTime = timePattern.matcher(settingInterval);
-            Pattern letterPattern = Pattern.compile("^[0-9]+([a-z])$");
-            Matcher letterTime = letterPattern.matcher(settingInterval);
-            if (letterTime.matches() && amountTime.matches()) {
-                String letter = letterTime.group(1);
-                int time = Integer.parseInt(amountTime.group(1));
-                if (letter.equals("m")) {
-                    return time;
-                } else if (letter.equals("h")) {
-                    return time * 60;
-                } else if (letter.equals("d")) {
-                    return time * 1440;
-                } else if (letter.equals("w")) {
-                    return time * 10080;
-                } else {
-                    LogUtils.sendLog("Error formatting time.");
-                    return time;
-                }
-            } else {
-                LogUtils.sendLog("Error formatting time.");
-                return 0;
-            }
+        if (letter.isEmpty() || letter.equals("m")) {
+            return time;
+        } else if (letter.equals("h")) {
+            return time * 60;
+        } else if (letter.equals("d")) {
+            return time * 1440;
+        } else if (letter.equals("w")) {
+            return time * 10080;
         } else {
             LogUtils.sendLog("Error formatting time.");
-            return 0;
+            return time;
+        }
+    }
+
+    /**
+     * The values of the configuration, read once from the YAML when it is
+     * loaded. A reload makes a new snapshot rather than changing this one, so
+     * it is safe to share between threads.
+     */
+    public static final class Snapshot {
+
+        private final Map<String, String> strings = new HashMap<String, String>();
+        private final Map<String, Integer> ints = new HashMap<String, Integer>();
+        private final Map<String, Boolean> booleans = new HashMap<String, Boolean>();
+        private final Map<String, Integer> intervals = new HashMap<String, Integer>();
+
+        private Snapshot(Map<String, Object> values) {
+            for (Map.Entry<String, Object> value : values.entrySet()) {
+                Object object = value.getValue();
+                if (object == null) {
+                    continue;
+                }
+                strings.put(value.getKey(), object.toString());
+                if (object instanceof Number) {
+                    ints.put(value.getKey(), ((Number) object).intValue());
+                } else if (object instanceof Boolean) {
+                    booleans.put(value.getKey(), (Boolean) object);
+                }
+                // Intervals are worked out now, so bad ones are only logged once.
+                if (value.getKey().endsWith("interval")) {
+                    intervals.put(value.getKey(), parseInterval(object.toString()));
+                }
+            }
+        }
+
+        /**
+         * Gets the value of a integer property.
+         *
+         * @param property The name of the property.
+         * @return The value of the property, defaults to -1.
+         */
+        public int getIntProperty(String property) {
+            return getIntProperty(property, -1);
+        }
+
+        /**
+         * Gets the value of a integer property.
+         *
+         * @param property The name of the property.
+         * @param defaultValue The value to use if the property is not set.
+         * @return The value of the property.
+         */
+        public int getIntProperty(String property, int defaultValue) {
+            Integer value = ints.get(property);
+            return value != null ? value : defaultValue;
+        }
+
+        /**
+         * Gets the value of a boolean property.
+         *
+         * @param property The name of the property.
+         * @return The value of the property, defaults to true.
+         */
+        public boolean getBooleanProperty(String property) {
+            return getBooleanProperty(property, true);
+        }
+
+        /**
+         * Gets the value of a boolean property.
+         *
+         * @param property The name of the property.
+         * @param defaultValue The value to use if the property is not set.
+         * @return The value of the property.
+         */
+        public boolean getBooleanProperty(String property, boolean defaultValue) {
+            Boolean value = booleans.get(property);
+            return value != null ? value : defaultValue;
+        }
+
+        /**
+         * Gets a value of the string property, "" if it is not set.
+         *
+         * @param property The name of the property.
+         * @return The value of the property.
+         */
+        public String getStringProperty(String property) {
+            String value = strings.get(property);
+            return value != null ? value : "";
+        }
+
+        /**
+         * Gets the amount of time between backups.
+         *
+         * @param forSetting The name of the property.
+         * @return Amount of time between backups. (In minutes)
+         */
+        public int getIntervalInMinutes(String forSetting) {
+            Integer interval = intervals.get(forSetting);
+            return interval != null ? interval : parseInterval(getStringProperty(forSetting));
         }
     }
 }
@@ -1,7 +1,18 @@
 package com.bukkitbackup.lite.events;
 
 import com.bukkitbackup.lite.config.Settings;
-import com.bukkitbackup.lite.threading.PrepareBackup;
+import com.bukkitbackup.lite.threading.BackupJob;
+import com.bukkitbackup.lite.threading.BackupJobManager;
+import com.bukkitbackup.lite.threading.RestoreTask;
+import com.bukkitbackup.lite.threading.VerifyTask;
+import com.bukkitbackup.lite.utils.BackupCatalog;
+import com.bukkitbackup.lite.utils.BackupProgress;
+import com.bukkitbackup.lite.utils.FileUtils;
+import com.bukkitbackup.lite.utils.LogUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import org.bukkit.Server;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
@@ -12,22 +23,23 @@ import org.bukkit.plugin.Plugin;
 
 public class CommandHandler implements Listener, CommandExecutor {
 
-    private PrepareBackup prepareBackup = null;
+    private BackupJobManager jobManager;
     private Plugin plugin;
     private Server server;
     private Settings settings;
+    private static final int LIST_LENGTH = 10;
     
     /**
      * This class is used to listen for console and player commands. It also
      * contains methods to handle them, and provide output.
      *
-     * @param prepareBackup Instance of the prepareBackup.
+     * @param jobManager Instance of the backup job manager.
      * @param plugin Instance of the JavaPlugin.
      * @param settings Instance of the settings loader.
      * @param strings Instance of the strings loader.
      */
-    public CommandHandler(PrepareBackup prepareBackup, Plugin plugin, Settings settings) {
-        this.prepareBackup = prepareBackup;
+    public CommandHandler(BackupJobManager jobManager, Plugin plugin, Settings settings) {
+        this.jobManager = jobManager;
         this.plugin = plugin;
         this.server = plugin.getServer();
         this.settings = settings;
@@ -67,7 +79,7 @@ public class CommandHandler implements Listener, CommandExecutor {
 
                 // Main command, perform manual backup.
                 if (checkPerms(sender, "backup.backup")) {
-                    doManualBackup();
+                    doManualBackup(sender);
                 }
 
             } else if (args.length == 1) {
@@ -77,6 +89,36 @@ public class CommandHandler implements Listener, CommandExecutor {
                     if (checkPerms(sender, "backup.reload")) {
                         reloadPlugin(sender);
                     }
+                } else if (args[0].equals("list")) {
+                    if (checkPerms(sender, "backup.list")) {
+                        listBackups(sender);
+                    }
+                } else if (args[0].equals("status")) {
+                    if (checkPerms(sender, "backup.status")) {
+                        showStatus(sender);
+                    }
+                } else if (args[0].equals("verify")) {
+                    if (checkPerms(sender, "backup.verify")) {
+                        verifyBackups(sender, null);
+                    }
+                } else if (args[0].equals("restore")) {
+                    sender.sendMessage("Usage: /backup restore <backup> [world] [x,z]");
+                } else {
+                    sender.sendMessage("Error: Command unknown.");
+                }
+
+            } else if (args.length == 2 && args[0].equals("verify")) {
+
+                // Verify command - Checks a backup, or all of them.
+                if (checkPerms(sender, "backup.verify")) {
+                    verifyBackups(sender, args[1]);
+                }
+
+            } else if (args.length <= 4 && args[0].equals("restore")) {
+
+                // Restore command - Restores a backup, a world, or one region.
+                if (checkPerms(sender, "backup.restore")) {
+                    restoreBackup(sender, args);
                 }
 
             } else {
@@ -89,27 +131,195 @@ public class CommandHandler implements Listener, CommandExecutor {
     }
 
     /**
-     * Performs a manual backup.
+     * Performs a manual backup, unless one is already under way.
+     *
+     * @param sender The CommandSender.
      */
-    private void doManualBackup() {
+    private void doManualBackup(CommandSender sender) {
+        BackupJob job = jobManager.submit(BackupJob.Trigger.MANUAL);
+        if (job.getTrigger() != BackupJob.Trigger.MANUAL || job.getMergedRequests() > 0) {
+            sender.sendMessage("A backup is already " + job.getState().name().toLowerCase() + ", it will cover this request.");
+        }
+    }
 
-        // Sets this as a manual backup in the preperation stage.
-        prepareBackup.setAsManualBackup();
+    /**
+     * Reload the settings, and report success. Schedules and running backups
+     * are left alone.
+     *
+     * @param sender The CommandSender.
+     */
+    public void reloadPlugin(CommandSender sender) {
+        if (settings.reload()) {
+            sender.sendMessage("Reloaded ok.");
+        } else {
+            sender.sendMessage("Error: Failed to reload the configuration, see the log.");
+        }
+    }
+
+    /**
+     * Lists the most recent backups from the catalog. The catalog is read in
+     * the background, as opening it may read or import the backup path, and
+     * the list is sent from the main thread.
+     *
+     * @param sender The CommandSender.
+     */
+    private void listBackups(final CommandSender sender) {
+        final File backupsFolder = new File(settings.getStringProperty("backuppath"));
+        server.getScheduler().scheduleAsyncDelayedTask(plugin, new Runnable() {
 
-        // Schedule an async task to run for the backup.
-        plugin.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, prepareBackup);
+            @Override
+            public void run() {
+                final List<String> lines = new ArrayList<String>();
+                try {
+                    BackupCatalog catalog = BackupCatalog.open(backupsFolder);
+                    List<BackupCatalog.Record> backups = catalog.list();
+                    if (backups.isEmpty()) {
+                        lines.add("There are no backups.");
+                    } else {
+                        lines.add(backups.size() + " backups, " + (catalog.getTotalSize() / FileUtils.ONE_MB) + "MB in total. Most recent:");
+                        for (int i = backups.size() - 1; i >= Math.max(0, backups.size() - LIST_LENGTH); i--) {
+                            BackupCatalog.Record backup = backups.get(i);
+                            lines.add(backup.getName() + " - " + backup.getType() + ", " + (backup.getSize() / FileUtils.ONE_MB) + "MB"
+                                    + (backup.getWorlds().isEmpty() ? "" : ", " + backup.getWorlds()));
+                        }
+                    }
+                } catch (IOException ioe) {
+                    LogUtils.exceptionLog(ioe, "Failed to read the backup catalog.");
+                    lines.add("Error: Failed to read the backup catalog.");
+                }
+                server.getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+
+                    @Override
+                    public void run() {
+                        for (String line : lines) {
+                            sender.sendMessage(line);
+                        }
+                    }
+                });
+            }
+        });
     }
 
     /**
-     * Reload, and report success.
+     * Shows how far the running backup has got, how fast it is going, and
+     * how long is left. Read speed against compression speed shows if it is
+     * held up by the disks or the CPU.
      *
      * @param sender The CommandSender.
      */
-    public void reloadPlugin(CommandSender sender) {
-        plugin.onDisable();
-        plugin.onLoad();
-        plugin.onEnable();
-        sender.sendMessage("Reloaded ok.");
+    private void showStatus(CommandSender sender) {
+        BackupJob job = jobManager.getCurrentJob();
+        BackupProgress progress = FileUtils.PROGRESS;
+        if (job == null) {
+            BackupJob lastJob = jobManager.getLastJob();
+            if (lastJob == null) {
+                sender.sendMessage("No backup is running.");
+            } else {
+                sender.sendMessage("No backup is running. Backup " + lastJob + " ended "
+                        + formatDuration(System.currentTimeMillis() - lastJob.getFinishTime()) + " ago, after "
+                        + formatDuration(lastJob.getFinishTime() - lastJob.getStartTime()) + ".");
+            }
+            return;
+        }
+        if (job.getState() == BackupJob.State.QUEUED || !progress.isRunning()) {
+            sender.sendMessage("Backup " + job + " is about to start.");
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        sender.sendMessage("Backup " + job + ": " + progress.getPhase() + " for " + formatDuration(now - progress.getPhaseStartTime())
+                + ", " + formatDuration(now - progress.getStartTime()) + " in total.");
+        sender.sendMessage(progress.getFilesDone() + " files, read " + formatBytes(progress.getBytesRead()) + " at "
+                + formatRate(progress.getRate(progress.getBytesRead())) + ", written " + formatBytes(progress.getBytesWritten())
+                + " at " + formatRate(progress.getRate(progress.getBytesWritten())) + ".");
+        if (progress.getCompressedSize() > 0) {
+            sender.sendMessage("Compressed " + formatBytes(progress.getBytesCompressed()) + " at "
+                    + formatRate(progress.getRate(progress.getBytesCompressed())) + ", ratio "
+                    + String.format("%.2f", progress.getCompressionRatio()) + ":1.");
+        }
+        long remaining = progress.getRemainingMillis();
+        if (remaining < 0) {
+            sender.sendMessage("ETA: unknown, there is no earlier backup to go by.");
+        } else if (progress.getBytesRead() > progress.getExpectedBytes()) {
+            sender.sendMessage("ETA: soon, this backup is already larger than the last one.");
+        } else {
+            sender.sendMessage("ETA: about " + formatDuration(remaining) + ", going by the size of the last backup.");
+        }
+        if (job.getMergedRequests() > 0) {
+            sender.sendMessage(job.getMergedRequests() + " more requests will be covered by this backup.");
+        }
+    }
+
+    private static String formatBytes(long bytes) {
+        return bytes >= FileUtils.ONE_GB ? String.format("%.2fGB", (double) bytes / FileUtils.ONE_GB) : (bytes / FileUtils.ONE_MB) + "MB";
+    }
+
+    private static String formatRate(double bytesPerSecond) {
+        return String.format("%.1fMB/s", bytesPerSecond / FileUtils.ONE_MB);
+    }
+
+    private static String formatDuration(long millis) {
+        long seconds = Math.max(0, millis / 1000);
+        if (seconds < 60) {
+            return seconds + "s";
+        }
+        if (seconds < 3600) {
+            return (seconds / 60) + "m " + (seconds % 60) + "s";
+        }
+        return (seconds / 3600) + "h " + (seconds % 3600 / 60) + "m";
+    }
+
+    /**
+     * Starts checking backups in the background. Results are sent back as
+     * each backup is done.
+     *
+     * @param sender The CommandSender.
+     * @param target The backup to check, "all", or null for the most recent.
+     */
+    private void verifyBackups(CommandSender sender, String target) {
+        sender.sendMessage("Checking backups in the background.");
+        server.getScheduler().scheduleAsyncDelayedTask(plugin, new VerifyTask(server, plugin, settings, sender, target));
+    }
+
+    /**
+     * Starts restoring a backup in the background. A world can only be
+     * restored while it is not loaded.
+     *
+     * @param sender The CommandSender.
+     * @param args The backup name, and optionally the world and region.
+     */
+    private void restoreBackup(CommandSender sender, String[] args) {
+        if (args[1].contains("/") || args[1].contains("\\") || args[1].contains("..")) {
+            sender.sendMessage("Error: '" + args[1] + "' is not a backup name.");
+            return;
+        }
+        String worldName = args.length > 2 ? args[2] : null;
+        if (worldName != null && (worldName.contains("/") || worldName.contains("\\") || worldName.contains(".."))) {
+            sender.sendMessage("Error: '" + worldName + "' is not a world name.");
+            return;
+        }
+
+        // Region coordinates, as in the region file name.
+        String regionFile = null;
+        if (args.length > 3) {
+            String[] coords = args[3].split(",");
+            try {
+                if (coords.length != 2) {
+                    throw new NumberFormatException();
+                }
+                regionFile = "r." + Integer.parseInt(coords[0].trim()) + "." + Integer.parseInt(coords[1].trim()) + ".mca";
+            } catch (NumberFormatException nfe) {
+                sender.sendMessage("Error: Region must be x,z, eg. 0,-1");
+                return;
+            }
+        }
+
+        if (worldName != null && server.getWorld(worldName) != null) {
+            sender.sendMessage("Error: World '" + worldName + "' is loaded, unload it before restoring it.");
+            return;
+        }
+        sender.sendMessage(worldName == null ? "Restoring in the background, into the backup folder." : "Restoring in the background.");
+        server.getScheduler().scheduleAsyncDelayedTask(plugin, new RestoreTask(server, plugin, settings, sender, args[1], worldName, regionFile));
     }
 
     /**
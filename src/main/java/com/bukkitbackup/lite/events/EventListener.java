@@ -59,11 +59,10 @@ public class EventListener implements Listener {
          int onlinePlayers = plugin.getServer().getOnlinePlayers().length;
          // Check if it was the last player, and we need to stop backups after this last player leaves.
          if (onlinePlayers == 1 && settings.getBooleanProperty("backupemptyserver")) {
-            prepareBackup.setAsLastBackup(true);
             int intervalInMinutes = settings.getIntervalInMinutes("backupinterval");
             if (intervalInMinutes != 0) {
                 int interval =  intervalInMinutes * 1200;
-                lastBackupID = plugin.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, prepareBackup, interval);
+                lastBackupID = plugin.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, prepareBackup.getLastBackup(), interval);
                 LogUtils.sendLog("Scheduled last backup for " + intervalInMinutes +" minutes.");
             } else {
                 LogUtils.sendLog("Automatic backups are disabled.");
@@ -79,7 +78,6 @@ public class EventListener implements Listener {
         if(lastBackupID != -2) {
             plugin.getServer().getScheduler().cancelTask(lastBackupID);
             lastBackupID = -2;
-            prepareBackup.setAsLastBackup(false);
             LogUtils.sendLog("Stopped last backup, because someone joined.");
         }
     }
@@ -0,0 +1,123 @@
+package com.bukkitbackup.lite.threading;
+
+import com.bukkitbackup.lite.config.Settings;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One backup, from when it is asked for until it is done.
+ *
+ * What to back up, and the settings to do it with, are fixed when the job is
+ * made, so nothing else can change them while it runs. Its state is only
+ * moved on by the {@link BackupJobManager}, and can be read from any thread.
+ */
+public class BackupJob {
+
+    /**
+     * What asked for a backup.
+     */
+    public enum Trigger {
+
+        SCHEDULED, MANUAL, LAST
+    }
+
+    public enum State {
+
+        QUEUED, RUNNING, FINISHED, FAILED
+    }
+
+    private final int id;
+    private final Trigger trigger;
+    private final Settings.Snapshot settings;
+    private final List<String> worlds;
+    private final long requestedTime;
+    private volatile State state = State.QUEUED;
+    private volatile long startTime;
+    private volatile long finishTime;
+    private int mergedRequests; // guarded by this
+
+    BackupJob(int id, Trigger trigger, Settings.Snapshot settings, List<String> worlds) {
+        this.id = id;
+        this.trigger = trigger;
+        this.settings = settings;
+        this.worlds = Collections.unmodifiableList(new ArrayList<String>(worlds));
+        this.requestedTime = System.currentTimeMillis();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Trigger getTrigger() {
+        return trigger;
+    }
+
+    public Settings.Snapshot getSettings() {
+        return settings;
+    }
+
+    /**
+     * Gets the worlds to back up.
+     *
+     * @return The world names, which cannot be changed.
+     */
+    public List<String> getWorlds() {
+        return worlds;
+    }
+
+    public long getRequestedTime() {
+        return requestedTime;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Gets when the job started running.
+     *
+     * @return The time, or 0 if it has not started.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Gets when the job finished.
+     *
+     * @return The time, or 0 if it has not finished.
+     */
+    public long getFinishTime() {
+        return finishTime;
+    }
+
+    /**
+     * Gets how many other requests were merged into this job, because they
+     * came while it was queued or running.
+     *
+     * @return The count.
+     */
+    public synchronized int getMergedRequests() {
+        return mergedRequests;
+    }
+
+    synchronized void merge() {
+        mergedRequests++;
+    }
+
+    void started() {
+        startTime = System.currentTimeMillis();
+        state = State.RUNNING;
+    }
+
+    void finished(boolean succeeded) {
+        finishTime = System.currentTimeMillis();
+        state = succeeded ? State.FINISHED : State.FAILED;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + id + " (" + trigger.name().toLowerCase() + ", " + state.name().toLowerCase() + ")";
+    }
+}
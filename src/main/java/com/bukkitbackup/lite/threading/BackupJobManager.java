@@ -0,0 +1,168 @@
+package com.bukkitbackup.lite.threading;
+
+import com.bukkitbackup.lite.config.Settings;
+import com.bukkitbackup.lite.utils.LogUtils;
+import com.bukkitbackup.lite.utils.PathFilter;
+import java.util.ArrayList;
+import java.util.List;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+public class BackupJobManager {
+
+    private final Server server;
+    private final Plugin plugin;
+    private final Settings settings;
+    private int lastJobId; // guarded by this
+    private BackupJob currentJob; // queued or running, guarded by this
+    private BackupJob lastJob; // the last one to finish, guarded by this
+
+    /**
+     * Runs backups one at a time, whatever asked for them.
+     *
+     * A request that comes while a backup is queued or running is merged into
+     * it rather than starting another, as the two would fight over the temp
+     * folder and the disks for a backup that is about the same.
+     *
+     * @param server The server.
+     * @param plugin The plugin to schedule with.
+     * @param settings Instance of the settings loader.
+     */
+    public BackupJobManager(Server server, Plugin plugin, Settings settings) {
+        this.server = server;
+        this.plugin = plugin;
+        this.settings = settings;
+    }
+
+    /**
+     * Asks for a backup. It is started on the next tick, unless one is
+     * already queued or running, in which case the request is merged into
+     * that one.
+     *
+     * @param trigger What is asking.
+     * @return The job that will do the backup.
+     */
+    public BackupJob submit(BackupJob.Trigger trigger) {
+        final BackupJob job;
+        synchronized (this) {
+            if (currentJob != null) {
+                currentJob.merge();
+                LogUtils.sendLog("Backup " + currentJob + " is already under way, " + trigger.name().toLowerCase() + " backup merged into it.");
+                return currentJob;
+            }
+            Settings.Snapshot snapshot = settings.getSnapshot();
+            job = new BackupJob(++lastJobId, trigger, snapshot, getWorldsToBackup(snapshot));
+            currentJob = job;
+        }
+
+        server.getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+            @Override
+            public void run() {
+                start(job);
+            }
+        });
+        return job;
+    }
+
+    /**
+     * Gets the backup that is queued or running.
+     *
+     * @return The job, or null if there is none.
+     */
+    public synchronized BackupJob getCurrentJob() {
+        return currentJob;
+    }
+
+    /**
+     * Gets the last backup to finish.
+     *
+     * @return The job, or null if none have finished.
+     */
+    public synchronized BackupJob getLastJob() {
+        return lastJob;
+    }
+
+    /**
+     * Marks a job as done, so the next request starts a new one.
+     *
+     * @param job The job.
+     * @param succeeded True if the backup was stored.
+     */
+    synchronized void finished(BackupJob job, boolean succeeded) {
+        job.finished(succeeded);
+        if (currentJob == job) {
+            currentJob = null;
+        }
+        lastJob = job;
+    }
+
+    /**
+     * Starts a job, on the main thread: saves the worlds, turns off saving,
+     * then hands it to a BackupTask.
+     */
+    private void start(BackupJob job) {
+        try {
+            job.started();
+
+            // Notify backup has started.
+            notifyStarted(job.getSettings());
+
+            // Perform final world save before backup, then turn off auto-saving.
+            new SyncSaveAll(server, 1).run();
+
+            // Save all players.
+            server.savePlayers();
+
+            server.getScheduler().scheduleAsyncDelayedTask(plugin, new BackupTask(server, this, job));
+        } catch (RuntimeException re) {
+            finished(job, false);
+            LogUtils.exceptionLog(re, "Failed to start backup " + job + ".");
+        }
+    }
+
+    /**
+     * Lists the worlds to back up, leaving out the ones in skipworlds.
+     */
+    private List<String> getWorldsToBackup(Settings.Snapshot snapshot) {
+
+        // Get skipped worlds form config, which may be patterns such as "*_nether".
+        PathFilter ignoredWorldNames = new PathFilter(null, snapshot.getStringProperty("skipworlds"), true);
+        if (!ignoredWorldNames.isEmpty()) {
+
+            // Log what worlds are disabled.
+            LogUtils.sendLog("The followwing worlds are disabled:");
+            LogUtils.sendLog(ignoredWorldNames.toString());
+        }
+
+        List<String> worldsToBackup = new ArrayList<String>();
+        for (World world : server.getWorlds()) {
+            if ((world.getName() != null) && !world.getName().isEmpty() && (!ignoredWorldNames.matches(world.getName()))) {
+                LogUtils.sendLog("Adding world '" + world.getName() + "' to backup list");
+                worldsToBackup.add(world.getName());
+            }
+        }
+        return worldsToBackup;
+    }
+
+    /**
+     * Notify that the backup has started.
+     */
+    private void notifyStarted(Settings.Snapshot snapshot) {
+        String startBackupMessage = "Started backup";
+
+        // Notify all players, regardless of the permission node.
+        if (snapshot.getBooleanProperty("notifyallplayers")) {
+            server.broadcastMessage(startBackupMessage);
+        } else {
+
+            // If the current player has the right permissions, notify them.
+            for (Player currentplayer : server.getOnlinePlayers()) {
+                if (currentplayer.hasPermission("backup.notify")) {
+                    currentplayer.sendMessage(startBackupMessage);
+                }
+            }
+        }
+    }
+}
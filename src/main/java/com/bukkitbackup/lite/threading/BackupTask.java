@@ -1,15 +1,34 @@
 package com.bukkitbackup.lite.threading;
 
 import com.bukkitbackup.lite.config.Settings;
+import com.bukkitbackup.lite.utils.ArchiveChecksums;
+import com.bukkitbackup.lite.utils.BackupCatalog;
+import com.bukkitbackup.lite.utils.BackupEvents;
+import com.bukkitbackup.lite.utils.BackupManifest;
+import com.bukkitbackup.lite.utils.BackupProgress;
+import com.bukkitbackup.lite.utils.ChangedFileFilter;
+import com.bukkitbackup.lite.utils.ChunkStore;
+import com.bukkitbackup.lite.utils.FileStager;
 import com.bukkitbackup.lite.utils.FileUtils;
 import static com.bukkitbackup.lite.utils.FileUtils.FILE_SEPARATOR;
 import com.bukkitbackup.lite.utils.LogUtils;
+import com.bukkitbackup.lite.utils.ParallelDeflater;
+import com.bukkitbackup.lite.utils.PathFilter;
+import com.bukkitbackup.lite.utils.RegionDeltaCopier;
+import com.bukkitbackup.lite.utils.RetentionPolicy;
 import com.bukkitbackup.lite.utils.SharedUtils;
+import com.bukkitbackup.lite.utils.ZipArchiveWriter;
+import com.bukkitbackup.lite.utils.ZipPipeline;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import org.bukkit.Server;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
@@ -18,13 +37,32 @@ public class BackupTask implements Runnable {
 
     // instances
     private Server server;
+    private BackupJobManager jobManager;
+    private BackupJob job;
     private Plugin plugin;
-    private Settings settings;
+    private Settings.Snapshot settings; // fixed for the whole backup, even if the config is reloaded
     private SyncSaveAll syncSaveAllUtil;
     // settings
     private LinkedList<String> worldsToBackup;
-    private List<String> pluginList;
-    private boolean pluginListMode;
+    private PathFilter pluginFilter; // compiled from pluginlist and pluginlistmode
+    private List<String> worldExcludes; // worldexclude patterns, some for one world only
+    private boolean streamBackup;
+    private boolean chunkStoreTarget;
+    private int compressionThreads;
+    private long compressionBuffer;
+    private int copyThreads;
+    private int copyThreadsPerDisk;
+    private boolean incrementalBackups;
+    private int fullBackupEvery;
+    private boolean regionDeltas;
+    private RegionDeltaCopier regionCopier; // stores changed region files as deltas, null when not in use
+    private FileStager worldStager; // links or clones world files into temp, saving is off while they are used
+    private FileStager pluginStager; // plugins may write at any time, so never hard linked
+    private boolean earlySaveOn;
+    private boolean savingResumed;
+    private boolean stored; // the backup was written, so the job succeeded
+    private ChangedFileFilter changedFilter; // only archives changed files, null for a plain full backup
+    private BackupEvents.Span retentionSpan; // counts the backups removed while pruning
 
     private String worldContainer;
     private String backupName; // the backups name, based on date an time. (default: '20120316-091450')
@@ -37,26 +75,63 @@ public class BackupTask implements Runnable {
     /**
      * The main BackupTask constructor.
      *
-     * @param settings The settings object, to get the plugins settings.
-     * @param strings Strings object, for all string values
-     * @param worldsToBackup The list of worlds that need to be backed up.
      * @param server The server we are backing up.
+     * @param jobManager The job manager, to report back to when done.
+     * @param job The job, with the worlds and settings to back up with.
      */
-    public BackupTask(Server server, Settings settings, LinkedList<String> worldsToBackup) {
+    public BackupTask(Server server, BackupJobManager jobManager, BackupJob job) {
         this.server = server;
         this.plugin = server.getPluginManager().getPlugin("BackupLite");
-        this.settings = settings;
-        this.worldsToBackup = worldsToBackup;
+        this.jobManager = jobManager;
+        this.job = job;
+        this.settings = job.getSettings();
+        this.worldsToBackup = new LinkedList<String>(job.getWorlds());
     }
 
     @Override
     public void run() {
         // Get config.
-        pluginListMode = settings.getBooleanProperty("pluginlistmode");
-        pluginList = Arrays.asList(settings.getStringProperty("pluginlist").split(";"));
+        pluginFilter = new PathFilter(new File("plugins"), settings.getStringProperty("pluginlist"), settings.getBooleanProperty("pluginlistmode"), true);
+        worldExcludes = PathFilter.split(settings.getStringProperty("worldexclude"));
+        streamBackup = settings.getBooleanProperty("streambackup", false);
+        chunkStoreTarget = settings.getStringProperty("backuptarget").trim().equalsIgnoreCase("chunkstore");
+        compressionThreads = Math.max(1, settings.getIntProperty("compressionthreads", 1));
+        int compressionBufferMB = settings.getIntProperty("compressionbuffer", 64);
+        compressionBuffer = compressionBufferMB > 0 ? compressionBufferMB * FileUtils.ONE_MB : ZipPipeline.DEFAULT_BUDGET;
+        copyThreads = Math.max(1, settings.getIntProperty("copythreads", 1));
+        copyThreadsPerDisk = Math.max(1, settings.getIntProperty("copythreadsperdisk", 1));
+        incrementalBackups = settings.getBooleanProperty("incrementalbackups", false);
+        fullBackupEvery = settings.getIntProperty("fullbackupevery", 10);
+        regionDeltas = settings.getBooleanProperty("regiondeltas", false);
+        earlySaveOn = settings.getBooleanProperty("earlysaveon");
+
+        // Limit how hard the disks are worked.
+        int burstMB = settings.getIntProperty("maxrateburst", 8);
+        long burstBytes = (burstMB > 0 ? burstMB : 8) * FileUtils.ONE_MB;
+        FileUtils.READ_LIMIT.setLimit(Math.max(0, settings.getIntProperty("maxreadrate", 0)) * FileUtils.ONE_MB, burstBytes);
+        FileUtils.WRITE_LIMIT.setLimit(Math.max(0, settings.getIntProperty("maxwriterate", 0)) * FileUtils.ONE_MB, burstBytes);
+
+        // Back off while the server is lagging.
+        TickMonitor tickMonitor = null;
+        if (settings.getBooleanProperty("adaptivethrottle")) {
+            int targetTps = settings.getIntProperty("throttletps", 18);
+            tickMonitor = new TickMonitor(server, plugin, targetTps > 0 ? targetTps : 18);
+            tickMonitor.start();
+        }
 
         // Process the backup.
-        processBackup();
+        try {
+            processBackup();
+        } catch (RuntimeException re) {
+            LogUtils.exceptionLog(re, "Backup " + job + " failed.");
+            resumeSaving();
+        } finally {
+            if (tickMonitor != null) {
+                tickMonitor.stop();
+            }
+            FileUtils.PROGRESS.finish();
+            jobManager.finished(job, stored);
+        }
     }
 
     /**
@@ -76,20 +151,89 @@ public class BackupTask implements Runnable {
 
         // Temp folder.
         tempFolder = backupsFolder.concat("temp").concat(FILE_SEPARATOR);
-        SharedUtils.checkFolderAndCreate(new File(tempFolder));
-      
-        // This temp instance.
-        thisTempDestination = tempFolder.concat(backupName).concat(FILE_SEPARATOR);
-        SharedUtils.checkFolderAndCreate(new File(thisTempDestination));
-        
-        // Do the bakcups.
-        backupWorlds();
-        backupPlugins();
 
-        // Compress them.
-        doCopyAndZIP(thisTempDestination, thisFinalDestination);
+        // Count progress for /backup status.
+        FileUtils.PROGRESS.start(getExpectedBytes());
+
+        // The last backup's temp folder may still be being deleted.
+        FileUtils.PROGRESS.setPhase("clearing temp folder");
+        awaitDeletes();
+
+        // Make room for this backup, going by the size of the last one.
+        makeRoomForBackup();
+
+        // Compare against the last backup, if this is an incremental one.
+        // The chunk store already skips unchanged files by itself.
+        if (incrementalBackups && !chunkStoreTarget) {
+            BackupManifest previous = getPreviousManifest();
+            changedFilter = new ChangedFileFilter(null, previous);
+
+            // Region deltas are made while copying, so need the temp folder.
+            if (regionDeltas && previous != null && !streamBackup) {
+                regionCopier = new RegionDeltaCopier(new File(backupsFolder), previous);
+            }
+        }
+
+        List<ZipArchiveWriter.Entry> archivedEntries = null;
+        ChunkStore.Snapshot chunkSnapshot = null;
+        if (chunkStoreTarget) {
+
+            // Store deduplicated chunks instead of a ZIP.
+            chunkSnapshot = backupToChunkStore();
+        } else if (streamBackup) {
+
+            // Write everything straight into the final ZIP.
+            FileUtils.PROGRESS.setPhase("streaming into ZIP");
+            archivedEntries = streamToZIP(thisFinalDestination);
+        } else {
+            SharedUtils.checkFolderAndCreate(new File(tempFolder));
+
+            // This temp instance.
+            thisTempDestination = tempFolder.concat(backupName).concat(FILE_SEPARATOR);
+            SharedUtils.checkFolderAndCreate(new File(thisTempDestination));
+
+            // Take the snapshot of the worlds.
+            FileUtils.PROGRESS.setPhase("copying worlds");
+            long snapshotStart = System.currentTimeMillis();
+            snapshotWorlds();
+
+            // The temp copy is ours now, so the server can save while the rest is done.
+            if (earlySaveOn) {
+                resumeSaving();
+                LogUtils.sendLog("Saving re-enabled after a " + (System.currentTimeMillis() - snapshotStart) + "ms snapshot.");
+            }
+
+            // Do the bakcups.
+            FileUtils.PROGRESS.setPhase("copying plugins");
+            backupPlugins();
+
+            // Compress them.
+            FileUtils.PROGRESS.setPhase("compressing");
+            archivedEntries = doCopyAndZIP(thisTempDestination, thisFinalDestination);
+        }
+
+        // Record what this backup holds, for the next one to compare against.
+        if (changedFilter != null && archivedEntries != null) {
+            saveManifest(archivedEntries);
+        }
+
+        // Keep the checksums worked out while compressing, for /backup verify.
+        if (archivedEntries != null) {
+            try {
+                ArchiveChecksums.save(new File(backupsFolder), backupName, archivedEntries);
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to write backup checksums.");
+            }
+        }
+
+        // Add it to the catalog.
+        if (archivedEntries != null || chunkSnapshot != null) {
+            addToCatalog(archivedEntries, chunkSnapshot);
+            stored = true;
+        }
 
         // Do old backup checking.
+        FileUtils.PROGRESS.setPhase("removing old backups");
         if (!deleteOldBackups()) {
             LogUtils.sendLog("Failed to delete old backups.");
         }
@@ -98,84 +242,361 @@ public class BackupTask implements Runnable {
         finishBackup();
     }
 
+    /**
+     * Copies the worlds into the temp folder. This is the only part of a temp
+     * folder backup that needs saving to be off.
+     */
+    private void snapshotWorlds() {
+
+        // Hard linked world files would change under us once saving is back on.
+        worldStager = new FileStager(!earlySaveOn);
+        pluginStager = new FileStager(false);
+        LogUtils.sendLog("Staging files by " + worldStager.getMode().name().toLowerCase() + ".");
+        try {
+            backupWorlds();
+        } finally {
+            if (regionCopier != null) {
+                regionCopier.close();
+                LogUtils.sendLog("Stored " + regionCopier.getDeltaCount() + " region files as deltas, saving "
+                        + (regionCopier.getBytesSaved() / FileUtils.ONE_MB) + "MB.");
+            }
+        }
+    }
+
+    /**
+     * Turns auto-saving back on, if it is enabled, unless that has already
+     * been done for this backup.
+     */
+    private void resumeSaving() {
+        if (savingResumed) {
+            return;
+        }
+        savingResumed = true;
+        if (settings.getBooleanProperty("enableautosave")) {
+            syncSaveAllUtil = new SyncSaveAll(server, 2);
+            server.getScheduler().scheduleSyncDelayedTask(plugin, syncSaveAllUtil);
+        }
+    }
+
+    /**
+     * Prunes old backups ahead of time if this one, guessed to be the size of
+     * the last one, would not fit in the quota.
+     */
+    private void makeRoomForBackup() {
+        if (settings.getIntProperty("maxbackupsize", 0) <= 0) {
+            return;
+        }
+        File backupDir = new File(backupsFolder);
+        retentionSpan = BackupEvents.retention();
+        try {
+            List<BackupCatalog.Record> previousBackups = BackupCatalog.open(backupDir).list(chunkStoreTarget);
+            if (!previousBackups.isEmpty()) {
+                pruneToQuota(backupDir, previousBackups.get(previousBackups.size() - 1).getSize());
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to make room for the backup.");
+        } finally {
+            retentionSpan.end();
+        }
+    }
+
+    /**
+     * Adds this backup to the catalog.
+     *
+     * @param archivedEntries The entries in this backup's archive, or null.
+     * @param chunkSnapshot This backup's chunk store snapshot, or null.
+     */
+    private void addToCatalog(List<ZipArchiveWriter.Entry> archivedEntries, ChunkStore.Snapshot chunkSnapshot) {
+        File backupDir = new File(backupsFolder);
+        try {
+            BackupCatalog.Record record;
+            if (chunkSnapshot != null) {
+                File chunkIndex = new ChunkStore(backupDir).getIndexFile(backupName);
+                record = new BackupCatalog.Record(backupName, System.currentTimeMillis(), chunkSnapshot.getBytesStored() + chunkIndex.length(),
+                        BackupCatalog.TYPE_CHUNKSTORE, job.getWorlds(), BackupCatalog.checksumFile(chunkIndex));
+            } else {
+                String type = changedFilter != null && changedFilter.isIncremental() ? BackupCatalog.TYPE_INCREMENTAL : BackupCatalog.TYPE_FULL;
+                record = new BackupCatalog.Record(backupName, System.currentTimeMillis(), new File(thisFinalDestination.concat(".zip")).length(),
+                        type, job.getWorlds(), BackupCatalog.checksumEntries(archivedEntries));
+            }
+            BackupCatalog.open(backupDir).add(record);
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to add backup to the catalog.");
+        }
+    }
+
+    /**
+     * Guesses how much this backup will read, going by how much went into the
+     * last one. Files are read twice when they go through the temp folder.
+     *
+     * @return The bytes, or 0 if there is nothing to go by.
+     */
+    private long getExpectedBytes() {
+        File backupDir = new File(backupsFolder);
+        try {
+            List<BackupCatalog.Record> previousBackups = BackupCatalog.open(backupDir).list(chunkStoreTarget);
+            if (previousBackups.isEmpty()) {
+                return 0;
+            }
+            BackupCatalog.Record last = previousBackups.get(previousBackups.size() - 1);
+            long size = 0;
+            if (last.isChunkStore()) {
+                size = new ChunkStore(backupDir).getTotalSize(last.getName());
+            } else {
+                Map<String, ArchiveChecksums.Sum> sums = ArchiveChecksums.load(backupDir, last.getName());
+                if (sums == null) {
+                    size = last.getSize();
+                } else {
+                    for (ArchiveChecksums.Sum sum : sums.values()) {
+                        size += sum.getSize();
+                    }
+                }
+            }
+            return streamBackup ? size : size * 2;
+        } catch (IOException ioe) {
+            return 0;
+        }
+    }
+
+    /**
+     * Gets the manifest to compare this backup against.
+     *
+     * @return The manifest of the last backup, or null if this should be a
+     * full backup.
+     */
+    private BackupManifest getPreviousManifest() {
+        BackupManifest previous;
+        Set<String> requiredBackups;
+        try {
+            previous = BackupManifest.loadLatest(new File(backupsFolder));
+            if (previous == null) {
+                return null;
+            }
+            if (fullBackupEvery > 0 && previous.getChainLength() + 1 >= fullBackupEvery) {
+                return null;
+            }
+            requiredBackups = BackupManifest.getRequiredBackups(new File(backupsFolder), Collections.singleton(previous.getBackupName()));
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to read last backup manifest, doing a full backup.");
+            return null;
+        }
+
+        // Every archive the chain relies on must still be there.
+        for (String referencedBackup : requiredBackups) {
+            if (!new File(backupsFolder.concat(referencedBackup).concat(".zip")).exists()) {
+                LogUtils.sendLog("Backup '" + referencedBackup + "' is missing, doing a full backup.");
+                return null;
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * Writes the manifest for this backup.
+     *
+     * @param archivedEntries The entries written to this backup's archive.
+     */
+    private void saveManifest(List<ZipArchiveWriter.Entry> archivedEntries) {
+        BackupManifest manifest = changedFilter.buildManifest(backupName, archivedEntries);
+        try {
+            manifest.save(new File(backupsFolder));
+            if (manifest.isFull()) {
+                LogUtils.sendLog("Full backup of " + archivedEntries.size() + " files.");
+            } else {
+                LogUtils.sendLog("Incremental backup of " + archivedEntries.size() + " changed files, "
+                        + changedFilter.getInheritedCount() + " unchanged files kept from earlier backups.");
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to write backup manifest.");
+        }
+    }
+
     private void backupWorlds() {
 
+        if (copyThreads > 1 && worldsToBackup.size() > 1) {
+            backupWorldsConcurrently();
+            return;
+        }
+
         // Loops each world that needs to backed up.
         while (!worldsToBackup.isEmpty()) {
 
             // Remove first world from the array and put it into a var.
-            String loopWorldName = worldsToBackup.removeFirst();
+            backupWorld(worldsToBackup.removeFirst());
+        }
+    }
 
-            String worldRootBackupPath = backupsFolder;
-            String worldRootTempPath = tempFolder;
-            String worldTempDestination = thisTempDestination;
+    /**
+     * Copies the worlds on a pool of copyThreads threads, with at most
+     * copythreadsperdisk copies reading from the same disk at once. Each disk
+     * starts that many worlds, and each copy starts the next world on its
+     * disk when it finishes, so no thread waits on a busy disk while an idle
+     * one has worlds left.
+     */
+    private void backupWorldsConcurrently() {
 
-            if (!worldContainer.equals(".")) {
-                worldRootBackupPath = backupsFolder.concat(worldContainer);
-                worldRootTempPath = tempFolder.concat(worldContainer);
-                worldTempDestination = thisTempDestination.concat(worldContainer);
+        // Group the worlds by the disk they are stored on.
+        Map<Object, LinkedList<String>> worldsByDevice = new LinkedHashMap<Object, LinkedList<String>>();
+        while (!worldsToBackup.isEmpty()) {
+            String loopWorldName = worldsToBackup.removeFirst();
+            Object device = getDevice(new File(worldContainer.concat(loopWorldName)));
+            LinkedList<String> deviceWorlds = worldsByDevice.get(device);
+            if (deviceWorlds == null) {
+                deviceWorlds = new LinkedList<String>();
+                worldsByDevice.put(device, deviceWorlds);
             }
+            deviceWorlds.add(loopWorldName);
+        }
 
-                // This worlds backup folder.
-                String loopDestination = worldTempDestination.concat(loopWorldName);
-
-                // Copy the current world into it's backup folder.
-                try {
-                    FileUtils.copyDirectory(worldContainer.concat(loopWorldName), loopDestination);
+        int worldCount = 0;
+        for (LinkedList<String> deviceWorlds : worldsByDevice.values()) {
+            worldCount += deviceWorlds.size();
+        }
 
-                } catch (FileNotFoundException ex) {
-                    LogUtils.exceptionLog(ex);
-                } catch (IOException ioe) {
-                    LogUtils.exceptionLog(ioe);
-                }
-            
+        ExecutorService copyPool = Executors.newFixedThreadPool(copyThreads);
+        CountDownLatch copiesLeft = new CountDownLatch(worldCount);
+        long startTime = System.currentTimeMillis();
+        for (int slot = 0; slot < copyThreadsPerDisk; slot++) {
+            for (LinkedList<String> deviceWorlds : worldsByDevice.values()) {
+                startNextCopy(copyPool, deviceWorlds, copiesLeft);
+            }
         }
+        try {
+            copiesLeft.await();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LogUtils.sendLog("Interrupted while copying worlds.");
+        } finally {
+            copyPool.shutdownNow();
+        }
+        LogUtils.sendLog("Copied all worlds in " + (System.currentTimeMillis() - startTime) + "ms.");
     }
 
     /**
-     * This backs up plugins.
-     *
-     * No checking if they are needed is required, it is already done.
+     * Gets an object identifying the disk a file is stored on.
      *
+     * @param file The file to check.
+     * @return The file store, or the file itself if it cannot be found.
      */
-    private void backupPlugins() {
+    private Object getDevice(File file) {
+        try {
+            return Files.getFileStore(file.toPath());
+        } catch (IOException ioe) {
+            return file;
+        }
+    }
 
-        // The FileFilter instance for skipped/enabled plugins.
-        FileFilter pluginsFileFilter = new FileFilter() {
+    /**
+     * Copies one world into the temp folder, and logs how long it took.
+     *
+     * @param loopWorldName The name of the world.
+     */
+    private void backupWorld(String loopWorldName) {
 
-            @Override
-            public boolean accept(File name) {
+        String worldTempDestination = thisTempDestination;
 
-                // Check if there are plugins listed.
-                if (pluginList.size() > 0 && !pluginList.get(0).isEmpty()) {
+        if (!worldContainer.equals(".")) {
+            worldTempDestination = thisTempDestination.concat(worldContainer);
+        }
 
-                    // Loop each plugin.
-                    for (int i = 0; i < pluginList.size(); i++) {
+        // This worlds backup folder.
+        String loopDestination = worldTempDestination.concat(loopWorldName);
 
-                        String findMe = "plugins".concat(FILE_SEPARATOR).concat(pluginList.get(i));
+        // Copy the current world into it's backup folder.
+        long startTime = System.currentTimeMillis();
+        BackupEvents.Span span = BackupEvents.worldCopy(loopWorldName);
+        try {
+            File worldFolder = new File(worldContainer.concat(loopWorldName));
+            FileUtils.copyDirectory(worldFolder, new File(loopDestination), span.count(getWorldFileFilter(loopWorldName, worldFolder)), true, getWorldCopyHandler());
+            LogUtils.sendLog("Copied world '" + loopWorldName + "' in " + (System.currentTimeMillis() - startTime) + "ms.");
+        } catch (FileNotFoundException ex) {
+            LogUtils.exceptionLog(ex);
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe);
+        } finally {
+            span.end();
+        }
+    }
 
-                        int isFound = name.getPath().indexOf(findMe);
+    /**
+     * Gets the handler for world files, which makes region deltas where it
+     * can, and stages everything else.
+     *
+     * @return The handler.
+     */
+    private FileUtils.FileCopyHandler getWorldCopyHandler() {
+        if (regionCopier == null) {
+            return worldStager;
+        }
+        return new FileUtils.FileCopyHandler() {
+            @Override
+            public boolean copyFile(File srcFile, File destFile) throws IOException {
+                return regionCopier.copyFile(srcFile, destFile) || worldStager.copyFile(srcFile, destFile);
+            }
+        };
+    }
 
-                        // Check if the current plugin matches the string.
-                        if (isFound != -1) {
+    /**
+     * Hands the next world on a disk to the copy pool, if it has any left.
+     *
+     * @param copyPool The copy pool.
+     * @param deviceWorlds The worlds on the disk still to copy.
+     * @param copiesLeft Counted down as each world is copied.
+     */
+    private void startNextCopy(ExecutorService copyPool, LinkedList<String> deviceWorlds, CountDownLatch copiesLeft) {
+        String worldName;
+        synchronized (deviceWorlds) {
+            worldName = deviceWorlds.pollFirst();
+        }
+        if (worldName == null) {
+            return;
+        }
+        try {
+            copyPool.execute(new WorldCopy(copyPool, deviceWorlds, worldName, copiesLeft));
+        } catch (RejectedExecutionException ree) {
+            // The copies were stopped, so the world is left out.
+        }
+    }
 
-                            // Return false for exclude, true to include.
-                            if (pluginListMode) {
-                                return false;
-                            } else {
-                                return true;
-                            }
-                        }
-                    }
-                }
+    /**
+     * Copies a world on the copy pool, then starts the next world on the same
+     * disk.
+     */
+    private class WorldCopy implements Runnable {
+
+        private final ExecutorService copyPool;
+        private final LinkedList<String> deviceWorlds;
+        private final String worldName;
+        private final CountDownLatch copiesLeft;
+
+        WorldCopy(ExecutorService copyPool, LinkedList<String> deviceWorlds, String worldName, CountDownLatch copiesLeft) {
+            this.copyPool = copyPool;
+            this.deviceWorlds = deviceWorlds;
+            this.worldName = worldName;
+            this.copiesLeft = copiesLeft;
+        }
 
-                if (pluginListMode) {
-                    return true;
-                } else {
-                    return false;
-                }
+        @Override
+        public void run() {
+            try {
+                backupWorld(worldName);
+            } finally {
+                copiesLeft.countDown();
+                startNextCopy(copyPool, deviceWorlds, copiesLeft);
             }
-        };
+        }
+    }
+
+    /**
+     * This backs up plugins.
+     *
+     * No checking if they are needed is required, it is already done.
+     *
+     */
+    private void backupPlugins() {
+
+        // The FileFilter instance for skipped/enabled plugins.
+        FileFilter pluginsFileFilter = getPluginsFileFilter();
 
         // Setup Source and destination DIR's.
         File pluginsFolder = new File("plugins");
@@ -195,22 +616,241 @@ public class BackupTask implements Runnable {
         SharedUtils.checkFolderAndCreate(new File(pluginsBackupPath));
 
         // Perform plugin backup.
+        BackupEvents.Span span = BackupEvents.pluginCopy();
         try {
-            if (pluginList.size() > 0 && !pluginList.get(0).isEmpty()) {
-                if (pluginListMode) {
-                    LogUtils.sendLog("The following plugins are disabled:");
-                } else {
-                    LogUtils.sendLog("The following plugins are enabled:");
-                }
-                LogUtils.sendLog(pluginList.toString());
-            }
-            FileUtils.copyDirectory(pluginsFolder, new File(pluginsBackupPath), pluginsFileFilter, true);
+            logPluginList();
+            FileUtils.copyDirectory(pluginsFolder, new File(pluginsBackupPath), span.count(pluginsFileFilter), true, pluginStager);
         } catch (FileNotFoundException ex) {
             LogUtils.exceptionLog(ex);
         } catch (IOException ioe) {
             LogUtils.exceptionLog(ioe);
+        } finally {
+            span.end();
+        }
+
+    }
+
+    /**
+     * Gets the FileFilter for skipped/enabled plugins, from the pluginlist
+     * and pluginlistmode settings, on top of the changed file filter if this
+     * is an incremental backup.
+     *
+     * @return The filter to apply to the plugins folder.
+     */
+    private FileFilter getPluginsFileFilter() {
+        return changedFilter != null ? changedFilter.withFilter(pluginFilter) : pluginFilter;
+    }
+
+    /**
+     * Gets the FileFilter for a world, from the worldexclude patterns that
+     * apply to it. Patterns starting with "name:" only apply to that world.
+     *
+     * @param worldName The name of the world.
+     * @param worldFolder The world's folder, which patterns are matched from.
+     * @return The filter, or null if every file is backed up.
+     */
+    private FileFilter getWorldFileFilter(String worldName, File worldFolder) {
+        List<String> patterns = new ArrayList<String>();
+        for (String pattern : worldExcludes) {
+            int colon = pattern.indexOf(':');
+            if (colon == -1) {
+                patterns.add(pattern);
+            } else if (pattern.substring(0, colon).equals(worldName)) {
+                patterns.add(pattern.substring(colon + 1));
+            }
         }
+        FileFilter worldFilter = patterns.isEmpty() ? null : new PathFilter(worldFolder, patterns, true);
+        if (worldFilter != null && changedFilter != null) {
+            return changedFilter.withFilter(worldFilter);
+        }
+        return worldFilter != null ? worldFilter : changedFilter;
+    }
 
+    /**
+     * Log which plugins are being skipped or included, if any are listed.
+     */
+    private void logPluginList() {
+        if (!pluginFilter.isEmpty()) {
+            if (settings.getBooleanProperty("pluginlistmode")) {
+                LogUtils.sendLog("The following plugins are disabled:");
+            } else {
+                LogUtils.sendLog("The following plugins are enabled:");
+            }
+            LogUtils.sendLog(pluginFilter.toString());
+        }
+    }
+
+    /**
+     * Writes the worlds and plugins directly into the final ZIP file, without
+     * copying them to the temp folder first. Each file is read once from its
+     * live location and written once to the archive, using the same plugin
+     * filter and world list as the temp folder backup.
+     *
+     * @param finalDIR The final destination. (ex: "backups/xxxxxxxx")
+     * @return The entries written, or null if the ZIP failed.
+     */
+    private List<ZipArchiveWriter.Entry> streamToZIP(String finalDIR) {
+
+        ZipArchiveWriter zip = null;
+        ParallelDeflater deflater = new ParallelDeflater(compressionThreads);
+        ZipPipeline pipeline = null;
+        List<ZipArchiveWriter.Entry> archivedEntries = null;
+        BackupEvents.Span span = BackupEvents.archive("zip");
+        try {
+            zip = new ZipArchiveWriter(new File(finalDIR.concat(".zip")));
+            pipeline = new ZipPipeline(zip, deflater, compressionBuffer);
+
+            final ZipPipeline zipPipeline = pipeline;
+            streamSources(new SourceSink() {
+
+                @Override
+                public void addDirectory(File directory, String path, FileFilter filter) throws IOException {
+                    FileUtils.zipDirectory(directory, zipPipeline, path, filter);
+                }
+            });
+
+            pipeline.flush();
+            zip.close();
+            archivedEntries = zip.getEntries();
+            zip = null;
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to ZIP backup: IO Exception.");
+        } finally {
+            if (pipeline != null) {
+                pipeline.abort();
+            }
+            deflater.shutdown();
+            if (zip != null) {
+                try {
+                    zip.close();
+                } catch (IOException ioe) {
+                    LogUtils.exceptionLog(ioe, "Failed to close ZIP file.");
+                }
+            }
+            if (archivedEntries == null) {
+                deleteFailedArchive(finalDIR);
+            }
+            span.end();
+        }
+        return archivedEntries;
+    }
+
+    /**
+     * Walks the worlds and the plugins folder, in place, and passes each one
+     * to the sink with the entry path it would have had in the temp folder.
+     *
+     * @param sink Where to send the directories.
+     * @throws IOException If the plugins folder cannot be added.
+     */
+    private void streamSources(SourceSink sink) throws IOException {
+
+        // Entries are laid out the same as the temp folder would have been.
+        String worldEntryPath = "";
+        if (!server.getWorldContainer().getName().equals(".")) {
+            worldEntryPath = worldContainer;
+        }
+
+        // Loops each world that needs to backed up.
+        while (!worldsToBackup.isEmpty()) {
+            String loopWorldName = worldsToBackup.removeFirst();
+            BackupEvents.Span span = BackupEvents.worldCopy(loopWorldName);
+            try {
+                File worldFolder = new File(worldContainer.concat(loopWorldName));
+                sink.addDirectory(worldFolder, worldEntryPath.concat(loopWorldName).concat(FILE_SEPARATOR), span.count(getWorldFileFilter(loopWorldName, worldFolder)));
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to back up world '" + loopWorldName + "'.");
+            } finally {
+                span.end();
+            }
+        }
+
+        // Touch the folder to update the modified date.
+        File pluginsFolder = new File("plugins");
+        pluginsFolder.setLastModified(System.currentTimeMillis());
+
+        logPluginList();
+        BackupEvents.Span span = BackupEvents.pluginCopy();
+        try {
+            sink.addDirectory(pluginsFolder, "plugins".concat(FILE_SEPARATOR), span.count(getPluginsFileFilter()));
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Backs up into the deduplicating chunk store. Files are read from the
+     * temp folder, staged the same way as for a ZIP, or straight from the
+     * worlds if streaming is on.
+     *
+     * @return The committed snapshot, or null if it failed.
+     */
+    private ChunkStore.Snapshot backupToChunkStore() {
+
+        if (!streamBackup) {
+            SharedUtils.checkFolderAndCreate(new File(tempFolder));
+            thisTempDestination = tempFolder.concat(backupName).concat(FILE_SEPARATOR);
+            SharedUtils.checkFolderAndCreate(new File(thisTempDestination));
+            FileUtils.PROGRESS.setPhase("copying worlds");
+            long snapshotStart = System.currentTimeMillis();
+            snapshotWorlds();
+
+            // The temp copy is ours now, so the server can save while it is chunked.
+            if (earlySaveOn) {
+                resumeSaving();
+                LogUtils.sendLog("Saving re-enabled after a " + (System.currentTimeMillis() - snapshotStart) + "ms snapshot.");
+            }
+            FileUtils.PROGRESS.setPhase("copying plugins");
+            backupPlugins();
+        }
+        FileUtils.PROGRESS.setPhase("storing chunks");
+
+        ChunkStore.Snapshot committed = null;
+        ChunkStore.Snapshot started = null;
+        BackupEvents.Span span = BackupEvents.archive("chunkstore");
+        try {
+            final ChunkStore.Snapshot snapshot = new ChunkStore(new File(backupsFolder)).startBackup(backupName);
+            started = snapshot;
+            if (streamBackup) {
+                streamSources(new SourceSink() {
+
+                    @Override
+                    public void addDirectory(File directory, String path, FileFilter filter) throws IOException {
+                        snapshot.addDirectory(directory, path, filter);
+                    }
+                });
+            } else {
+                snapshot.addDirectory(new File(thisTempDestination), "", null);
+            }
+            snapshot.commit();
+            LogUtils.sendLog("Stored " + snapshot.getNewChunks() + " new chunks (" + (snapshot.getBytesStored() / FileUtils.ONE_KB)
+                    + " KB), reused " + snapshot.getReusedChunks() + " chunks.");
+            committed = snapshot;
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to store backup chunks: IO Exception.");
+            if (started != null) {
+                try {
+                    started.abandon();
+                } catch (IOException abandonIoe) {
+                    LogUtils.exceptionLog(abandonIoe, "Failed to count the stored chunks: IO Exception.");
+                }
+            }
+        } finally {
+            span.end();
+        }
+
+        if (!streamBackup) {
+            deleteLater(new File(thisTempDestination));
+        }
+        return committed;
+    }
+
+    /**
+     * Something that backs up whole directories, such as a ZIP file or the
+     * chunk store.
+     */
+    private interface SourceSink {
+
+        void addDirectory(File directory, String path, FileFilter filter) throws IOException;
     }
 
     /**
@@ -244,26 +884,44 @@ public class BackupTask implements Runnable {
      *
      * @param sourceDIR The source directory. (ex: "backups/temp/xxxxxxxx")
      * @param finalDIR The final destination. (ex: "backups/xxxxxxxx")
+     * @return The entries written, or null if the ZIP failed.
      */
-    private void doCopyAndZIP(String sourceDIR, String finalDIR) {
+    private List<ZipArchiveWriter.Entry> doCopyAndZIP(String sourceDIR, String finalDIR) {
 
-      
-            
+        List<ZipArchiveWriter.Entry> archivedEntries = null;
+        BackupEvents.Span span = BackupEvents.archive("zip");
                 try {
-                    FileUtils.zipDir(sourceDIR, finalDIR);
+                    archivedEntries = FileUtils.zipDir(sourceDIR, finalDIR, compressionThreads, compressionBuffer);
                 } catch (IOException ioe) {
                     LogUtils.exceptionLog(ioe, "Failed to ZIP backup: IO Exception.");
+                } finally {
+                    if (archivedEntries == null) {
+                        deleteFailedArchive(finalDIR);
+                    }
+                    span.end();
                 }
             
-            try {
-                // Delete the original doBackup directory.
-                FileUtils.deleteDirectory(new File(sourceDIR));
-                new File(sourceDIR).delete();
-            } catch (IOException ioe) {
-                LogUtils.exceptionLog(ioe, "Failed to delete temp folder: IO Exception.");
-            }
-        
+            // Delete the original doBackup directory.
+            deleteLater(new File(sourceDIR));
 
+        return archivedEntries;
+    }
+
+    /**
+     * Removes what a failed ZIP left in the backup path. A failed backup is
+     * never added to the catalog, so retention and the quota would never
+     * remove it.
+     *
+     * @param finalDIR The final destination. (ex: "backups/xxxxxxxx")
+     */
+    private void deleteFailedArchive(String finalDIR) {
+        File backupDir = new File(backupsFolder);
+        File zipFile = new File(finalDIR.concat(".zip"));
+        if (zipFile.exists() && !zipFile.delete()) {
+            LogUtils.sendLog("Failed to remove the incomplete backup '" + zipFile.getPath() + "'.");
+        }
+        BackupManifest.getManifestFile(backupDir, backupName).delete();
+        ArchiveChecksums.delete(backupDir, backupName);
     }
 
     /**
@@ -278,62 +936,75 @@ public class BackupTask implements Runnable {
        
 
             // Clean entire directory.
+            retentionSpan = BackupEvents.retention();
             try {
-                cleanFolder(backupDir);
+                if (chunkStoreTarget) {
+                    cleanChunkStore(backupDir);
+                } else {
+                    cleanFolder(backupDir);
+                }
+                pruneToQuota(backupDir, 0);
             } catch (NullPointerException npe) {
                 LogUtils.exceptionLog(npe);
                 return false;
             } catch (IOException ioe) {
                 LogUtils.exceptionLog(ioe);
                 return false;
+            } finally {
+                retentionSpan.end();
             }
         
         return true;
     }
 
+    /**
+     * Removes the backups that the retention policy, or the maxbackups limit,
+     * does not keep, going by the catalog. Any that kept incremental backups
+     * still need are kept too.
+     *
+     * @param backupDir The backup path.
+     * @throws IOException If the catalog or a manifest cannot be read.
+     */
     private void cleanFolder(File backupDir) throws IOException {
 
         // Get properties.
         try {
-            final int maxBackups = settings.getIntProperty("maxbackups");
-
-            // Store all doBackup files in an array.
-            File[] filesList = backupDir.listFiles();
-
-            if (filesList == null) {
-                LogUtils.sendLog("Failed to list backup directory.");
-                return;
-            }
+            BackupCatalog catalog = BackupCatalog.open(backupDir);
+            List<BackupCatalog.Record> backupList = catalog.list(false);
+            List<BackupCatalog.Record> oldList = selectOldBackups(backupList);
 
-            // If the amount of files exceeds the max backups to keep.
-            if (filesList.length > maxBackups) {
-                ArrayList<File> backupList = new ArrayList<File>(filesList.length);
-                backupList.addAll(Arrays.asList(filesList));
+            // If there are backups past their time.
+            if (!oldList.isEmpty()) {
 
-                int maxModifiedIndex;
-                long maxModified;
-
-                //Remove the newst backups from the list.
-                for (int i = 0; i < maxBackups; ++i) {
-                    maxModifiedIndex = 0;
-                    maxModified = backupList.get(0).lastModified();
-                    for (int j = 1; j < backupList.size(); ++j) {
-                        File currentFile = backupList.get(j);
-                        if (currentFile.lastModified() > maxModified) {
-                            maxModified = currentFile.lastModified();
-                            maxModifiedIndex = j;
-                        }
+                // Keep any backups that the kept incremental backups still need.
+                Set<String> oldNames = new HashSet<String>();
+                for (BackupCatalog.Record oldBackup : oldList) {
+                    oldNames.add(oldBackup.getName());
+                }
+                List<String> keptNames = new ArrayList<String>(backupList.size() - oldList.size());
+                for (BackupCatalog.Record backup : backupList) {
+                    if (!oldNames.contains(backup.getName())) {
+                        keptNames.add(backup.getName());
                     }
-                    backupList.remove(maxModifiedIndex);
+                }
+                Set<String> referencedBackups = BackupManifest.getRequiredBackups(backupDir, keptNames);
+                List<String> deleteList = new ArrayList<String>(oldList.size());
+                for (BackupCatalog.Record oldBackup : oldList) {
+                    if (!referencedBackups.contains(oldBackup.getName())) {
+                        deleteList.add(oldBackup.getName());
+                    }
+                }
+                if (deleteList.isEmpty()) {
+                    return;
                 }
 
                 // Inform the user what backups are being deleted.
                 LogUtils.sendLog("Removing old backups:");
-                LogUtils.sendLog(Arrays.toString(backupList.toArray()));
+                LogUtils.sendLog(deleteList.toString());
 
                 // Finally delete the backups.
-                for (File backupToDelete : backupList) {
-                    deleteDir(backupToDelete);
+                for (String backupToDelete : deleteList) {
+                    deleteBackup(backupDir, catalog, catalog.get(backupToDelete));
                 }
             }
         } catch (SecurityException se) {
@@ -341,17 +1012,230 @@ public class BackupTask implements Runnable {
         }
     }
 
-    public boolean deleteDir(File dir) {
-        if (dir.isDirectory()) {
-            String[] children = dir.list();
-            for (int i = 0; i < children.length; i++) {
-                boolean success = deleteDir(new File(dir, children[i]));
-                if (!success) {
-                    return false;
+    /**
+     * Removes the chunk store backups that are not kept, then frees the chunks
+     * that no remaining backup refers to.
+     *
+     * @param backupDir The backup path.
+     * @throws IOException If an index cannot be read.
+     */
+    private void cleanChunkStore(File backupDir) throws IOException {
+        BackupCatalog catalog = BackupCatalog.open(backupDir);
+        List<BackupCatalog.Record> oldList = selectOldBackups(catalog.list(true));
+        if (oldList.isEmpty()) {
+            return;
+        }
+        List<String> oldBackups = new ArrayList<String>(oldList.size());
+        for (BackupCatalog.Record oldBackup : oldList) {
+            oldBackups.add(oldBackup.getName());
+        }
+        LogUtils.sendLog("Removing old backups:");
+        LogUtils.sendLog(oldBackups.toString());
+        for (BackupCatalog.Record oldBackup : oldList) {
+            deleteBackup(backupDir, catalog, oldBackup);
+        }
+        LogUtils.sendLog("Freed " + (new ChunkStore(backupDir).collectGarbage() / FileUtils.ONE_KB) + " KB of unused chunks.");
+    }
+
+    /**
+     * Removes the oldest backups until the backup path fits in the
+     * maxbackupsize quota, with room to spare. Backups that newer ones still
+     * need, and the newest backup, are never removed.
+     *
+     * The chunk store counts at its size on disk, as kept in the catalog. Its
+     * backups share chunks, so removing one frees only its index and the
+     * chunks no other backup uses; those are worked out from the reference
+     * counts, and garbage collected once all the backups to remove are
+     * chosen.
+     *
+     * @param backupDir The backup path.
+     * @param reserveBytes The room to leave, such as for the next backup.
+     * @throws IOException If the catalog or a manifest cannot be read.
+     */
+    private void pruneToQuota(File backupDir, long reserveBytes) throws IOException {
+        int maxBackupSizeGB = settings.getIntProperty("maxbackupsize", 0);
+        if (maxBackupSizeGB <= 0) {
+            return;
+        }
+        long quotaBytes = maxBackupSizeGB * FileUtils.ONE_MB * FileUtils.ONE_KB;
+        BackupCatalog catalog = BackupCatalog.open(backupDir);
+        long usedBytes = getQuotaUsage(catalog);
+        if (usedBytes + reserveBytes <= quotaBytes) {
+            return;
+        }
+
+        // Count how many other backups need each one, reading each manifest once.
+        List<BackupCatalog.Record> backupList = catalog.list();
+        Map<String, Set<String>> requiredBy = new HashMap<String, Set<String>>();
+        Map<String, Integer> neededCount = new HashMap<String, Integer>();
+        for (BackupCatalog.Record backup : backupList) {
+            Set<String> required = backup.isChunkStore() ? Collections.<String>emptySet()
+                    : BackupManifest.getRequiredBackups(backupDir, Collections.singleton(backup.getName()));
+            requiredBy.put(backup.getName(), required);
+            for (String requiredBackup : required) {
+                if (!requiredBackup.equals(backup.getName())) {
+                    Integer count = neededCount.get(requiredBackup);
+                    neededCount.put(requiredBackup, count == null ? 1 : count + 1);
+                }
+            }
+        }
+
+        // Remove the oldest first, skipping any still needed.
+        ChunkStore chunkStore = new ChunkStore(backupDir);
+        ChunkStore.References chunkReferences = null;
+        List<String> deleteList = new ArrayList<String>();
+        for (BackupCatalog.Record backup : backupList.subList(0, backupList.size() - 1)) {
+            if (usedBytes + reserveBytes <= quotaBytes) {
+                break;
+            }
+            Integer count = neededCount.get(backup.getName());
+            if (count != null && count > 0) {
+                continue;
+            }
+            long freedBytes = backup.getSize();
+            if (backup.isChunkStore()) {
+                if (chunkReferences == null) {
+                    chunkReferences = chunkStore.countReferences();
                 }
+                freedBytes = chunkReferences.release(backup.getName());
+            }
+            if (!deleteBackup(backupDir, catalog, backup)) {
+                continue;
             }
+            usedBytes -= freedBytes;
+            deleteList.add(backup.getName());
+            for (String requiredBackup : requiredBy.get(backup.getName())) {
+                Integer requiredCount = neededCount.get(requiredBackup);
+                if (requiredCount != null) {
+                    neededCount.put(requiredBackup, requiredCount - 1);
+                }
+            }
+        }
+
+        if (!deleteList.isEmpty()) {
+            LogUtils.sendLog("Removed backups to stay under the " + maxBackupSizeGB + "GB quota:");
+            LogUtils.sendLog(deleteList.toString());
+        }
+        if (chunkReferences != null) {
+            LogUtils.sendLog("Freed " + (chunkStore.collectGarbage() / FileUtils.ONE_KB) + " KB of unused chunks.");
+            usedBytes = getQuotaUsage(catalog);
+        }
+        if (usedBytes + reserveBytes > quotaBytes) {
+            LogUtils.sendLog("Backups use " + (usedBytes / FileUtils.ONE_MB) + "MB, and cannot be pruned to fit the "
+                    + maxBackupSizeGB + "GB quota.");
+        }
+    }
+
+    /**
+     * Works out how much of the quota the backups use. ZIP backups count at
+     * their size in the catalog, and the chunk store at its size on disk, as
+     * a chunk store backup's catalog size only counts the chunks it added.
+     *
+     * @param catalog The catalog.
+     * @return The bytes used.
+     */
+    private long getQuotaUsage(BackupCatalog catalog) {
+        long usedBytes = catalog.getChunkStoreSize();
+        for (BackupCatalog.Record backup : catalog.list(false)) {
+            usedBytes += backup.getSize();
+        }
+        return usedBytes;
+    }
+
+    /**
+     * Removes one backup's files, and takes it out of the catalog. Chunks of
+     * a chunk store backup are left for garbage collection. A backup whose
+     * files can neither be deleted nor queued for deleting stays in the
+     * catalog.
+     *
+     * @param backupDir The backup path.
+     * @param catalog The catalog.
+     * @param backup The backup to remove.
+     * @return True if the backup was removed.
+     * @throws IOException If the catalog cannot be written.
+     */
+    private boolean deleteBackup(File backupDir, BackupCatalog catalog, BackupCatalog.Record backup) throws IOException {
+        String name = backup.getName();
+        boolean deleted;
+        if (backup.isChunkStore()) {
+            ChunkStore chunkStore = new ChunkStore(backupDir);
+            deleted = chunkStore.deleteBackup(name) || !chunkStore.getIndexFile(name).exists();
+        } else {
+            // A ZIP, or a folder if the backup was not zipped.
+            File backupFile = new File(backupDir, name.concat(".zip"));
+            if (!backupFile.exists()) {
+                backupFile = new File(backupDir, name);
+            }
+            deleted = backupFile.delete() || !backupFile.exists() || deleteLater(backupFile);
+        }
+        if (!deleted) {
+            LogUtils.sendLog("Failed to remove backup " + name + ", it is kept in the catalog.");
+            return false;
+        }
+        if (!backup.isChunkStore()) {
+            BackupManifest.getManifestFile(backupDir, name).delete();
+            ArchiveChecksums.delete(backupDir, name);
+        }
+        catalog.remove(name);
+        retentionSpan.add(1, backup.getSize());
+        return true;
+    }
+
+    /**
+     * Picks the backups that are no longer kept, by the retention policy if
+     * one is set, otherwise by the maxbackups limit.
+     *
+     * @param backupList The backups, oldest first.
+     * @return The backups to remove, oldest first.
+     */
+    private List<BackupCatalog.Record> selectOldBackups(List<BackupCatalog.Record> backupList) {
+        String retentionPolicy = settings.getStringProperty("retentionpolicy").trim();
+        if (!retentionPolicy.isEmpty()) {
+            try {
+                return RetentionPolicy.parse(retentionPolicy).selectExpired(backupList, System.currentTimeMillis());
+            } catch (IllegalArgumentException iae) {
+                LogUtils.sendLog("Invalid retentionpolicy: " + iae.getMessage() + ". Using maxbackups instead.");
+            }
+        }
+        int maxBackups = Math.max(0, settings.getIntProperty("maxbackups"));
+        if (backupList.size() <= maxBackups) {
+            return Collections.emptyList();
+        }
+        return backupList.subList(0, backupList.size() - maxBackups);
+    }
+
+    /**
+     * Hands a file or folder to the deletion service, so the backup does not
+     * wait for it.
+     *
+     * @param file The file or folder.
+     * @return True if it was queued.
+     */
+    private boolean deleteLater(File file) {
+        try {
+            DeletionService.get().delete(file);
+            return true;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Waits for earlier deletes to finish, so none of them are still running
+     * in the temp folder once this backup starts using it.
+     */
+    private void awaitDeletes() {
+        DeletionService deletionService = DeletionService.get();
+        if (deletionService.getPending() == 0) {
+            return;
+        }
+        LogUtils.sendLog("Waiting for " + deletionService.getPending() + " deletes to finish.");
+        try {
+            deletionService.awaitIdle(0);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
         }
-        return dir.delete();
     }
 
     /**
@@ -360,6 +1244,15 @@ public class BackupTask implements Runnable {
      */
     private void finishBackup() {
 
+        // Clear out the temp folder in the background, with anything left from earlier backups.
+        deleteLater(new File(tempFolder));
+
+        BackupProgress progress = FileUtils.PROGRESS;
+        LogUtils.sendLog("Backup " + job + " took " + ((System.currentTimeMillis() - progress.getStartTime()) / 1000) + "s: "
+                + progress.getFilesDone() + " files, read " + (progress.getBytesRead() / FileUtils.ONE_MB) + "MB at "
+                + String.format("%.1f", progress.getRate(progress.getBytesRead()) / FileUtils.ONE_MB) + "MB/s, wrote "
+                + (progress.getBytesWritten() / FileUtils.ONE_MB) + "MB.");
+
         // Create new Runnable instance.
         Runnable run = new Runnable() {
 
@@ -367,14 +1260,7 @@ public class BackupTask implements Runnable {
             public void run() {
 
                 // Should we enable auto-save again?
-                if (settings.getBooleanProperty("enableautosave")) {
-                    syncSaveAllUtil = new SyncSaveAll(server, 2);
-                    server.getScheduler().scheduleSyncDelayedTask(plugin, syncSaveAllUtil);
-                }
-
-                // Delete the temp directory.
-                File tempFile = new File(tempFolder);
-                deleteDir(tempFile);
+                resumeSaving();
 
                 // Notify that it has completed.
                 notifyCompleted();
@@ -0,0 +1,196 @@
+package com.bukkitbackup.lite.threading;
+
+import com.bukkitbackup.lite.utils.BackupEvents;
+import com.bukkitbackup.lite.utils.FileTreeWalker;
+import com.bukkitbackup.lite.utils.FileUtils;
+import com.bukkitbackup.lite.utils.LogUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class DeletionService implements Runnable {
+
+    private static final int QUEUE_SIZE = 64;
+    private static final long PROGRESS_INTERVAL = 10000L;
+    private static DeletionService instance;
+
+    private final BlockingQueue<File> queue = new ArrayBlockingQueue<File>(QUEUE_SIZE);
+    private final Thread worker;
+    private int pending; // queued plus the one being deleted, guarded by this
+    private volatile boolean stopping;
+
+    /**
+     * Deletes files and folders on a background thread, so nothing waits on
+     * a large delete, least of all the main thread.
+     *
+     * Folders are walked with NIO, without following links, and each file
+     * deleted is taken from the write limit. Progress is logged while a large
+     * folder is deleted. The queue is bounded, so callers wait if deletes
+     * fall far behind.
+     */
+    private DeletionService() {
+        worker = new Thread(this, "BackupLite deleter");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Gets the running service, starting it if needed.
+     *
+     * @return The service.
+     */
+    public static synchronized DeletionService get() {
+        if (instance == null) {
+            instance = new DeletionService();
+            instance.worker.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the service without waiting, as it is called from the main
+     * thread. Anything left in the temp folder is cleared by the next backup.
+     */
+    public static void shutdown() {
+        DeletionService service;
+        synchronized (DeletionService.class) {
+            service = instance;
+            instance = null;
+        }
+        if (service == null) {
+            return;
+        }
+        if (service.getPending() > 0) {
+            LogUtils.sendLog("Stopped with " + service.getPending() + " deletes still queued.");
+        }
+        service.stopping = true;
+        service.worker.interrupt();
+    }
+
+    /**
+     * Queues a file or folder to be deleted. Waits if the queue is full.
+     *
+     * @param file The file or folder.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void delete(File file) throws InterruptedException {
+        synchronized (this) {
+            pending++;
+        }
+        try {
+            queue.put(file);
+        } catch (InterruptedException ie) {
+            finished();
+            throw ie;
+        }
+    }
+
+    /**
+     * Gets how many deletes are queued or running.
+     *
+     * @return The count.
+     */
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    /**
+     * Waits until every queued delete is done.
+     *
+     * @param timeoutMillis How long to wait, 0 for as long as it takes.
+     * @return True if nothing is left to delete.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pending > 0) {
+            if (timeoutMillis <= 0) {
+                wait();
+                continue;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        while (!stopping) {
+            File file;
+            try {
+                file = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {
+                continue;
+            }
+            if (file == null) {
+                continue;
+            }
+            try {
+                deleteTree(file);
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to delete " + file + ".");
+            } finally {
+                finished();
+            }
+        }
+    }
+
+    private synchronized void finished() {
+        pending--;
+        notifyAll();
+    }
+
+    private void deleteTree(final File file) throws IOException {
+        if (Files.notExists(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        final long[] deleted = new long[2]; // files, bytes
+        BackupEvents.Span span = BackupEvents.delete(file);
+        try {
+            walkAndDelete(file, start, deleted);
+        } finally {
+            span.add(deleted[0], deleted[1]);
+            span.end();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        if (elapsed >= PROGRESS_INTERVAL) {
+            LogUtils.sendLog("Deleted " + file + ": " + deleted[0] + " files, " + (deleted[1] / FileUtils.ONE_MB) + "MB in " + (elapsed / 1000) + "s.");
+        }
+    }
+
+    private static void walkAndDelete(final File file, final long start, final long[] deleted) throws IOException {
+        FileTreeWalker.walk(file, null, false, new FileTreeWalker.Visitor() {
+
+            private long lastProgress = start;
+
+            @Override
+            public void visitFile(File child, String path, BasicFileAttributes attrs) throws IOException {
+                FileUtils.WRITE_LIMIT.acquire(FileUtils.DELETE_COST);
+                Files.deleteIfExists(child.toPath());
+                FileUtils.PROGRESS.deleted();
+                deleted[0]++;
+                deleted[1] += attrs.size();
+                long now = System.currentTimeMillis();
+                if (now - lastProgress >= PROGRESS_INTERVAL) {
+                    lastProgress = now;
+                    LogUtils.sendLog("Deleting " + file + ": " + deleted[0] + " files, " + (deleted[1] / FileUtils.ONE_MB) + "MB so far.");
+                }
+            }
+
+            @Override
+            public void leaveDirectory(File dir, String path, BasicFileAttributes attrs) throws IOException {
+                Files.deleteIfExists(dir.toPath());
+            }
+        });
+    }
+}
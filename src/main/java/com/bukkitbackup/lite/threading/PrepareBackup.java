@@ -2,72 +2,64 @@ package com.bukkitbackup.lite.threading;
 
 import com.bukkitbackup.lite.config.Settings;
 import com.bukkitbackup.lite.utils.LogUtils;
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
 import org.bukkit.Server;
-import org.bukkit.World;
-import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
 
 public class PrepareBackup implements Runnable {
 
-    public boolean isLastBackup;
-    public boolean isManualBackup;
-    public LinkedList<String> worldsToBackup;
-
     private final Server server;
     private final Settings settings;
+    private final BackupJobManager jobManager;
     private Plugin plugin;
 
-    public PrepareBackup(Server server, Settings settings) {
+    /**
+     * The scheduled backup task. It checks if a backup is needed, then asks
+     * the job manager for one. Manual backups go straight to the job manager.
+     *
+     * @param server The server.
+     * @param settings Instance of the settings loader.
+     * @param jobManager Runs the backups.
+     */
+    public PrepareBackup(Server server, Settings settings, BackupJobManager jobManager) {
         this.server = server;
         this.settings = settings;
+        this.jobManager = jobManager;
         this.plugin = server.getPluginManager().getPlugin("BackupLite");
-        isLastBackup = false;
     }
 
     @Override
     public void run() {
-        checkShouldDoBackup();
+        checkShouldDoBackup(false);
     }
 
     /**
      * This method decides whether the doBackup should be run.
      *
-     * It checks: - Online players. - Bypass node. - Manual doBackup.
+     * It checks: - Online players. - Bypass node. - Last backup.
+     *
+     * It then asks for the doBackup if needed.
      *
-     * It then runs the doBackup if needed.
+     * @param isLastBackup True if this is the last backup after everyone left.
      */
-    private void checkShouldDoBackup() {
+    private void checkShouldDoBackup(boolean isLastBackup) {
 
-        // If it is a manual doBackup, start it, otherwise, perform checks.
-        if (isManualBackup) {
-            prepareBackup();
+        // No player checking.
+        if (settings.getBooleanProperty("backupemptyserver")) {
+            jobManager.submit(isLastBackup ? BackupJob.Trigger.LAST : BackupJob.Trigger.SCHEDULED);
         } else {
 
-            // No player checking.
-            if (settings.getBooleanProperty("backupemptyserver")) {
-                prepareBackup();
-            } else {
+            // Checking online players.
+            if (server.getOnlinePlayers().length == 0) {
 
-                // Checking online players.
-                if (server.getOnlinePlayers().length == 0) {
-                    
-                    // Check if last backup
-                    if (isLastBackup) {
-                        LogUtils.sendLog("Last Backup");
-                        prepareBackup();
-                        isLastBackup = false;
-                    } else {
-                        LogUtils.sendLog("Aborted backup, next backup in:" + Integer.toString(settings.getIntervalInMinutes("backupinterval")));
-                    }
+                // Check if last backup
+                if (isLastBackup) {
+                    LogUtils.sendLog("Last Backup");
+                    jobManager.submit(BackupJob.Trigger.LAST);
                 } else {
-
-                    
-                        prepareBackup();
-                   
+                    LogUtils.sendLog("Aborted backup, next backup in:" + Integer.toString(settings.getIntervalInMinutes("backupinterval")));
                 }
+            } else {
+                jobManager.submit(BackupJob.Trigger.SCHEDULED);
             }
         }
         server.getScheduler().scheduleSyncDelayedTask(plugin, new SyncSaveAll(server, 0));
@@ -75,104 +67,17 @@ public class PrepareBackup implements Runnable {
     }
 
     /**
-     * Prepared for, and starts, a doBackup.
+     * Gets a task that checks for a last backup, after the last player has
+     * left, which runs even though the server is now empty.
+     *
+     * @return The task.
      */
-    protected void prepareBackup() {
-
-        // Notify doBackup has started.
-        notifyStarted();
-
-        // Perform final world save before backup, then turn off auto-saving.
-        server.getScheduler().scheduleSyncDelayedTask(plugin, new SyncSaveAll(server, 1));
-
-        // Save all players.
-        server.savePlayers();
-
-        // Create list of worlds to ignore.
-        List<String> ignoredWorldNames = getIgnoredWorldNames();
-        worldsToBackup = new LinkedList<String>();
-        for (World world : server.getWorlds()) {
-            if ((world.getName() != null) && !world.getName().isEmpty() && (!ignoredWorldNames.contains(world.getName()))) {
-                LogUtils.sendLog("Adding world '" + world.getName() + "' to backup list");
-                worldsToBackup.add(world.getName());
-            }
-        }
-
-        // Scedule the doBackup.
-        server.getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+    public Runnable getLastBackup() {
+        return new Runnable() {
             @Override
             public void run() {
-                server.getScheduler().scheduleAsyncDelayedTask(plugin, new BackupTask(server, settings, worldsToBackup));
-            }
-        });
-        isManualBackup = false;
-    }
-
-    /**
-     * Function to get world names to ignore.
-     *
-     * @return A List[] of the world names we should not be backing up.
-     */
-    private List<String> getIgnoredWorldNames() {
-
-        // Get skipped worlds form config.
-        List<String> worldNames = Arrays.asList(settings.getStringProperty("skipworlds").split(";"));
-
-        // Loop all ignored worlds.
-        if (worldNames.size() > 0 && !worldNames.get(0).isEmpty()) {
-
-            // Log what worlds are disabled.
-            LogUtils.sendLog("The followwing worlds are disabled:");
-            LogUtils.sendLog(worldNames.toString());
-        }
-
-        // Return the world names.
-        return worldNames;
-    }
-
-    /**
-     * Notify that the backup has started.
-     *
-     */
-    private void notifyStarted() {
-
-        // Get message.
-        String startBackupMessage = "Started backup";
-
-        // Check the string is set.
-        if (startBackupMessage != null && !startBackupMessage.trim().isEmpty()) {
-
-            // Notify all players, regardless of the permission node.
-            if (settings.getBooleanProperty("notifyallplayers")) {
-                server.broadcastMessage(startBackupMessage);
-            } else {
-
-                // Get all players.
-                Player[] players = server.getOnlinePlayers();
-                // Loop through all online players.
-                for (int pos = 0; pos < players.length; pos++) {
-                    Player currentplayer = players[pos];
-
-                    // If the current player has the right permissions, notify them.
-                    if (currentplayer.hasPermission("backup.notify")) {
-                        currentplayer.sendMessage(startBackupMessage);
-                    }
-                }
+                checkShouldDoBackup(true);
             }
-        }
-    }
-
-    /**
-     * Set the doBackup as a manual doBackup. IE: Not scheduled.
-     */
-    public void setAsManualBackup() {
-        this.isManualBackup = true;
-    }
-
-    /**
-     * Set the doBackup as a last doBackup.
-     */
-    public void setAsLastBackup(boolean isLast) {
-        this.isLastBackup = isLast;
+        };
     }
 }
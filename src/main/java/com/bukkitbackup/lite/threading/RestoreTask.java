@@ -0,0 +1,266 @@
+package com.bukkitbackup.lite.threading;
+
+import com.bukkitbackup.lite.config.Settings;
+import com.bukkitbackup.lite.utils.BackupCatalog;
+import com.bukkitbackup.lite.utils.BackupRestorer;
+import com.bukkitbackup.lite.utils.FileUtils;
+import com.bukkitbackup.lite.utils.LogUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.bukkit.Server;
+import org.bukkit.command.CommandSender;
+import org.bukkit.plugin.Plugin;
+
+public class RestoreTask implements Runnable {
+
+    private static final AtomicBoolean running = new AtomicBoolean();
+    private static final int FAILURES_SHOWN = 5;
+    private static final String RESTORING_SUFFIX = ".restoring";
+    private static final String OLD_SUFFIX = ".old";
+
+    private final Server server;
+    private final Plugin plugin;
+    private final Settings settings;
+    private final CommandSender sender;
+    private final String backupName;
+    private final String worldName;
+    private final String regionFile;
+
+    /**
+     * Restores files from a backup, off the main thread, and reports to
+     * whoever asked. Only one restore runs at a time.
+     *
+     * A world is restored beside itself, then swapped in, so files added since
+     * the backup do not stay behind; it must not be loaded. A region is
+     * restored in place. A whole backup is restored into its own folder in
+     * the backup path, as the server's files are in use while it runs.
+     *
+     * @param server The server.
+     * @param plugin The plugin to schedule messages with.
+     * @param settings Instance of the settings loader.
+     * @param sender Who to report to.
+     * @param backupName The backup to restore.
+     * @param worldName The world to restore, or null for the whole backup.
+     * @param regionFile The name of the one region file to restore, such as
+     * "r.0.-1.mca", or null for the whole world.
+     */
+    public RestoreTask(Server server, Plugin plugin, Settings settings, CommandSender sender, String backupName, String worldName, String regionFile) {
+        this.server = server;
+        this.plugin = plugin;
+        this.settings = settings;
+        this.sender = sender;
+        this.backupName = backupName.endsWith(".zip") ? backupName.substring(0, backupName.length() - 4) : backupName;
+        this.worldName = worldName;
+        this.regionFile = regionFile;
+    }
+
+    @Override
+    public void run() {
+        if (!running.compareAndSet(false, true)) {
+            tell("A restore is already running.");
+            return;
+        }
+        try {
+            restoreBackup();
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void restoreBackup() {
+        File backupsFolder = new File(settings.getStringProperty("backuppath"));
+        try {
+            if (BackupCatalog.open(backupsFolder).get(backupName) == null) {
+                tell("Error: There is no backup named '" + backupName + "'.");
+                return;
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to read the backup catalog.");
+            tell("Error: Failed to read the backup catalog.");
+            return;
+        }
+        File worldFolder = worldName == null ? null : new File(server.getWorldContainer(), worldName);
+        boolean swapWorld = worldName != null && regionFile == null;
+        File destination;
+        if (worldName == null) {
+            destination = new File(new File(backupsFolder, BackupRestorer.RESTORE_FOLDER), backupName);
+        } else if (swapWorld) {
+            destination = new File(server.getWorldContainer(), worldName.concat(RESTORING_SUFFIX));
+            if (!clearFolder(destination)) {
+                return;
+            }
+        } else {
+            destination = worldFolder;
+        }
+        int threads = settings.getIntProperty("restorethreads", 4);
+        BackupRestorer restorer = new BackupRestorer(backupsFolder, threads > 0 ? threads : 4);
+
+        long start = System.currentTimeMillis();
+        int restored;
+        try {
+            restored = restorer.restore(backupName, getTarget(destination));
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to restore backup '" + backupName + "'.");
+            tell("Error: Failed to restore '" + backupName + "', " + ioe.getMessage());
+            if (swapWorld) {
+                clearFolder(destination);
+            }
+            return;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            tell("Restore was stopped.");
+            if (swapWorld) {
+                clearFolder(destination);
+            }
+            return;
+        }
+
+        long seconds = (System.currentTimeMillis() - start) / 1000;
+        List<String> failures = restorer.getFailures();
+        if (restored == 0 && failures.isEmpty()) {
+            tell("Nothing in '" + backupName + "' matched, no files were restored.");
+            if (swapWorld) {
+                clearFolder(destination);
+            }
+            return;
+        }
+        for (String failure : failures) {
+            LogUtils.sendLog("Restore of '" + backupName + "': " + failure);
+        }
+
+        // Only a complete world replaces the one there.
+        if (swapWorld) {
+            if (!failures.isEmpty()) {
+                clearFolder(destination);
+                tellFailures(failures);
+                tell("World '" + worldName + "' was left as it was.");
+                return;
+            }
+            try {
+                swapInWorld(destination, worldFolder);
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to swap in the restored world '" + worldName + "'.");
+                tell("Error: Failed to swap in the restored world, " + ioe.getMessage());
+                return;
+            }
+            destination = worldFolder;
+        }
+
+        String message = "Restored " + restored + " files (" + (restorer.getBytesRestored() / FileUtils.ONE_MB) + "MB) from '"
+                + backupName + "' to " + destination.getPath() + " in " + seconds + "s.";
+        LogUtils.sendLog(message);
+        tell(message);
+        if (!failures.isEmpty()) {
+            tellFailures(failures);
+        }
+    }
+
+    private void tellFailures(List<String> failures) {
+        tell(failures.size() + " files could not be restored, see the log.");
+        for (String failure : failures.subList(0, Math.min(FAILURES_SHOWN, failures.size()))) {
+            tell("  " + failure);
+        }
+    }
+
+    /**
+     * Moves the world aside, moves the restored world into its place, then
+     * deletes the old one. If the restored world cannot be moved in, the old
+     * one is put back.
+     */
+    private void swapInWorld(File restoredFolder, File worldFolder) throws IOException {
+        File oldFolder = new File(worldFolder.getPath().concat(OLD_SUFFIX));
+        FileUtils.deleteDirectory(oldFolder);
+        if (worldFolder.exists() && !worldFolder.renameTo(oldFolder)) {
+            throw new IOException("could not move " + worldFolder + " aside");
+        }
+        if (!restoredFolder.renameTo(worldFolder)) {
+            oldFolder.renameTo(worldFolder);
+            throw new IOException("could not move " + restoredFolder + " to " + worldFolder);
+        }
+        try {
+            FileUtils.deleteDirectory(oldFolder);
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to delete the old world " + oldFolder + ".");
+        }
+    }
+
+    /**
+     * Deletes a folder left by a restore, reporting if it cannot be.
+     *
+     * @return True if it is gone.
+     */
+    private boolean clearFolder(File folder) {
+        try {
+            FileUtils.deleteDirectory(folder);
+            return true;
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to delete " + folder + ".");
+            tell("Error: Failed to delete " + folder.getPath() + ", see the log.");
+            return false;
+        }
+    }
+
+    /**
+     * Picks the files asked for. Entries are named by their path from the
+     * server folder, so a world's files are found under its name, or under the
+     * world container's name and then its name.
+     */
+    private BackupRestorer.Target getTarget(final File destination) {
+        if (worldName == null) {
+            return new BackupRestorer.Target() {
+
+                @Override
+                public File getDestination(String path) {
+                    return new File(destination, stripCurrentFolder(path.replace('\\', '/')));
+                }
+            };
+        }
+
+        String containerName = server.getWorldContainer().getName();
+        final String worldPrefix = worldName.concat("/");
+        final String containerPrefix = containerName.equals(".") ? null : containerName.concat("/").concat(worldPrefix);
+        return new BackupRestorer.Target() {
+
+            @Override
+            public File getDestination(String path) {
+                path = stripCurrentFolder(path.replace('\\', '/'));
+                String worldPath;
+                if (path.startsWith(worldPrefix)) {
+                    worldPath = path.substring(worldPrefix.length());
+                } else if (containerPrefix != null && path.startsWith(containerPrefix)) {
+                    worldPath = path.substring(containerPrefix.length());
+                } else {
+                    return null;
+                }
+
+                // The nether and end keep their regions under DIM-1/ and DIM1/.
+                if (regionFile != null && !worldPath.equals("region/".concat(regionFile)) && !worldPath.endsWith("/region/".concat(regionFile))) {
+                    return null;
+                }
+                return new File(destination, worldPath);
+            }
+        };
+    }
+
+    private static String stripCurrentFolder(String path) {
+        while (path.startsWith("./")) {
+            path = path.substring(2);
+        }
+        return path;
+    }
+
+    /**
+     * Sends a message from the main thread.
+     */
+    private void tell(final String message) {
+        server.getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+
+            @Override
+            public void run() {
+                sender.sendMessage(message);
+            }
+        });
+    }
+}
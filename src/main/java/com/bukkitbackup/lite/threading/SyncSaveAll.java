@@ -1,5 +1,7 @@
 package com.bukkitbackup.lite.threading;
 
+import com.bukkitbackup.lite.utils.BackupEvents;
+import java.util.Arrays;
 import org.bukkit.Server;
 import org.bukkit.command.ConsoleCommandSender;
 
@@ -31,20 +33,29 @@ public class SyncSaveAll implements Runnable {
 
         // Switch for the modes, and perform the command
         // @TODO Find a better method of passing the option.
+        String[] commands;
         switch (mode) {
             case 0:
-                server.dispatchCommand(consoleCommandSender, "save-all");
+                commands = new String[]{"save-all"};
                 break;
             case 1:
-                server.dispatchCommand(consoleCommandSender, "save-all");
-                server.dispatchCommand(consoleCommandSender, "save-off");
+                commands = new String[]{"save-all", "save-off"};
                 break;
             case 2:
-                server.dispatchCommand(consoleCommandSender, "save-on");
+                commands = new String[]{"save-on"};
                 break;
             default:
-                server.dispatchCommand(consoleCommandSender, "save-all");
+                commands = new String[]{"save-all"};
                 break;
         }
+
+        BackupEvents.Span span = BackupEvents.worldSave(Arrays.toString(commands));
+        try {
+            for (String command : commands) {
+                server.dispatchCommand(consoleCommandSender, command);
+            }
+        } finally {
+            span.end();
+        }
     }
 }
@@ -0,0 +1,143 @@
+package com.bukkitbackup.lite.threading;
+
+import com.bukkitbackup.lite.utils.FileUtils;
+import com.bukkitbackup.lite.utils.LogUtils;
+import com.bukkitbackup.lite.utils.RateLimiter;
+import org.bukkit.Server;
+import org.bukkit.plugin.Plugin;
+
+public class TickMonitor implements Runnable {
+
+    private static final int SAMPLE_TICKS = 20;
+    private static final double MIN_RATE = FileUtils.ONE_MB / 4;
+
+    private final Server server;
+    private final Plugin plugin;
+    private final double targetTps;
+    private final Control readControl = new Control(FileUtils.READ_LIMIT);
+    private final Control writeControl = new Control(FileUtils.WRITE_LIMIT);
+    private volatile int taskID = -1;
+    private long lastSample;
+    // what was applied, for the log
+    private double lowestTps = SAMPLE_TICKS;
+    private long throttledMillis;
+
+    /**
+     * Watches the server's tick rate while a backup runs, and throttles the
+     * backup's reads and writes when the server falls behind.
+     *
+     * The main thread runs this every second, and times how long the last 20
+     * ticks took. Each second under the target TPS halves the throttle, down
+     * to a crawl, which also holds back the copy and compression workers, as
+     * they read and write through the same limits. Each second at or over the
+     * target lets it back up by half again, until it is lifted.
+     *
+     * @param server The server to watch.
+     * @param plugin The plugin to schedule with.
+     * @param targetTps The TPS to keep the server at.
+     */
+    public TickMonitor(Server server, Plugin plugin, double targetTps) {
+        this.server = server;
+        this.plugin = plugin;
+        this.targetTps = targetTps;
+    }
+
+    /**
+     * Starts watching ticks.
+     */
+    public void start() {
+        lastSample = System.nanoTime();
+        FileUtils.READ_LIMIT.takeBytesPassed();
+        FileUtils.WRITE_LIMIT.takeBytesPassed();
+        taskID = server.getScheduler().scheduleSyncRepeatingTask(plugin, this, SAMPLE_TICKS, SAMPLE_TICKS);
+    }
+
+    /**
+     * Stops watching, lifts any throttle, and logs how much the backup was
+     * slowed down.
+     */
+    public void stop() {
+        if (taskID != -1) {
+            server.getScheduler().cancelTask(taskID);
+            taskID = -1;
+        }
+        synchronized (this) {
+            readControl.lift();
+            writeControl.lift();
+            if (throttledMillis > 0) {
+                LogUtils.sendLog("Backup was slowed down for " + (throttledMillis / 1000) + "s because of lag. (Lowest TPS: "
+                        + String.format("%.1f", lowestTps) + ", lowest read rate: " + formatRate(readControl.lowestRate)
+                        + ", lowest write rate: " + formatRate(writeControl.lowestRate) + ")");
+            }
+        }
+    }
+
+    @Override
+    public synchronized void run() {
+        if (taskID == -1) {
+            return;
+        }
+        long now = System.nanoTime();
+        long elapsedNanos = now - lastSample;
+        lastSample = now;
+        if (elapsedNanos <= 0) {
+            return;
+        }
+
+        double tps = Math.min(SAMPLE_TICKS, SAMPLE_TICKS * 1000000000D / elapsedNanos);
+        lowestTps = Math.min(lowestTps, tps);
+        boolean lagging = tps < targetTps;
+        readControl.adjust(lagging, elapsedNanos);
+        writeControl.adjust(lagging, elapsedNanos);
+        if (readControl.isThrottled() || writeControl.isThrottled()) {
+            throttledMillis += elapsedNanos / 1000000L;
+        }
+    }
+
+    private static String formatRate(double bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            return "not limited";
+        }
+        return String.format("%.2fMB/s", bytesPerSecond / FileUtils.ONE_MB);
+    }
+
+    /**
+     * The throttle on one limiter.
+     */
+    private static class Control {
+
+        private final RateLimiter limiter;
+        private double ceiling; // the rate to climb back to before lifting the throttle
+        private double lowestRate;
+
+        Control(RateLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        void adjust(boolean lagging, long elapsedNanos) {
+            double throughput = limiter.takeBytesPassed() * 1000000000D / elapsedNanos;
+            double throttle = limiter.getThrottle();
+            if (lagging) {
+                if (throttle <= 0) {
+                    // Start from what the backup was getting through.
+                    ceiling = limiter.getRate() > 0 ? limiter.getRate() : Math.max(throughput, MIN_RATE * 2);
+                    throttle = limiter.getRate() > 0 ? Math.min(limiter.getRate(), Math.max(throughput, MIN_RATE)) : Math.max(throughput, MIN_RATE);
+                }
+                throttle = Math.max(MIN_RATE, throttle / 2);
+                limiter.setThrottle(throttle);
+                lowestRate = lowestRate <= 0 ? throttle : Math.min(lowestRate, throttle);
+            } else if (throttle > 0) {
+                throttle *= 1.5;
+                limiter.setThrottle(throttle >= ceiling ? 0 : throttle);
+            }
+        }
+
+        boolean isThrottled() {
+            return limiter.getThrottle() > 0;
+        }
+
+        void lift() {
+            limiter.setThrottle(0);
+        }
+    }
+}
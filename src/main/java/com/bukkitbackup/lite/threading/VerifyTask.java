@@ -0,0 +1,167 @@
+package com.bukkitbackup.lite.threading;
+
+import com.bukkitbackup.lite.config.Settings;
+import com.bukkitbackup.lite.utils.ArchiveChecksums;
+import com.bukkitbackup.lite.utils.BackupCatalog;
+import com.bukkitbackup.lite.utils.BackupVerifier;
+import com.bukkitbackup.lite.utils.ChunkStore;
+import com.bukkitbackup.lite.utils.FileUtils;
+import com.bukkitbackup.lite.utils.LogUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.bukkit.Server;
+import org.bukkit.command.CommandSender;
+import org.bukkit.plugin.Plugin;
+
+public class VerifyTask implements Runnable {
+
+    private static final AtomicBoolean running = new AtomicBoolean();
+    private static final int PROBLEMS_SHOWN = 5;
+
+    private final Server server;
+    private final Plugin plugin;
+    private final Settings settings;
+    private final CommandSender sender;
+    private final String target;
+
+    /**
+     * Checks backups can be read back, off the main thread, and reports to
+     * whoever asked. Only one check runs at a time.
+     *
+     * @param server The server.
+     * @param plugin The plugin to schedule messages with.
+     * @param settings Instance of the settings loader.
+     * @param sender Who to report to.
+     * @param target The backup to check, "all" for every backup, or null for
+     * the most recent.
+     */
+    public VerifyTask(Server server, Plugin plugin, Settings settings, CommandSender sender, String target) {
+        this.server = server;
+        this.plugin = plugin;
+        this.settings = settings;
+        this.sender = sender;
+        this.target = target;
+    }
+
+    @Override
+    public void run() {
+        if (!running.compareAndSet(false, true)) {
+            tell("A backup check is already running.");
+            return;
+        }
+        try {
+            verifyBackups();
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void verifyBackups() {
+        File backupsFolder = new File(settings.getStringProperty("backuppath"));
+        List<BackupCatalog.Record> backups;
+        try {
+            backups = selectBackups(BackupCatalog.open(backupsFolder));
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to read the backup catalog.");
+            tell("Error: Failed to read the backup catalog.");
+            return;
+        }
+        if (backups.isEmpty()) {
+            tell(target == null || target.equals("all") ? "There are no backups to check." : "Error: No backup named '" + target + "'.");
+            return;
+        }
+
+        int threads = settings.getIntProperty("verifythreads", 2);
+        int rate = settings.getIntProperty("verifyrate", 20);
+        BackupVerifier verifier = new BackupVerifier(threads > 0 ? threads : 2, rate > 0 ? rate * FileUtils.ONE_MB : 0);
+        tell("Checking " + backups.size() + " backups...");
+        int failed = 0;
+        try {
+            for (BackupCatalog.Record backup : backups) {
+                if (!verifyBackup(verifier, backupsFolder, backup)) {
+                    failed++;
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            tell("Backup check was stopped.");
+            return;
+        } finally {
+            verifier.shutdown();
+        }
+        tell(failed == 0 ? "All " + backups.size() + " backups are intact." : failed + " of " + backups.size() + " backups have problems, see the log.");
+    }
+
+    private List<BackupCatalog.Record> selectBackups(BackupCatalog catalog) {
+        if (target == null) {
+            BackupCatalog.Record latest = catalog.getLatest();
+            return latest == null ? Collections.<BackupCatalog.Record>emptyList() : Collections.singletonList(latest);
+        }
+        if (target.equals("all")) {
+            return catalog.list();
+        }
+        String name = target.endsWith(".zip") ? target.substring(0, target.length() - 4) : target;
+        BackupCatalog.Record backup = catalog.get(name);
+        return backup == null ? Collections.<BackupCatalog.Record>emptyList() : Collections.singletonList(backup);
+    }
+
+    /**
+     * Checks one backup, and reports how it went.
+     *
+     * @return True if the backup is intact.
+     */
+    private boolean verifyBackup(BackupVerifier verifier, File backupsFolder, BackupCatalog.Record backup) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        BackupVerifier.Result result;
+        String checked;
+        try {
+            if (backup.isChunkStore()) {
+                result = verifier.verifyChunkStore(new ChunkStore(backupsFolder), backup.getName());
+                checked = result.getChecked() + " chunks";
+            } else {
+                File archive = new File(backupsFolder, backup.getName().concat(".zip"));
+                if (!archive.exists()) {
+                    tell(backup.getName() + ": not an archive, skipped.");
+                    return true;
+                }
+                result = verifier.verifyArchive(archive, ArchiveChecksums.load(backupsFolder, backup.getName()));
+                checked = result.getChecked() + " files, " + (result.getBytesChecked() / FileUtils.ONE_MB) + "MB";
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to check backup '" + backup.getName() + "'.");
+            tell(backup.getName() + ": unreadable, " + ioe.getMessage());
+            return false;
+        }
+
+        long seconds = (System.currentTimeMillis() - start) / 1000;
+        if (result.isOk()) {
+            tell(backup.getName() + ": OK (" + checked + " in " + seconds + "s)");
+            return true;
+        }
+        List<String> problems = result.getProblems();
+        for (String problem : problems) {
+            LogUtils.sendLog("Backup '" + backup.getName() + "': " + problem);
+        }
+        tell(backup.getName() + ": " + problems.size() + " problems (" + checked + " in " + seconds + "s)");
+        for (String problem : problems.subList(0, Math.min(PROBLEMS_SHOWN, problems.size()))) {
+            tell("  " + problem);
+        }
+        return false;
+    }
+
+    /**
+     * Sends a message from the main thread.
+     */
+    private void tell(final String message) {
+        server.getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+
+            @Override
+            public void run() {
+                sender.sendMessage(message);
+            }
+        });
+    }
+}
@@ -0,0 +1,142 @@
+package com.bukkitbackup.lite.utils;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The checksums of every entry in a backup's archive, kept beside it so the
+ * archive can be checked later.
+ *
+ * The CRC-32 and size of each entry are worked out while it is compressed, so
+ * writing this file needs no extra read of the backup. The checksums are kept
+ * apart from the archive, so damage to the archive's own directory is found as
+ * well as damage to the data.
+ */
+public class ArchiveChecksums {
+
+    /**
+     * The folder, inside the backup path, that checksum files are kept in.
+     */
+    public static final String CHECKSUM_FOLDER = "checksums";
+    private static final String CHECKSUM_EXTENSION = ".sums";
+    private static final String HEADER = "# BackupLite checksums 1";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ArchiveChecksums() {
+    }
+
+    /**
+     * Gets the checksum file of a backup.
+     *
+     * @param backupsFolder The backup path.
+     * @param backupName The name of the backup.
+     * @return The checksum file.
+     */
+    public static File getChecksumFile(File backupsFolder, String backupName) {
+        return new File(new File(backupsFolder, CHECKSUM_FOLDER), backupName.concat(CHECKSUM_EXTENSION));
+    }
+
+    /**
+     * Writes the checksums of a backup's archive.
+     *
+     * @param backupsFolder The backup path.
+     * @param backupName The name of the backup.
+     * @param entries The entries written to the archive.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void save(File backupsFolder, String backupName, List<ZipArchiveWriter.Entry> entries) throws IOException {
+        File checksumFile = getChecksumFile(backupsFolder, backupName);
+        SharedUtils.checkFolderAndCreate(checksumFile.getParentFile());
+        File partFile = new File(checksumFile.getPath().concat(".part"));
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(partFile), UTF8));
+        try {
+            writer.write(HEADER);
+            writer.newLine();
+            for (ZipArchiveWriter.Entry entry : entries) {
+                // The name goes last, so it may hold anything.
+                writer.write(Long.toHexString(entry.getCrc()) + "\t" + entry.getSize() + "\t" + entry.getName());
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+        if (!partFile.renameTo(checksumFile)) {
+            checksumFile.delete();
+            if (!partFile.renameTo(checksumFile)) {
+                partFile.delete();
+                throw new IOException("Failed to write checksums to " + checksumFile);
+            }
+        }
+    }
+
+    /**
+     * Reads the checksums of a backup's archive.
+     *
+     * @param backupsFolder The backup path.
+     * @param backupName The name of the backup.
+     * @return The checksums by entry name, in archive order, or null if the
+     * backup has none.
+     * @throws IOException If the file cannot be read.
+     */
+    public static Map<String, Sum> load(File backupsFolder, String backupName) throws IOException {
+        File checksumFile = getChecksumFile(backupsFolder, backupName);
+        if (!checksumFile.exists()) {
+            return null;
+        }
+        Map<String, Sum> sums = new LinkedHashMap<String, Sum>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(checksumFile), UTF8));
+        try {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Unknown checksum format in " + checksumFile);
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 3);
+                if (fields.length != 3) {
+                    throw new IOException("Bad checksum record in " + checksumFile + ": " + line);
+                }
+                sums.put(fields[2], new Sum(Long.parseLong(fields[0], 16), Long.parseLong(fields[1])));
+            }
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Bad checksum record in " + checksumFile, nfe);
+        } finally {
+            reader.close();
+        }
+        return sums;
+    }
+
+    /**
+     * Removes the checksums of a backup.
+     *
+     * @param backupsFolder The backup path.
+     * @param backupName The name of the backup.
+     */
+    public static void delete(File backupsFolder, String backupName) {
+        getChecksumFile(backupsFolder, backupName).delete();
+    }
+
+    /**
+     * The checksum of one entry.
+     */
+    public static class Sum {
+
+        private final long crc;
+        private final long size;
+
+        public Sum(long crc, long size) {
+            this.crc = crc;
+            this.size = size;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package com.bukkitbackup.lite.utils;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * The record of every backup in the backup path: when it was made, how big it
+ * is, what type it is, which worlds it holds and a checksum of its contents.
+ *
+ * Changes are appended to a log, one line each, so recording a backup never
+ * rewrites the whole catalog. Once the log gets long, the live records are
+ * written out to a compact index and the log starts again. Loading reads the
+ * index, then replays the log over it, so a crash part way through compacting
+ * loses nothing.
+ *
+ * The catalog also keeps the size of the chunk store, as a running total
+ * updated when backups are stored and chunks freed. Its backups share chunks,
+ * so their sizes do not add up to it, and measuring it would mean listing
+ * every chunk.
+ *
+ * In memory, backups are kept sorted by time, so finding the newest or oldest
+ * is O(log n) however many there are. The catalog for a backup path is loaded
+ * once and shared.
+ */
+public class BackupCatalog {
+
+    /**
+     * The catalog's files, inside the backup path.
+     */
+    public static final String LOG_FILE = "catalog.log";
+    public static final String INDEX_FILE = "catalog.index";
+    /**
+     * Backup types.
+     */
+    public static final String TYPE_FULL = "full";
+    public static final String TYPE_INCREMENTAL = "incremental";
+    public static final String TYPE_CHUNKSTORE = "chunkstore";
+    private static final String INDEX_HEADER = "# BackupLite catalog 1";
+    private static final String STORE_PREFIX = "store\t";
+    private static final int COMPACT_THRESHOLD = 256;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Map<String, BackupCatalog> openCatalogs = new HashMap<String, BackupCatalog>();
+
+    private final File backupsFolder;
+    private final File logFile;
+    private final File indexFile;
+    private final Map<String, Record> byName = new HashMap<String, Record>();
+    private final TreeSet<Record> byTime = new TreeSet<Record>(new Comparator<Record>() {
+
+        @Override
+        public int compare(Record a, Record b) {
+            if (a.time != b.time) {
+                return a.time < b.time ? -1 : 1;
+            }
+            return a.name.compareTo(b.name);
+        }
+    });
+    private long totalSize;
+    private long chunkStoreSize = -1; // -1 until read or measured
+    private int logLines;
+
+    private BackupCatalog(File backupsFolder) {
+        this.backupsFolder = backupsFolder;
+        this.logFile = new File(backupsFolder, LOG_FILE);
+        this.indexFile = new File(backupsFolder, INDEX_FILE);
+    }
+
+    /**
+     * Gets the catalog for a backup path, loading it the first time. A backup
+     * path with no catalog yet has its existing backups imported.
+     *
+     * @param backupsFolder The backup path.
+     * @return The catalog.
+     * @throws IOException If the catalog cannot be read or created.
+     */
+    public static BackupCatalog open(File backupsFolder) throws IOException {
+        String key = backupsFolder.getCanonicalPath();
+        synchronized (openCatalogs) {
+            BackupCatalog catalog = openCatalogs.get(key);
+            if (catalog == null) {
+                catalog = new BackupCatalog(backupsFolder);
+                catalog.load();
+                openCatalogs.put(key, catalog);
+            }
+            return catalog;
+        }
+    }
+
+    /**
+     * Adds a backup, replacing any with the same name.
+     *
+     * @param record The backup.
+     * @throws IOException If the log cannot be written.
+     */
+    public synchronized void add(Record record) throws IOException {
+        appendLog("add\t" + record.format());
+        put(record);
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes a backup.
+     *
+     * @param name The name of the backup.
+     * @return True if the backup was in the catalog.
+     * @throws IOException If the log cannot be written.
+     */
+    public synchronized boolean remove(String name) throws IOException {
+        if (!byName.containsKey(name)) {
+            return false;
+        }
+        appendLog("remove\t" + name);
+        delete(name);
+        compactIfNeeded();
+        return true;
+    }
+
+    public synchronized Record get(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Gets the most recent backup.
+     *
+     * @return The backup, or null if there are none.
+     */
+    public synchronized Record getLatest() {
+        return byTime.isEmpty() ? null : byTime.last();
+    }
+
+    /**
+     * Lists the backups, oldest first.
+     *
+     * @return A copy of the list.
+     */
+    public synchronized List<Record> list() {
+        return new ArrayList<Record>(byTime);
+    }
+
+    /**
+     * Lists the backups of one kind of target, oldest first.
+     *
+     * @param chunkStore True for chunk store backups, false for the rest.
+     * @return A copy of the list.
+     */
+    public synchronized List<Record> list(boolean chunkStore) {
+        List<Record> records = new ArrayList<Record>(byTime.size());
+        for (Record record : byTime) {
+            if (record.isChunkStore() == chunkStore) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    public synchronized int size() {
+        return byName.size();
+    }
+
+    /**
+     * Gets the combined size of every backup.
+     *
+     * @return The size in bytes.
+     */
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Gets the size of the chunk store on disk, its chunks and indexes.
+     *
+     * @return The size in bytes.
+     */
+    public synchronized long getChunkStoreSize() {
+        return Math.max(0, chunkStoreSize);
+    }
+
+    /**
+     * Adds to, or takes from, the size of the chunk store.
+     *
+     * @param bytes The bytes written to the store, or freed if negative.
+     * @throws IOException If the log cannot be written.
+     */
+    public synchronized void addChunkStoreSize(long bytes) throws IOException {
+        if (bytes != 0) {
+            setChunkStoreSize(Math.max(0, getChunkStoreSize() + bytes));
+        }
+    }
+
+    private void setChunkStoreSize(long size) throws IOException {
+        appendLog(STORE_PREFIX + size);
+        chunkStoreSize = size;
+        compactIfNeeded();
+    }
+
+    /**
+     * Works out a checksum of a ZIP backup's contents, from the name, size
+     * and CRC-32 of each entry, without reading the archive again.
+     *
+     * @param entries The entries in the archive.
+     * @return The checksum.
+     */
+    public static long checksumEntries(Iterable<ZipArchiveWriter.Entry> entries) {
+        CRC32 crc = new CRC32();
+        for (ZipArchiveWriter.Entry entry : entries) {
+            crc.update((entry.getName() + "\t" + entry.getSize() + "\t" + entry.getCrc() + "\n").getBytes(UTF8));
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Works out the CRC-32 of a small file, such as a chunk store index.
+     *
+     * @param file The file.
+     * @return The checksum.
+     * @throws IOException If the file cannot be read.
+     */
+    public static long checksumFile(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(file.toPath()));
+        return crc.getValue();
+    }
+
+    private void put(Record record) {
+        delete(record.name);
+        byName.put(record.name, record);
+        byTime.add(record);
+        totalSize += record.size;
+    }
+
+    private void delete(String name) {
+        Record old = byName.remove(name);
+        if (old != null) {
+            byTime.remove(old);
+            totalSize -= old.size;
+        }
+    }
+
+    private void load() throws IOException {
+        if (!indexFile.exists() && !logFile.exists()) {
+            importBackups();
+        } else {
+            loadFiles();
+        }
+
+        // Catalogs from before the chunk store size was kept measure it once.
+        if (chunkStoreSize < 0) {
+            setChunkStoreSize(new ChunkStore(backupsFolder).measureStoredSize());
+        }
+    }
+
+    private void loadFiles() throws IOException {
+        if (indexFile.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), UTF8));
+            try {
+                String line = reader.readLine();
+                if (!INDEX_HEADER.equals(line)) {
+                    throw new IOException("Unknown catalog format in " + indexFile);
+                }
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(STORE_PREFIX)) {
+                        chunkStoreSize = parseSize(line.substring(STORE_PREFIX.length()), indexFile);
+                    } else {
+                        put(Record.parse(line, indexFile));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        if (logFile.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), UTF8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    try {
+                        if (line.startsWith("add\t")) {
+                            put(Record.parse(line.substring(4), logFile));
+                        } else if (line.startsWith("remove\t")) {
+                            delete(line.substring(7));
+                        } else if (line.startsWith(STORE_PREFIX)) {
+                            chunkStoreSize = parseSize(line.substring(STORE_PREFIX.length()), logFile);
+                        } else if (!line.isEmpty()) {
+                            throw new IOException("Bad catalog line in " + logFile + ": " + line);
+                        }
+                    } catch (IOException ioe) {
+                        // A line cut short by a crash, nothing else depends on it.
+                        LogUtils.sendLog("Skipped bad catalog line: " + line);
+                    }
+                    logLines++;
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Adds the backups already in the backup path, from before there was a
+     * catalog.
+     */
+    private void importBackups() throws IOException {
+        File[] backupFiles = backupsFolder.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return !name.equals("temp") && !name.equals(BackupManifest.MANIFEST_FOLDER) && !name.equals(ArchiveChecksums.CHECKSUM_FOLDER)
+                        && !name.equals(BackupRestorer.RESTORE_FOLDER)
+                        && !name.equals(ChunkStore.CHUNK_FOLDER) && !name.equals(ChunkStore.INDEX_FOLDER)
+                        && !name.startsWith("catalog.");
+            }
+        });
+        if (backupFiles != null) {
+            for (File backupFile : backupFiles) {
+                String name = backupFile.getName();
+                if (name.endsWith(".zip")) {
+                    name = name.substring(0, name.length() - 4);
+                }
+                BackupManifest manifest = BackupManifest.load(backupsFolder, name);
+                String type = manifest != null && !manifest.isFull() ? TYPE_INCREMENTAL : TYPE_FULL;
+                put(new Record(name, backupFile.lastModified(), getSize(backupFile), type, Collections.<String>emptyList(), 0));
+            }
+        }
+        ChunkStore chunkStore = new ChunkStore(backupsFolder);
+        for (String name : chunkStore.listBackups()) {
+            File chunkIndex = chunkStore.getIndexFile(name);
+            put(new Record(name, chunkIndex.lastModified(), chunkIndex.length(), TYPE_CHUNKSTORE, Collections.<String>emptyList(), 0));
+        }
+        if (!byName.isEmpty()) {
+            LogUtils.sendLog("Added " + byName.size() + " existing backups to the catalog.");
+        }
+        compact();
+    }
+
+    private static long parseSize(String size, File source) throws IOException {
+        try {
+            return Long.parseLong(size);
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Bad chunk store size in " + source + ": " + size, nfe);
+        }
+    }
+
+    private static long getSize(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += getSize(child);
+            }
+        }
+        return size;
+    }
+
+    private void appendLog(String line) throws IOException {
+        FileOutputStream out = new FileOutputStream(logFile, true);
+        try {
+            out.write((line + "\n").getBytes(UTF8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        logLines++;
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (logLines >= COMPACT_THRESHOLD && logLines > byName.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Writes every live record to the index, then empties the log.
+     */
+    private void compact() throws IOException {
+        SharedUtils.checkFolderAndCreate(backupsFolder);
+        File partFile = new File(backupsFolder, INDEX_FILE.concat(".part"));
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(partFile), UTF8));
+        try {
+            writer.write(INDEX_HEADER);
+            writer.newLine();
+            if (chunkStoreSize >= 0) {
+                writer.write(STORE_PREFIX + chunkStoreSize);
+                writer.newLine();
+            }
+            for (Record record : byTime) {
+                writer.write(record.format());
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+        Files.move(partFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        new FileOutputStream(logFile).close();
+        logLines = 0;
+    }
+
+    /**
+     * One backup in the catalog.
+     */
+    public static class Record {
+
+        private final String name;
+        private final long time;
+        private final long size;
+        private final String type;
+        private final List<String> worlds;
+        private final long checksum;
+
+        public Record(String name, long time, long size, String type, List<String> worlds, long checksum) {
+            this.name = name;
+            this.time = time;
+            this.size = size;
+            this.type = type;
+            this.worlds = Collections.unmodifiableList(new ArrayList<String>(worlds));
+            this.checksum = checksum;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Gets the space the backup takes. For a chunk store backup, this is
+         * only the chunks it added.
+         *
+         * @return The size in bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public boolean isChunkStore() {
+            return TYPE_CHUNKSTORE.equals(type);
+        }
+
+        public List<String> getWorlds() {
+            return worlds;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+
+        private String format() {
+            StringBuilder worldList = new StringBuilder();
+            for (String world : worlds) {
+                if (worldList.length() > 0) {
+                    worldList.append(';');
+                }
+                worldList.append(world);
+            }
+            return name + "\t" + time + "\t" + size + "\t" + type + "\t" + worldList + "\t" + Long.toHexString(checksum);
+        }
+
+        private static Record parse(String line, File source) throws IOException {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 6) {
+                throw new IOException("Bad catalog record in " + source + ": " + line);
+            }
+            try {
+                List<String> worlds = fields[4].isEmpty() ? Collections.<String>emptyList() : Arrays.asList(fields[4].split(";"));
+                return new Record(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3], worlds,
+                        Long.parseLong(fields[5], 16));
+            } catch (NumberFormatException nfe) {
+                throw new IOException("Bad catalog record in " + source + ": " + line, nfe);
+            }
+        }
+    }
+}
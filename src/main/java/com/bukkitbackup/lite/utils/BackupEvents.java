@@ -0,0 +1,177 @@
+package com.bukkitbackup.lite.utils;
+
+import java.io.File;
+import java.io.FileFilter;
+
+/**
+ * Marks the steps of a backup as Java Flight Recorder events: world saves,
+ * each world copy, the plugin copy, archiving and each archive entry,
+ * retention, and folder deletes. With a recording running alongside the
+ * server, such as one started with "-XX:StartFlightRecording", backups can
+ * be lined up against tick lag in the same recording.
+ *
+ * The events themselves are in JfrRecorder, under src/main/java11, which is
+ * only built on JDK 11 and up and only loaded on Java 11 and up. Elsewhere,
+ * including builds made without it, and for events a recording has turned
+ * off, every call here does nothing.
+ */
+public class BackupEvents {
+
+    private static final Span NO_SPAN = new Span();
+    private static final BackupEvents RECORDER = load();
+
+    /**
+     * The recorder that does nothing. Subclassed by JfrRecorder.
+     */
+    BackupEvents() {
+    }
+
+    private static BackupEvents load() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (BackupEvents) Class.forName("com.bukkitbackup.lite.utils.JfrRecorder").getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException cnfe) {
+            // No Flight Recorder on this JVM, or a build made without it.
+        } catch (LinkageError le) {
+            // No Flight Recorder on this JVM, or one too old for JfrRecorder.
+        } catch (ReflectiveOperationException roe) {
+            LogUtils.exceptionLog(roe, "Failed to set up Flight Recorder events.");
+        }
+        return new BackupEvents();
+    }
+
+    /**
+     * Starts timing the save commands sent around a backup, such as the
+     * save-all before it.
+     *
+     * @param commands The console commands sent, such as "[save-all, save-off]".
+     * @return The span, to end once the commands have run.
+     */
+    public static Span worldSave(String commands) {
+        return RECORDER.beginWorldSave(commands);
+    }
+
+    /**
+     * Starts timing the copy of a world, into the temp folder or straight
+     * into the archive.
+     *
+     * @param world The name of the world.
+     * @return The span, to count the world's files through and end once the
+     * copy is done.
+     */
+    public static Span worldCopy(String world) {
+        return RECORDER.beginWorldCopy(world);
+    }
+
+    /**
+     * Starts timing the copy of the plugins folder.
+     *
+     * @return The span, to count the plugin files through and end once the
+     * copy is done.
+     */
+    public static Span pluginCopy() {
+        return RECORDER.beginPluginCopy();
+    }
+
+    /**
+     * Starts timing the writing of the backup into its archive, with the
+     * files and bytes taken from the backup's progress.
+     *
+     * @param target The kind of archive, "zip" or "chunkstore".
+     * @return The span, to end once the archive is written.
+     */
+    public static Span archive(String target) {
+        return RECORDER.beginArchive(target);
+    }
+
+    /**
+     * Starts timing the removal of old backups.
+     *
+     * @return The span, to add each removed backup to and end once done.
+     */
+    public static Span retention() {
+        return RECORDER.beginRetention();
+    }
+
+    /**
+     * Starts timing the delete of a file or folder, such as the temp folder.
+     *
+     * @param file What is being deleted.
+     * @return The span, to add the deleted files to and end once done.
+     */
+    public static Span delete(File file) {
+        return RECORDER.beginDelete(file);
+    }
+
+    /**
+     * Records an entry written to a ZIP archive.
+     *
+     * @param name The entry name.
+     * @param size The uncompressed size.
+     * @param compressedSize The size in the archive.
+     */
+    public static void archiveEntry(String name, long size, long compressedSize) {
+        RECORDER.recordArchiveEntry(name, size, compressedSize);
+    }
+
+    Span beginWorldSave(String commands) {
+        return NO_SPAN;
+    }
+
+    Span beginWorldCopy(String world) {
+        return NO_SPAN;
+    }
+
+    Span beginPluginCopy() {
+        return NO_SPAN;
+    }
+
+    Span beginArchive(String target) {
+        return NO_SPAN;
+    }
+
+    Span beginRetention() {
+        return NO_SPAN;
+    }
+
+    Span beginDelete(File file) {
+        return NO_SPAN;
+    }
+
+    void recordArchiveEntry(String name, long size, long compressedSize) {
+    }
+
+    /**
+     * A step of a backup, from when it starts until {@link #end()}. One that
+     * is not being recorded ignores everything.
+     */
+    public static class Span {
+
+        /**
+         * Counts the files a filter lets through, with their sizes, into this
+         * span. Only files are counted, not folders, and their attributes are
+         * taken from the walk rather than read again.
+         *
+         * @param filter The filter, null to let everything through.
+         * @return The filter to copy with.
+         */
+        public FileFilter count(FileFilter filter) {
+            return filter;
+        }
+
+        /**
+         * Adds to the counts of this span.
+         *
+         * @param count The files, or for retention the backups.
+         * @param bytes Their size.
+         */
+        public void add(long count, long bytes) {
+        }
+
+        /**
+         * Ends the span, and records it.
+         */
+        public void end() {
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.bukkitbackup.lite.utils;
+
+import static com.bukkitbackup.lite.utils.FileUtils.FILE_SEPARATOR;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * The list of every file covered by a backup, with the size, modification time
+ * and CRC-32 it had when it was backed up, and the name of the backup archive
+ * that holds its data.
+ *
+ * For a full backup every file is held by the backup itself. An incremental
+ * backup only archives new or changed files, and inherits the records of the
+ * unchanged ones from the backup before it, so restoring a file never needs
+ * more than its own record.
+ *
+ * A region file may be held as a delta instead, in which case its record also
+ * names the backup whose copy of the region the delta applies to, and its
+ * CRC-32 is that of the delta.
+ *
+ * Manifests are stored as plain text, one tab separated record per line.
+ */
+public class BackupManifest {
+
+    /**
+     * The folder, inside the backup path, that manifests are kept in.
+     */
+    public static final String MANIFEST_FOLDER = "manifests";
+    private static final String MANIFEST_EXTENSION = ".manifest";
+    private static final String LATEST_FILE = "latest";
+    private static final String HEADER = "# BackupLite manifest 1";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String backupName;
+    private final int chainLength;
+    private final Map<String, FileRecord> files = new TreeMap<String, FileRecord>();
+
+    /**
+     * Creates an empty manifest.
+     *
+     * @param backupName The name of the backup this manifest describes.
+     * @param chainLength The number of incremental backups since the last full
+     * one, 0 for a full backup.
+     */
+    public BackupManifest(String backupName, int chainLength) {
+        this.backupName = backupName;
+        this.chainLength = chainLength;
+    }
+
+    public String getBackupName() {
+        return backupName;
+    }
+
+    public int getChainLength() {
+        return chainLength;
+    }
+
+    public boolean isFull() {
+        return chainLength == 0;
+    }
+
+    /**
+     * Adds a record, replacing any for the same path.
+     *
+     * @param record The record to add.
+     */
+    public void add(FileRecord record) {
+        files.put(record.getPath(), record);
+    }
+
+    /**
+     * Gets the record for a path.
+     *
+     * @param path The entry name of the file.
+     * @return The record, or null if the file is not in this backup.
+     */
+    public FileRecord get(String path) {
+        return files.get(path);
+    }
+
+    public Collection<FileRecord> getFiles() {
+        return Collections.unmodifiableCollection(files.values());
+    }
+
+    /**
+     * Gets the names of every backup archive this backup needs to restore.
+     *
+     * @return The backup names, including this backup's own.
+     */
+    public Set<String> getReferencedBackups() {
+        Set<String> referenced = new HashSet<String>();
+        referenced.add(backupName);
+        for (FileRecord record : files.values()) {
+            referenced.add(record.getBackupName());
+            if (record.isDelta()) {
+                referenced.add(record.getDeltaBase());
+            }
+        }
+        return referenced;
+    }
+
+    /**
+     * Gets the names of every backup archive needed to restore any of the
+     * given backups, following region deltas back to their base copies.
+     *
+     * @param backupsFolder The backup path.
+     * @param backupNames The backups to restore.
+     * @return The backup names, including the given ones.
+     * @throws IOException If a manifest cannot be read.
+     */
+    public static Set<String> getRequiredBackups(File backupsFolder, Collection<String> backupNames) throws IOException {
+        Set<String> required = new HashSet<String>(backupNames);
+        Deque<String> toLoad = new ArrayDeque<String>(backupNames);
+        while (!toLoad.isEmpty()) {
+            BackupManifest manifest = load(backupsFolder, toLoad.poll());
+            if (manifest == null) {
+                continue;
+            }
+            for (String referencedBackup : manifest.getReferencedBackups()) {
+                if (required.add(referencedBackup)) {
+                    toLoad.add(referencedBackup);
+                }
+            }
+        }
+        return required;
+    }
+
+    /**
+     * Gets the name a file is stored under, from its path relative to the
+     * server folder.
+     *
+     * @param file The source file.
+     * @return The entry name.
+     */
+    public static String getEntryName(File file) {
+        String path = file.getPath();
+        String currentFolder = ".".concat(FILE_SEPARATOR);
+        while (path.startsWith(currentFolder)) {
+            path = path.substring(currentFolder.length());
+        }
+        return path;
+    }
+
+    /**
+     * Gets the manifest file for a backup.
+     *
+     * @param backupsFolder The backup path.
+     * @param backupName The name of the backup.
+     * @return The manifest file.
+     */
+    public static File getManifestFile(File backupsFolder, String backupName) {
+        return new File(new File(backupsFolder, MANIFEST_FOLDER), backupName.concat(MANIFEST_EXTENSION));
+    }
+
+    /**
+     * Saves this manifest into the backup path, and marks it as the latest.
+     *
+     * @param backupsFolder The backup path.
+     * @throws IOException If the manifest cannot be written.
+     */
+    public void save(File backupsFolder) throws IOException {
+        File manifestFolder = new File(backupsFolder, MANIFEST_FOLDER);
+        SharedUtils.checkFolderAndCreate(manifestFolder);
+
+        File manifestFile = getManifestFile(backupsFolder, backupName);
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifestFile), UTF8));
+        try {
+            writer.write(HEADER);
+            writer.newLine();
+            writer.write("chain\t" + chainLength);
+            writer.newLine();
+            for (FileRecord record : files.values()) {
+                writer.write(record.getPath() + "\t" + record.getSize() + "\t" + record.getModified() + "\t"
+                        + Long.toHexString(record.getCrc()) + "\t" + record.getBackupName()
+                        + (record.isDelta() ? "\t" + record.getDeltaBase() : ""));
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+
+        writeLatest(manifestFolder, backupName);
+    }
+
+    /**
+     * Loads the manifest for a backup.
+     *
+     * @param backupsFolder The backup path.
+     * @param backupName The name of the backup.
+     * @return The manifest, or null if the backup has none.
+     * @throws IOException If the manifest cannot be read.
+     */
+    public static BackupManifest load(File backupsFolder, String backupName) throws IOException {
+        File manifestFile = getManifestFile(backupsFolder, backupName);
+        if (!manifestFile.exists()) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), UTF8));
+        try {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Unknown manifest format in " + manifestFile);
+            }
+            line = reader.readLine();
+            if (line == null || !line.startsWith("chain\t")) {
+                throw new IOException("Missing chain length in " + manifestFile);
+            }
+            BackupManifest manifest = new BackupManifest(backupName, Integer.parseInt(line.substring(6)));
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 5 && fields.length != 6) {
+                    throw new IOException("Bad manifest record in " + manifestFile + ": " + line);
+                }
+                manifest.add(new FileRecord(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        Long.parseLong(fields[3], 16), fields[4], fields.length == 6 ? fields[5] : null));
+            }
+            return manifest;
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Bad manifest record in " + manifestFile, nfe);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Loads the manifest of the most recent backup.
+     *
+     * @param backupsFolder The backup path.
+     * @return The manifest, or null if there is none.
+     * @throws IOException If the manifest cannot be read.
+     */
+    public static BackupManifest loadLatest(File backupsFolder) throws IOException {
+        File latestFile = new File(new File(backupsFolder, MANIFEST_FOLDER), LATEST_FILE);
+        if (!latestFile.exists()) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(latestFile), UTF8));
+        try {
+            String latestName = reader.readLine();
+            if (latestName == null || latestName.trim().isEmpty()) {
+                return null;
+            }
+            return load(backupsFolder, latestName.trim());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void writeLatest(File manifestFolder, String backupName) throws IOException {
+        File latestFile = new File(manifestFolder, LATEST_FILE);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(latestFile), UTF8);
+        try {
+            writer.write(backupName);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * The state of one file when it was backed up.
+     */
+    public static class FileRecord {
+
+        private final String path;
+        private final long size;
+        private final long modified;
+        private final long crc;
+        private final String backupName;
+        private final String deltaBase;
+
+        public FileRecord(String path, long size, long modified, long crc, String backupName) {
+            this(path, size, modified, crc, backupName, null);
+        }
+
+        public FileRecord(String path, long size, long modified, long crc, String backupName, String deltaBase) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.crc = crc;
+            this.backupName = backupName;
+            this.deltaBase = deltaBase;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        /**
+         * Gets the name of the backup archive that holds this file's data.
+         *
+         * @return The backup name.
+         */
+        public String getBackupName() {
+            return backupName;
+        }
+
+        /**
+         * Checks if this file is held as a region delta, under its path plus
+         * RegionDelta.DELTA_SUFFIX.
+         *
+         * @return True for a delta.
+         */
+        public boolean isDelta() {
+            return deltaBase != null;
+        }
+
+        /**
+         * Gets the name of the backup whose copy of this file the delta
+         * applies to. That backup's own record for the file says where its
+         * copy is held.
+         *
+         * @return The backup name, or null if this is not a delta.
+         */
+        public String getDeltaBase() {
+            return deltaBase;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.bukkitbackup.lite.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what a backup has done so far, for /backup status.
+ *
+ * The copy, compression, chunk store and delete loops add to it as they go,
+ * from whichever thread they run on. Reads and writes are counted separately
+ * from what went through the compressor, so a slow backup can be told apart
+ * as held up by the disks or by the CPU.
+ */
+public class BackupProgress {
+
+    private volatile String phase;
+    private volatile long startTime;
+    private volatile long phaseStartTime;
+    private volatile long expectedBytes;
+    private final AtomicLong filesDone = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong bytesCompressed = new AtomicLong();
+    private final AtomicLong compressedSize = new AtomicLong();
+    private final AtomicLong filesDeleted = new AtomicLong();
+
+    /**
+     * Starts counting a new backup, from zero.
+     *
+     * @param expectedBytes How many bytes the backup is expected to read, 0
+     * if not known.
+     */
+    public void start(long expectedBytes) {
+        filesDone.set(0);
+        bytesRead.set(0);
+        bytesWritten.set(0);
+        bytesCompressed.set(0);
+        compressedSize.set(0);
+        filesDeleted.set(0);
+        this.expectedBytes = expectedBytes;
+        startTime = System.currentTimeMillis();
+        setPhase("starting");
+    }
+
+    /**
+     * Moves on to the next step of the backup.
+     *
+     * @param phase What the backup is doing, such as "copying worlds".
+     */
+    public void setPhase(String phase) {
+        phaseStartTime = System.currentTimeMillis();
+        this.phase = phase;
+    }
+
+    /**
+     * Stops counting. The counts are kept until the next backup starts.
+     */
+    public void finish() {
+        phase = null;
+    }
+
+    /**
+     * Checks if a backup is being counted.
+     *
+     * @return True if one is.
+     */
+    public boolean isRunning() {
+        return phase != null;
+    }
+
+    /**
+     * Counts a file as done.
+     */
+    public void fileDone() {
+        filesDone.incrementAndGet();
+    }
+
+    /**
+     * Counts bytes read from disk.
+     */
+    public void read(long bytes) {
+        bytesRead.addAndGet(bytes);
+    }
+
+    /**
+     * Counts bytes written to disk.
+     */
+    public void written(long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * Counts data that went through the compressor.
+     *
+     * @param size The size before compression.
+     * @param compressed The size after.
+     */
+    public void compressed(long size, long compressed) {
+        bytesCompressed.addAndGet(size);
+        compressedSize.addAndGet(compressed);
+    }
+
+    /**
+     * Counts a file as deleted.
+     */
+    public void deleted() {
+        filesDeleted.incrementAndGet();
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getPhaseStartTime() {
+        return phaseStartTime;
+    }
+
+    public long getExpectedBytes() {
+        return expectedBytes;
+    }
+
+    public long getFilesDone() {
+        return filesDone.get();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getBytesCompressed() {
+        return bytesCompressed.get();
+    }
+
+    public long getCompressedSize() {
+        return compressedSize.get();
+    }
+
+    public long getFilesDeleted() {
+        return filesDeleted.get();
+    }
+
+    /**
+     * Gets the average speed of a count since the backup started.
+     *
+     * @param bytes The count, such as {@link #getBytesRead()}.
+     * @return The bytes per second.
+     */
+    public double getRate(long bytes) {
+        long elapsed = System.currentTimeMillis() - startTime;
+        return elapsed > 0 ? bytes * 1000.0 / elapsed : 0;
+    }
+
+    /**
+     * Gets how many times smaller compression has made the data so far.
+     *
+     * @return The ratio, or 0 if nothing has been compressed.
+     */
+    public double getCompressionRatio() {
+        long compressed = compressedSize.get();
+        return compressed > 0 ? (double) bytesCompressed.get() / compressed : 0;
+    }
+
+    /**
+     * Guesses how long is left, going by the read speed so far and how much
+     * the backup is expected to read.
+     *
+     * @return The milliseconds left, or -1 if it cannot be told.
+     */
+    public long getRemainingMillis() {
+        long read = bytesRead.get();
+        double rate = getRate(read);
+        if (expectedBytes <= 0 || rate <= 0) {
+            return -1;
+        }
+        return (long) (Math.max(0, expectedBytes - read) * 1000 / rate);
+    }
+}
@@ -0,0 +1,313 @@
+package com.bukkitbackup.lite.utils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Restores files from a backup, on a pool of threads.
+ *
+ * Archives are opened by their central directory, and only the entries that
+ * were asked for are read, so restoring one region from a large backup does
+ * not read the rest of it. Incremental backups are followed through their
+ * manifest to the archives that hold each file, and region deltas are rebuilt
+ * on top of their base copies. Each file is written under a temporary name
+ * and moved into place once it is complete.
+ */
+public class BackupRestorer {
+
+    /**
+     * The folder, inside the backup path, that whole backups are restored
+     * into while the server is running.
+     */
+    public static final String RESTORE_FOLDER = "restored";
+
+    /**
+     * Picks which files to restore, and where to.
+     */
+    public interface Target {
+
+        /**
+         * Gets where a file is restored to.
+         *
+         * @param path The entry name of the file.
+         * @return The file to write, or null to leave it out.
+         */
+        File getDestination(String path);
+    }
+
+    private final File backupsFolder;
+    private final int threads;
+    private final Map<String, ZipFile> archives = new HashMap<String, ZipFile>();
+    private final Map<String, BackupManifest> manifests = new HashMap<String, BackupManifest>();
+    private final AtomicInteger restoredCount = new AtomicInteger();
+    private final AtomicLong bytesRestored = new AtomicLong();
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Creates a restorer.
+     *
+     * @param backupsFolder The backup path.
+     * @param threads How many files to restore at once.
+     */
+    public BackupRestorer(File backupsFolder, int threads) {
+        this.backupsFolder = backupsFolder;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Restores the files of a backup that the target picks. Files that fail
+     * are skipped, and listed by {@link #getFailures()}.
+     *
+     * @param backupName The backup to restore.
+     * @param target Picks the files, and where they go.
+     * @return The number of files restored.
+     * @throws IOException If the backup cannot be found or opened.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public int restore(String backupName, Target target) throws IOException, InterruptedException {
+        List<Callable<Long>> jobs = new ArrayList<Callable<Long>>();
+        try {
+            ChunkStore chunkStore = new ChunkStore(backupsFolder);
+            BackupManifest manifest = getManifest(backupName);
+            if (!getArchiveFile(backupName).exists() && chunkStore.getIndexFile(backupName).exists()) {
+                addChunkStoreJobs(chunkStore.startRestore(backupName), target, jobs);
+            } else if (manifest != null) {
+                for (final BackupManifest.FileRecord record : manifest.getFiles()) {
+                    final File destination = getDestination(target, record.getPath());
+                    if (destination != null) {
+                        jobs.add(new Callable<Long>() {
+
+                            @Override
+                            public Long call() throws IOException {
+                                return restoreRecord(record, destination);
+                            }
+                        });
+                    }
+                }
+            } else {
+                final ZipFile zip = getArchive(backupName);
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    final ZipEntry entry = entries.nextElement();
+                    final File destination = entry.isDirectory() ? null : getDestination(target, entry.getName());
+                    if (destination != null) {
+                        jobs.add(new Callable<Long>() {
+
+                            @Override
+                            public Long call() throws IOException {
+                                return extract(zip, entry, destination, entry.getTime());
+                            }
+                        });
+                    }
+                }
+            }
+            runJobs(jobs);
+        } finally {
+            closeArchives();
+        }
+        return restoredCount.get();
+    }
+
+    public int getRestoredCount() {
+        return restoredCount.get();
+    }
+
+    public long getBytesRestored() {
+        return bytesRestored.get();
+    }
+
+    /**
+     * Gets what went wrong with each file that could not be restored.
+     *
+     * @return A copy of the list.
+     */
+    public List<String> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<String>(failures);
+        }
+    }
+
+    private void addChunkStoreJobs(final ChunkStore.Restore restore, Target target, List<Callable<Long>> jobs) {
+        for (final String path : restore.getPaths()) {
+            final File destination = getDestination(target, path);
+            if (destination != null) {
+                jobs.add(new Callable<Long>() {
+
+                    @Override
+                    public Long call() throws IOException {
+                        return restore.restoreFile(path, destination);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Asks the target for a file's destination, leaving out any entry that
+     * would land outside of it.
+     */
+    private File getDestination(Target target, String path) {
+        if (path.startsWith("/") || path.startsWith("\\") || ("/" + path.replace('\\', '/') + "/").contains("/../")) {
+            failures.add(path + " is not a safe path");
+            return null;
+        }
+        return target.getDestination(path);
+    }
+
+    private void runJobs(List<Callable<Long>> jobs) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Long>> results = pool.invokeAll(jobs);
+            for (Future<Long> result : results) {
+                try {
+                    bytesRestored.addAndGet(result.get());
+                    restoredCount.incrementAndGet();
+                } catch (ExecutionException ee) {
+                    failures.add(String.valueOf(ee.getCause().getMessage()));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Restores a file from the archive its manifest record names, rebuilding
+     * it from its base copy if it is a region delta.
+     *
+     * @return The size of the file.
+     */
+    private long restoreRecord(BackupManifest.FileRecord record, File destination) throws IOException {
+        ZipFile zip = getArchive(record.getBackupName());
+        if (!record.isDelta()) {
+            ZipEntry entry = zip.getEntry(record.getPath());
+            if (entry == null) {
+                throw new FileNotFoundException(record.getPath() + " is missing from backup '" + record.getBackupName() + "'");
+            }
+            return extract(zip, entry, destination, record.getModified());
+        }
+
+        BackupManifest baseManifest = getManifest(record.getDeltaBase());
+        BackupManifest.FileRecord baseRecord = baseManifest == null ? null : baseManifest.get(record.getPath());
+        if (baseRecord == null) {
+            throw new FileNotFoundException(record.getPath() + " has no base copy in backup '" + record.getDeltaBase() + "'");
+        }
+        ZipEntry deltaEntry = zip.getEntry(record.getPath().concat(RegionDelta.DELTA_SUFFIX));
+        if (deltaEntry == null) {
+            throw new FileNotFoundException(record.getPath() + " is missing from backup '" + record.getBackupName() + "'");
+        }
+
+        // The base may be a delta too, so is restored the same way.
+        File baseFile = new File(destination.getPath().concat(".base"));
+        File partFile = new File(destination.getPath().concat(".part"));
+        try {
+            restoreRecord(baseRecord, baseFile);
+            InputStream in = zip.getInputStream(deltaEntry);
+            try {
+                RegionDelta.rebuild(baseFile, in, partFile);
+            } finally {
+                in.close();
+            }
+            Files.move(partFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ioe) {
+            partFile.delete();
+            throw ioe;
+        } finally {
+            baseFile.delete();
+        }
+        destination.setLastModified(record.getModified());
+        return destination.length();
+    }
+
+    /**
+     * Extracts one entry, checking its CRC-32 as it is written.
+     *
+     * @return The size of the file.
+     */
+    private long extract(ZipFile zip, ZipEntry entry, File destination, long modified) throws IOException {
+        SharedUtils.checkFolderAndCreate(destination.getParentFile());
+        File partFile = new File(destination.getPath().concat(".part"));
+        CRC32 crc = new CRC32();
+        long size = 0;
+        try {
+            InputStream in = zip.getInputStream(entry);
+            try {
+                OutputStream out = new FileOutputStream(partFile);
+                try {
+                    byte[] buffer = new byte[64 * 1024];
+                    int bytesIn;
+                    while ((bytesIn = in.read(buffer)) != -1) {
+                        crc.update(buffer, 0, bytesIn);
+                        out.write(buffer, 0, bytesIn);
+                        size += bytesIn;
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            if (entry.getCrc() != -1 && crc.getValue() != entry.getCrc()) {
+                throw new IOException(entry.getName() + " does not match its checksum in '" + zip.getName() + "'");
+            }
+            Files.move(partFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ioe) {
+            partFile.delete();
+            throw ioe;
+        }
+        destination.setLastModified(modified);
+        return size;
+    }
+
+    private File getArchiveFile(String backupName) {
+        return new File(backupsFolder, backupName.concat(".zip"));
+    }
+
+    /**
+     * Opens a backup's archive, once, for every thread to share.
+     */
+    private ZipFile getArchive(String backupName) throws IOException {
+        synchronized (archives) {
+            ZipFile zip = archives.get(backupName);
+            if (zip == null) {
+                File archiveFile = getArchiveFile(backupName);
+                if (!archiveFile.exists()) {
+                    throw new FileNotFoundException("Backup archive " + archiveFile + " is missing");
+                }
+                zip = new ZipFile(archiveFile);
+                archives.put(backupName, zip);
+            }
+            return zip;
+        }
+    }
+
+    private BackupManifest getManifest(String backupName) throws IOException {
+        synchronized (manifests) {
+            if (!manifests.containsKey(backupName)) {
+                manifests.put(backupName, BackupManifest.load(backupsFolder, backupName));
+            }
+            return manifests.get(backupName);
+        }
+    }
+
+    private void closeArchives() {
+        synchronized (archives) {
+            for (ZipFile zip : archives.values()) {
+                try {
+                    zip.close();
+                } catch (IOException ioe) {
+                    LogUtils.exceptionLog(ioe, "Failed to close " + zip.getName());
+                }
+            }
+            archives.clear();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.bukkitbackup.lite.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads backups back and checks them against their checksums, on a pool of
+ * threads.
+ *
+ * Reads go through a limiter of their own, so checking old backups can be
+ * kept to a budget that leaves the disk free for the server, apart from the
+ * limits on making backups.
+ */
+public class BackupVerifier {
+
+    private final ExecutorService pool;
+    private final RateLimiter limiter;
+
+    /**
+     * Creates a verifier.
+     *
+     * @param threads How many entries to check at once.
+     * @param bytesPerSecond How fast to read, 0 or less for no limit.
+     */
+    public BackupVerifier(int threads, double bytesPerSecond) {
+        this.pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        this.limiter = new RateLimiter(bytesPerSecond, Math.min(bytesPerSecond, 8 * FileUtils.ONE_MB));
+    }
+
+    /**
+     * Checks a ZIP backup. Every entry is read and its CRC-32 worked out
+     * again, then compared with the checksum file, or with the archive's own
+     * directory if the backup has no checksum file.
+     *
+     * @param archive The ZIP file.
+     * @param expected The entry checksums from the checksum file, or null.
+     * @return What was found.
+     * @throws IOException If the archive cannot be opened at all.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public Result verifyArchive(File archive, Map<String, ArchiveChecksums.Sum> expected) throws IOException, InterruptedException {
+        final Result result = new Result();
+        final ZipFile zip = new ZipFile(archive);
+        try {
+            List<Future<?>> checks = new ArrayList<Future<?>>();
+            Set<String> seen = new HashSet<String>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                seen.add(entry.getName());
+                final ArchiveChecksums.Sum sum;
+                if (expected == null) {
+                    sum = new ArchiveChecksums.Sum(entry.getCrc(), entry.getSize());
+                } else {
+                    sum = expected.get(entry.getName());
+                    if (sum == null) {
+                        result.addProblem(entry.getName() + " is not in the checksums");
+                        continue;
+                    }
+                    if (sum.getCrc() != entry.getCrc()) {
+                        result.addProblem(entry.getName() + " has a different CRC in the archive's directory");
+                    }
+                }
+                checks.add(pool.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws IOException {
+                        checkEntry(zip, entry, sum, result);
+                        return null;
+                    }
+                }));
+            }
+            if (expected != null) {
+                for (String name : expected.keySet()) {
+                    if (!seen.contains(name)) {
+                        result.addProblem(name + " is missing from the archive");
+                    }
+                }
+            }
+            waitFor(checks, result);
+        } finally {
+            zip.close();
+        }
+        return result;
+    }
+
+    /**
+     * Checks a chunk store backup, by reading every chunk it needs and
+     * checking each still has the hash it is named by.
+     *
+     * @param store The chunk store.
+     * @param backupName The backup.
+     * @return What was found.
+     * @throws IOException If the backup's index cannot be read.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public Result verifyChunkStore(final ChunkStore store, String backupName) throws IOException, InterruptedException {
+        final Result result = new Result();
+        List<Future<?>> checks = new ArrayList<Future<?>>();
+        for (final String hash : store.getChunks(backupName)) {
+            checks.add(pool.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws IOException {
+                    if (!store.verifyChunk(hash, limiter)) {
+                        result.addProblem("Chunk " + hash + " is damaged");
+                    }
+                    result.addChecked(0);
+                    return null;
+                }
+            }));
+        }
+        waitFor(checks, result);
+        return result;
+    }
+
+    /**
+     * Stops the pool. The verifier cannot be used after.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private void checkEntry(ZipFile zip, ZipEntry entry, ArchiveChecksums.Sum sum, Result result) throws IOException {
+        // The entry is inflated as it is read, so the budget is taken by what comes off the disk.
+        limiter.acquire(entry.getCompressedSize());
+        CRC32 crc = new CRC32();
+        long size = 0;
+        InputStream in = zip.getInputStream(entry);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int bytesIn;
+            while ((bytesIn = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, bytesIn);
+                size += bytesIn;
+            }
+        } finally {
+            in.close();
+        }
+        if (size != sum.getSize()) {
+            result.addProblem(entry.getName() + " is " + size + " bytes, expected " + sum.getSize());
+        } else if (crc.getValue() != sum.getCrc()) {
+            result.addProblem(entry.getName() + " does not match its checksum");
+        }
+        result.addChecked(size);
+    }
+
+    private static void waitFor(List<Future<?>> checks, Result result) throws InterruptedException {
+        try {
+            for (Future<?> check : checks) {
+                try {
+                    check.get();
+                } catch (ExecutionException ee) {
+                    result.addProblem(String.valueOf(ee.getCause().getMessage()));
+                }
+            }
+        } finally {
+            for (Future<?> check : checks) {
+                check.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * What was found checking one backup.
+     */
+    public static class Result {
+
+        private final List<String> problems = new ArrayList<String>();
+        private int checked;
+        private long bytesChecked;
+
+        private synchronized void addProblem(String problem) {
+            problems.add(problem);
+        }
+
+        private synchronized void addChecked(long bytes) {
+            checked++;
+            bytesChecked += bytes;
+        }
+
+        public synchronized boolean isOk() {
+            return problems.isEmpty();
+        }
+
+        public synchronized List<String> getProblems() {
+            return new ArrayList<String>(problems);
+        }
+
+        /**
+         * Gets how many files, or chunks for a chunk store backup, were read
+         * back.
+         *
+         * @return The count.
+         */
+        public synchronized int getChecked() {
+            return checked;
+        }
+
+        public synchronized long getBytesChecked() {
+            return bytesChecked;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.bukkitbackup.lite.utils;
+
+import com.bukkitbackup.lite.utils.BackupManifest.FileRecord;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Accepts only the files that are new or have changed since a previous
+ * backup, going by their size and modification time.
+ *
+ * As it goes, it remembers the state of every file it has seen: unchanged
+ * files keep their old record, so the new manifest can inherit them, and
+ * changed files are noted so their record can be completed once they have
+ * been archived. It is safe to share between world copies running at once.
+ */
+public class ChangedFileFilter implements FileTreeWalker.AttributeFilter {
+
+    private final FileFilter filter;
+    private final BackupManifest previous;
+    private final Map<String, FileRecord> inherited;
+    private final Map<String, long[]> changed;
+
+    /**
+     * Creates a filter on top of another one.
+     *
+     * @param filter The filter to apply first, may be null.
+     * @param previous The manifest to compare against, null to accept every
+     * file.
+     */
+    public ChangedFileFilter(FileFilter filter, BackupManifest previous) {
+        this(filter, previous, new ConcurrentHashMap<String, FileRecord>(), new ConcurrentHashMap<String, long[]>());
+    }
+
+    private ChangedFileFilter(FileFilter filter, BackupManifest previous, Map<String, FileRecord> inherited, Map<String, long[]> changed) {
+        this.filter = filter;
+        this.previous = previous;
+        this.inherited = inherited;
+        this.changed = changed;
+    }
+
+    /**
+     * Creates a filter that shares its records with this one, but applies a
+     * different filter first.
+     *
+     * @param otherFilter The filter to apply first, may be null.
+     * @return The new filter.
+     */
+    public ChangedFileFilter withFilter(FileFilter otherFilter) {
+        return new ChangedFileFilter(otherFilter, previous, inherited, changed);
+    }
+
+    @Override
+    public boolean accept(File file) {
+        try {
+            return accept(file, Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+        } catch (IOException ioe) {
+            // Gone already, so there is nothing to back up.
+            return false;
+        }
+    }
+
+    @Override
+    public boolean accept(File file, BasicFileAttributes attrs) {
+        if (filter instanceof FileTreeWalker.AttributeFilter) {
+            if (!((FileTreeWalker.AttributeFilter) filter).accept(file, attrs)) {
+                return false;
+            }
+        } else if (filter != null && !filter.accept(file)) {
+            return false;
+        }
+        if (attrs.isDirectory()) {
+            return true;
+        }
+        String path = BackupManifest.getEntryName(file);
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+        FileRecord record = previous == null ? null : previous.get(path);
+        if (record != null && record.getSize() == size && record.getModified() == modified) {
+            inherited.put(path, record);
+            return false;
+        }
+        changed.put(path, new long[]{size, modified});
+        return true;
+    }
+
+    /**
+     * Builds the manifest for the new backup, from the files seen by this
+     * filter and the entries written to its archive.
+     *
+     * @param backupName The name of the new backup.
+     * @param entries The entries in the new archive.
+     * @return The manifest.
+     */
+    public BackupManifest buildManifest(String backupName, Iterable<ZipArchiveWriter.Entry> entries) {
+        int chainLength = previous == null ? 0 : previous.getChainLength() + 1;
+        BackupManifest manifest = new BackupManifest(backupName, chainLength);
+        for (FileRecord record : inherited.values()) {
+            manifest.add(record);
+        }
+        for (ZipArchiveWriter.Entry entry : entries) {
+            long[] state = changed.get(entry.getName());
+            if (state != null) {
+                manifest.add(new FileRecord(entry.getName(), state[0], state[1], entry.getCrc(), backupName));
+                continue;
+            }
+
+            // Region files stored as deltas against the previous backup.
+            if (previous != null && entry.getName().endsWith(RegionDelta.DELTA_SUFFIX)) {
+                String path = entry.getName().substring(0, entry.getName().length() - RegionDelta.DELTA_SUFFIX.length());
+                state = changed.get(path);
+                if (state != null) {
+                    manifest.add(new FileRecord(path, state[0], state[1], entry.getCrc(), backupName, previous.getBackupName()));
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Checks if this filter is comparing against an earlier backup.
+     *
+     * @return True for an incremental backup, false for a full one.
+     */
+    public boolean isIncremental() {
+        return previous != null;
+    }
+
+    /**
+     * Gets the number of files that were skipped because they had not changed.
+     *
+     * @return The count.
+     */
+    public int getInheritedCount() {
+        return inherited.size();
+    }
+}
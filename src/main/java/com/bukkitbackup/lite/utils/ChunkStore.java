@@ -0,0 +1,693 @@
+package com.bukkitbackup.lite.utils;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A deduplicating backup target. Files are cut into content-defined chunks,
+ * each chunk is named by its SHA-1 hash and stored once under the backup path,
+ * and each backup is an index file listing the chunks of every file.
+ *
+ * Chunk boundaries are picked with a gear rolling hash, so inserting or
+ * changing a few bytes only changes the chunks around them, and backups of a
+ * mostly unchanged world share almost all of their chunks. Files whose size and
+ * modification time match the previous backup's index are not read at all.
+ *
+ * Removing a backup only removes its index; chunks are freed by
+ * {@link #collectGarbage()} once no remaining index refers to them.
+ */
+public class ChunkStore {
+
+    /**
+     * The folder, inside the backup path, that chunks are kept in.
+     */
+    public static final String CHUNK_FOLDER = "chunks";
+    /**
+     * The folder, inside the backup path, that backup indexes are kept in.
+     */
+    public static final String INDEX_FOLDER = "indexes";
+    private static final String INDEX_EXTENSION = ".index";
+    private static final String HEADER = "# BackupLite chunk index 1";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MIN_CHUNK = 16 * 1024;
+    private static final int MAX_CHUNK = 256 * 1024;
+    /**
+     * A boundary is cut when the top 16 bits of the hash are zero, for chunks
+     * of around 64 KB. Each byte is shifted one bit further up the hash, so
+     * the top bits depend on the last 64 bytes, where the low bits would only
+     * depend on the last 16.
+     */
+    private static final long BOUNDARY_MASK = 0xFFFFL << 48;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Fixed seed, so boundaries stay the same between runs.
+        Random random = new Random(0x6261636b75706cL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final File backupsFolder;
+    private final File chunkFolder;
+    private final File indexFolder;
+
+    /**
+     * Opens the chunk store in a backup path.
+     *
+     * @param backupsFolder The backup path.
+     */
+    public ChunkStore(File backupsFolder) {
+        this.backupsFolder = backupsFolder;
+        this.chunkFolder = new File(backupsFolder, CHUNK_FOLDER);
+        this.indexFolder = new File(backupsFolder, INDEX_FOLDER);
+    }
+
+    /**
+     * Starts a new backup. Nothing is visible until {@link Snapshot#commit()}
+     * is called, and chunks written by a backup that is never committed are
+     * removed by the next garbage collection.
+     *
+     * @param backupName The name of the new backup.
+     * @return The snapshot to add files to.
+     * @throws IOException If the store cannot be written to.
+     */
+    public Snapshot startBackup(String backupName) throws IOException {
+        SharedUtils.checkFolderAndCreate(chunkFolder);
+        SharedUtils.checkFolderAndCreate(indexFolder);
+        return new Snapshot(backupName, loadLatestIndex());
+    }
+
+    /**
+     * Lists the backups in the store, oldest first.
+     *
+     * @return The backup names.
+     */
+    public List<String> listBackups() {
+        File[] indexFiles = indexFolder.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(INDEX_EXTENSION);
+            }
+        });
+        if (indexFiles == null) {
+            return new ArrayList<String>();
+        }
+        final Map<File, Long> modified = new HashMap<File, Long>();
+        for (File indexFile : indexFiles) {
+            modified.put(indexFile, indexFile.lastModified());
+        }
+        Arrays.sort(indexFiles, new Comparator<File>() {
+
+            @Override
+            public int compare(File a, File b) {
+                return modified.get(a).compareTo(modified.get(b));
+            }
+        });
+        List<String> backupNames = new ArrayList<String>(indexFiles.length);
+        for (File indexFile : indexFiles) {
+            String name = indexFile.getName();
+            backupNames.add(name.substring(0, name.length() - INDEX_EXTENSION.length()));
+        }
+        return backupNames;
+    }
+
+    /**
+     * Removes a backup's index. Its chunks stay until the next garbage
+     * collection.
+     *
+     * @param backupName The backup to remove.
+     * @return True if the index was removed.
+     * @throws IOException If the catalog cannot be written.
+     */
+    public boolean deleteBackup(String backupName) throws IOException {
+        File indexFile = getIndexFile(backupName);
+        long indexSize = indexFile.length();
+        if (!indexFile.delete()) {
+            return false;
+        }
+        addStoredSize(-indexSize);
+        return true;
+    }
+
+    /**
+     * Finds the chunks no remaining index refers to, and deletes them.
+     *
+     * @return The number of bytes freed.
+     * @throws IOException If an index cannot be read, or the catalog written.
+     */
+    public long collectGarbage() throws IOException {
+        Set<String> referenced = new HashSet<String>();
+        for (String backupName : listBackups()) {
+            for (IndexRecord record : loadIndex(backupName).values()) {
+                referenced.addAll(Arrays.asList(record.chunks));
+            }
+        }
+
+        long freed = 0;
+        File[] prefixFolders = chunkFolder.listFiles();
+        if (prefixFolders == null) {
+            return 0;
+        }
+        for (File prefixFolder : prefixFolders) {
+            File[] chunkFiles = prefixFolder.listFiles();
+            if (chunkFiles == null) {
+                continue;
+            }
+            for (File chunkFile : chunkFiles) {
+                if (!referenced.contains(chunkFile.getName())) {
+                    long chunkSize = chunkFile.length();
+                    if (chunkFile.delete()) {
+                        freed += chunkSize;
+                    }
+                }
+            }
+        }
+        addStoredSize(-freed);
+        return freed;
+    }
+
+    /**
+     * Counts how many backups refer to each chunk, reading every index once,
+     * to work out what removing backups would free before any are removed.
+     *
+     * @return The reference counts.
+     * @throws IOException If an index cannot be read.
+     */
+    public References countReferences() throws IOException {
+        Map<String, Integer> referenceCounts = new HashMap<String, Integer>();
+        for (String backupName : listBackups()) {
+            for (String hash : getChunks(backupName)) {
+                Integer count = referenceCounts.get(hash);
+                referenceCounts.put(hash, count == null ? 1 : count + 1);
+            }
+        }
+        return new References(referenceCounts);
+    }
+
+    /**
+     * Gets the size of the store on disk, as kept in the catalog.
+     *
+     * @return The size, in bytes.
+     * @throws IOException If the catalog cannot be read.
+     */
+    public long getStoredSize() throws IOException {
+        return BackupCatalog.open(backupsFolder).getChunkStoreSize();
+    }
+
+    private void addStoredSize(long bytes) throws IOException {
+        BackupCatalog.open(backupsFolder).addChunkStoreSize(bytes);
+    }
+
+    /**
+     * Adds up the size of the store on disk, every chunk and index, by
+     * listing them all. Only used to measure a store from before the catalog
+     * kept its size.
+     *
+     * @return The size, in bytes.
+     */
+    long measureStoredSize() {
+        long size = 0;
+        File[] prefixFolders = chunkFolder.listFiles();
+        if (prefixFolders != null) {
+            for (File prefixFolder : prefixFolders) {
+                File[] chunkFiles = prefixFolder.listFiles();
+                if (chunkFiles == null) {
+                    continue;
+                }
+                for (File chunkFile : chunkFiles) {
+                    size += chunkFile.length();
+                }
+            }
+        }
+        File[] indexFiles = indexFolder.listFiles();
+        if (indexFiles != null) {
+            for (File indexFile : indexFiles) {
+                size += indexFile.length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Opens a backup to restore files from one at a time, or from several
+     * threads at once.
+     *
+     * @param backupName The backup to restore from.
+     * @return The restore.
+     * @throws IOException If the backup's index cannot be read.
+     */
+    public Restore startRestore(String backupName) throws IOException {
+        return new Restore(loadIndex(backupName));
+    }
+
+    /**
+     * Lists every chunk a backup needs.
+     *
+     * @param backupName The backup.
+     * @return The chunk hashes, each once.
+     * @throws IOException If the backup's index cannot be read.
+     */
+    public Set<String> getChunks(String backupName) throws IOException {
+        Set<String> hashes = new LinkedHashSet<String>();
+        for (IndexRecord record : loadIndex(backupName).values()) {
+            hashes.addAll(Arrays.asList(record.chunks));
+        }
+        return hashes;
+    }
+
+    /**
+     * Adds up the size of every file in a backup.
+     *
+     * @param backupName The backup.
+     * @return The size, in bytes.
+     * @throws IOException If the backup's index cannot be read.
+     */
+    public long getTotalSize(String backupName) throws IOException {
+        long size = 0;
+        for (IndexRecord record : loadIndex(backupName).values()) {
+            size += record.size;
+        }
+        return size;
+    }
+
+    /**
+     * Reads a chunk back, and checks it still has the hash it is named by.
+     *
+     * @param hash The chunk's hash.
+     * @param limiter The limiter to read through.
+     * @return True if the chunk is intact.
+     * @throws IOException If the chunk is missing, or cannot be read.
+     */
+    public boolean verifyChunk(String hash, RateLimiter limiter) throws IOException {
+        File chunkFile = getChunkFile(hash);
+        if (!chunkFile.exists()) {
+            throw new FileNotFoundException("Chunk " + hash + " is missing from the store");
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IOException("SHA-1 is not available", nsae);
+        }
+        InputStream in = new InflaterInputStream(limiter.throttle(new FileInputStream(chunkFile)));
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int bytesIn;
+            while ((bytesIn = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesIn);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest()).equals(hash);
+    }
+
+    private void readChunk(String hash, OutputStream out) throws IOException {
+        File chunkFile = getChunkFile(hash);
+        if (!chunkFile.exists()) {
+            throw new FileNotFoundException("Chunk " + hash + " is missing from the store");
+        }
+        InputStream in = new InflaterInputStream(new FileInputStream(chunkFile));
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int bytesIn;
+            while ((bytesIn = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesIn);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private File getChunkFile(String hash) {
+        return new File(new File(chunkFolder, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * Gets the index file of a backup.
+     *
+     * @param backupName The name of the backup.
+     * @return The index file.
+     */
+    public File getIndexFile(String backupName) {
+        return new File(indexFolder, backupName.concat(INDEX_EXTENSION));
+    }
+
+    private Map<String, IndexRecord> loadLatestIndex() throws IOException {
+        List<String> backupNames = listBackups();
+        if (backupNames.isEmpty()) {
+            return new HashMap<String, IndexRecord>();
+        }
+        return loadIndex(backupNames.get(backupNames.size() - 1));
+    }
+
+    private Map<String, IndexRecord> loadIndex(String backupName) throws IOException {
+        File indexFile = getIndexFile(backupName);
+        Map<String, IndexRecord> records = new LinkedHashMap<String, IndexRecord>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), UTF8));
+        try {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Unknown chunk index format in " + indexFile);
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 4) {
+                    throw new IOException("Bad chunk index record in " + indexFile + ": " + line);
+                }
+                String[] chunks = fields[3].isEmpty() ? new String[0] : fields[3].split(",");
+                IndexRecord record = new IndexRecord(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), chunks);
+                records.put(record.path, record);
+            }
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Bad chunk index record in " + indexFile, nfe);
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * A backup being written to the store.
+     */
+    public class Snapshot {
+
+        private final String backupName;
+        private final Map<String, IndexRecord> previous;
+        private final List<IndexRecord> records = new ArrayList<IndexRecord>();
+        private final MessageDigest digest;
+        private final byte[] chunkBuffer = new byte[MAX_CHUNK];
+        private final byte[] readBuffer = new byte[64 * 1024];
+        private long newChunks;
+        private long reusedChunks;
+        private long bytesStored;
+
+        private Snapshot(String backupName, Map<String, IndexRecord> previous) throws IOException {
+            this.backupName = backupName;
+            this.previous = previous;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new IOException("SHA-1 is not available", nsae);
+            }
+        }
+
+        /**
+         * Adds a filtered directory to the backup.
+         *
+         * @param directory The directory to add.
+         * @param path The entry prefix for this directory, with trailing
+         * separator.
+         * @param filter The filter to apply, null means add all directories
+         * and files.
+         * @throws IOException If a file cannot be read, or a chunk written.
+         */
+        public void addDirectory(File directory, final String path, FileFilter filter) throws IOException {
+            FileTreeWalker.walk(directory, filter, true, new FileTreeWalker.Visitor() {
+
+                @Override
+                public void visitFile(File file, String filePath, BasicFileAttributes attrs) throws IOException {
+                    addFile(file, path.concat(filePath), attrs.size(), attrs.lastModifiedTime().toMillis());
+                }
+            });
+        }
+
+        /**
+         * Adds one file to the backup.
+         *
+         * @param file The file to add.
+         * @param entryName The name to store it under.
+         * @throws IOException If the file cannot be read, or a chunk written.
+         */
+        public void addFile(File file, String entryName) throws IOException {
+            addFile(file, entryName, file.length(), file.lastModified());
+        }
+
+        private void addFile(File file, String entryName, long size, long modified) throws IOException {
+            // Unchanged since the last backup, so its chunks are already stored.
+            IndexRecord old = previous.get(entryName);
+            if (old != null && old.size == size && old.modified == modified) {
+                records.add(old);
+                reusedChunks += old.chunks.length;
+                FileUtils.PROGRESS.fileDone();
+                return;
+            }
+
+            List<String> chunks = new ArrayList<String>();
+            long actualSize = 0;
+            InputStream in = FileUtils.READ_LIMIT.throttle(new FileInputStream(file));
+            try {
+                long hash = 0;
+                int chunkLength = 0;
+                int bytesIn;
+                while ((bytesIn = in.read(readBuffer)) != -1) {
+                    actualSize += bytesIn;
+                    for (int i = 0; i < bytesIn; i++) {
+                        chunkBuffer[chunkLength++] = readBuffer[i];
+                        hash = (hash << 1) + GEAR[readBuffer[i] & 0xFF];
+                        if ((chunkLength >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0) || chunkLength == MAX_CHUNK) {
+                            chunks.add(storeChunk(chunkLength));
+                            chunkLength = 0;
+                            hash = 0;
+                        }
+                    }
+                }
+                if (chunkLength > 0) {
+                    chunks.add(storeChunk(chunkLength));
+                }
+            } finally {
+                in.close();
+            }
+            records.add(new IndexRecord(entryName, actualSize, modified, chunks.toArray(new String[chunks.size()])));
+            FileUtils.PROGRESS.read(actualSize);
+            FileUtils.PROGRESS.fileDone();
+        }
+
+        /**
+         * Stores the chunk in the chunk buffer, unless it is already stored.
+         *
+         * @return The chunk's hash.
+         */
+        private String storeChunk(int length) throws IOException {
+            digest.reset();
+            digest.update(chunkBuffer, 0, length);
+            String hash = toHex(digest.digest());
+            File chunkFile = getChunkFile(hash);
+            if (chunkFile.exists()) {
+                reusedChunks++;
+                return hash;
+            }
+
+            // Write under a temporary name, so a partial chunk is never used.
+            SharedUtils.checkFolderAndCreate(chunkFile.getParentFile());
+            File partFile = new File(chunkFile.getPath().concat(".part"));
+            DeflaterOutputStream out = new DeflaterOutputStream(FileUtils.WRITE_LIMIT.throttle(new FileOutputStream(partFile)));
+            try {
+                out.write(chunkBuffer, 0, length);
+            } finally {
+                out.close();
+            }
+            long storedLength = partFile.length();
+            bytesStored += storedLength;
+            FileUtils.PROGRESS.written(storedLength);
+            FileUtils.PROGRESS.compressed(length, storedLength);
+            if (!partFile.renameTo(chunkFile)) {
+                partFile.delete();
+                if (!chunkFile.exists()) {
+                    throw new IOException("Failed to store chunk " + chunkFile);
+                }
+            }
+            newChunks++;
+            return hash;
+        }
+
+        /**
+         * Writes the backup's index, making the backup visible.
+         *
+         * @throws IOException If the index cannot be written.
+         */
+        public void commit() throws IOException {
+            File indexFile = getIndexFile(backupName);
+            File partFile = new File(indexFile.getPath().concat(".part"));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(partFile), UTF8));
+            try {
+                writer.write(HEADER);
+                writer.newLine();
+                for (IndexRecord record : records) {
+                    writer.write(record.path + "\t" + record.size + "\t" + record.modified + "\t");
+                    for (int i = 0; i < record.chunks.length; i++) {
+                        if (i > 0) {
+                            writer.write(',');
+                        }
+                        writer.write(record.chunks[i]);
+                    }
+                    writer.newLine();
+                }
+            } finally {
+                writer.close();
+            }
+            if (!partFile.renameTo(indexFile)) {
+                throw new IOException("Failed to write chunk index " + indexFile);
+            }
+            addStoredSize(bytesStored + indexFile.length());
+        }
+
+        /**
+         * Gives up on the backup without writing its index. The chunks it
+         * stored are still counted in the store, until garbage collection
+         * frees them.
+         *
+         * @throws IOException If the catalog cannot be written.
+         */
+        public void abandon() throws IOException {
+            addStoredSize(bytesStored);
+        }
+
+        public long getNewChunks() {
+            return newChunks;
+        }
+
+        public long getReusedChunks() {
+            return reusedChunks;
+        }
+
+        /**
+         * Gets the number of bytes this backup added to the store.
+         *
+         * @return The compressed size of the new chunks.
+         */
+        public long getBytesStored() {
+            return bytesStored;
+        }
+    }
+
+    /**
+     * The number of backups that refer to each chunk.
+     */
+    public class References {
+
+        private final Map<String, Integer> referenceCounts;
+
+        private References(Map<String, Integer> referenceCounts) {
+            this.referenceCounts = referenceCounts;
+        }
+
+        /**
+         * Takes away a backup's references, as if it had been removed.
+         *
+         * @param backupName The backup.
+         * @return The bytes removing it frees: its index, and the chunks no
+         * other backup refers to.
+         * @throws IOException If the backup's index cannot be read.
+         */
+        public long release(String backupName) throws IOException {
+            long freed = getIndexFile(backupName).length();
+            for (String hash : getChunks(backupName)) {
+                Integer count = referenceCounts.get(hash);
+                if (count == null) {
+                    continue;
+                }
+                if (count > 1) {
+                    referenceCounts.put(hash, count - 1);
+                } else {
+                    referenceCounts.remove(hash);
+                    freed += getChunkFile(hash).length();
+                }
+            }
+            return freed;
+        }
+    }
+
+    /**
+     * A backup being restored from the store.
+     */
+    public class Restore {
+
+        private final Map<String, IndexRecord> records;
+
+        private Restore(Map<String, IndexRecord> records) {
+            this.records = records;
+        }
+
+        /**
+         * Lists the files in the backup.
+         *
+         * @return The entry names.
+         */
+        public Collection<String> getPaths() {
+            return Collections.unmodifiableCollection(records.keySet());
+        }
+
+        /**
+         * Restores one file. It is written under a temporary name first, so a
+         * failed restore never leaves a partial file in place.
+         *
+         * @param path The entry name of the file.
+         * @param target Where to write it.
+         * @return The size of the file.
+         * @throws IOException If the file is not in the backup, a chunk is
+         * missing, or the file cannot be written.
+         */
+        public long restoreFile(String path, File target) throws IOException {
+            IndexRecord record = records.get(path);
+            if (record == null) {
+                throw new FileNotFoundException(path + " is not in the backup");
+            }
+            SharedUtils.checkFolderAndCreate(target.getParentFile());
+            File partFile = new File(target.getPath().concat(".part"));
+            try {
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(partFile));
+                try {
+                    for (String hash : record.chunks) {
+                        readChunk(hash, out);
+                    }
+                } finally {
+                    out.close();
+                }
+            } catch (IOException ioe) {
+                partFile.delete();
+                throw ioe;
+            }
+            Files.move(partFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            target.setLastModified(record.modified);
+            return record.size;
+        }
+    }
+
+    /**
+     * One file in a backup index.
+     */
+    private static class IndexRecord {
+
+        final String path;
+        final long size;
+        final long modified;
+        final String[] chunks;
+
+        IndexRecord(String path, long size, long modified, String[] chunks) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.chunks = chunks;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.bukkitbackup.lite.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+/**
+ * Stages files into the temp folder without copying their bytes, where the
+ * filesystem allows it.
+ *
+ * A reflink clone shares the data blocks of the source until either side is
+ * written to, so is always safe. A hard link is the same file under another
+ * name, so is only used for files that will not be written to while the
+ * backup runs, such as world files while saving is off. Anything else, or any
+ * file that cannot be linked, is left to the normal copy.
+ *
+ * Which of these work is detected once, when the plugin is enabled.
+ */
+public class FileStager implements FileUtils.FileCopyHandler {
+
+    /**
+     * The ways files can be staged, best first.
+     */
+    public enum Mode {
+
+        REFLINK, HARDLINK, COPY
+    }
+
+    /**
+     * Files smaller than this are copied even when reflinks work, as starting
+     * cp costs more than copying them.
+     */
+    public static final long REFLINK_THRESHOLD = FileUtils.ONE_MB;
+    private static final String PROBE_NAME = ".backuplite-probe";
+    private static volatile Mode detectedMode = Mode.COPY;
+
+    private final Mode mode;
+
+    /**
+     * Creates a stager using the detected mode.
+     *
+     * @param allowHardlinks True if the files being staged will not be written
+     * to until the backup is finished with them.
+     */
+    public FileStager(boolean allowHardlinks) {
+        Mode currentMode = detectedMode;
+        if (currentMode == Mode.HARDLINK && !allowHardlinks) {
+            currentMode = Mode.COPY;
+        }
+        this.mode = currentMode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Works out the best staging mode between two folders, and uses it for
+     * every stager created after.
+     *
+     * @param sourceFolder A folder holding files that will be backed up.
+     * @param stagingFolder The temp folder they will be staged into.
+     * @param configured The configured mode, or "auto" to detect it.
+     * @return The mode that will be used.
+     */
+    public static Mode detect(File sourceFolder, File stagingFolder, String configured) {
+        Mode mode;
+        if (configured.equalsIgnoreCase("copy")) {
+            mode = Mode.COPY;
+        } else {
+            SharedUtils.checkFolderAndCreate(stagingFolder);
+            File probe = new File(sourceFolder, PROBE_NAME);
+            File probeStaged = new File(stagingFolder, PROBE_NAME);
+            mode = Mode.COPY;
+            try {
+                FileOutputStream out = new FileOutputStream(probe);
+                try {
+                    out.write(0);
+                } finally {
+                    out.close();
+                }
+                if (!configured.equalsIgnoreCase("hardlink") && reflink(probe, probeStaged)) {
+                    mode = Mode.REFLINK;
+                } else {
+                    probeStaged.delete();
+                    if (!configured.equalsIgnoreCase("reflink") && hardlink(probe, probeStaged)) {
+                        mode = Mode.HARDLINK;
+                    }
+                }
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to test staging modes.");
+            } finally {
+                probe.delete();
+                probeStaged.delete();
+            }
+        }
+        detectedMode = mode;
+        return mode;
+    }
+
+    @Override
+    public boolean copyFile(File srcFile, File destFile) throws IOException {
+        switch (mode) {
+            case REFLINK:
+                return srcFile.length() >= REFLINK_THRESHOLD && reflink(srcFile, destFile);
+            case HARDLINK:
+                return hardlink(srcFile, destFile);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Clones a file with cp, which knows the ioctl for each filesystem.
+     *
+     * @return True if the clone was made.
+     */
+    private static boolean reflink(File srcFile, File destFile) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder("cp", "--reflink=always", "--preserve=timestamps",
+                srcFile.getPath(), destFile.getPath());
+        builder.redirectErrorStream(true);
+        Process process;
+        try {
+            process = builder.start();
+        } catch (IOException ioe) {
+            // No cp on this system.
+            return false;
+        }
+        try {
+            InputStream output = process.getInputStream();
+            byte[] discard = new byte[512];
+            while (output.read(discard) != -1) {
+                // Nothing to do with it, but it must be read for cp to exit.
+            }
+            output.close();
+            if (process.waitFor() == 0) {
+                return true;
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            process.destroy();
+        }
+        destFile.delete();
+        return false;
+    }
+
+    private static boolean hardlink(File srcFile, File destFile) {
+        try {
+            Files.createLink(destFile.toPath(), srcFile.toPath());
+            return true;
+        } catch (IOException ioe) {
+            return false;
+        } catch (UnsupportedOperationException uoe) {
+            return false;
+        }
+    }
+}
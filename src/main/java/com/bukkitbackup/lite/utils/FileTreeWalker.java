@@ -0,0 +1,148 @@
+package com.bukkitbackup.lite.utils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+
+/**
+ * Walks a folder tree with NIO. Folders are read as a stream rather than
+ * listed into arrays, and each file's attributes are read once, with the
+ * listing where the platform allows, then handed to the filter and the
+ * visitor, so neither has to stat the file again.
+ *
+ * Files that disappear during the walk, as they can in a live world, are
+ * skipped, as are links that lead back up the tree.
+ */
+public class FileTreeWalker {
+
+    /**
+     * A filter that is given each file's attributes, so it does not have to
+     * read them again. Plain filters are still called with just the file.
+     */
+    public interface AttributeFilter extends FileFilter {
+
+        /**
+         * Checks a file or folder.
+         *
+         * @param file The file or folder.
+         * @param attrs Its attributes, as read by the walk.
+         * @return True to include it.
+         */
+        boolean accept(File file, BasicFileAttributes attrs);
+    }
+
+    /**
+     * Receives the files and folders of a walk. Paths are relative to the
+     * folder being walked, with the system separator, and "" for the folder
+     * itself.
+     */
+    public abstract static class Visitor {
+
+        /**
+         * Called for each folder before its contents.
+         *
+         * @return False to skip the folder and its contents.
+         * @throws IOException To stop the walk.
+         */
+        public boolean enterDirectory(File dir, String path, BasicFileAttributes attrs) throws IOException {
+            return true;
+        }
+
+        /**
+         * Called for each file.
+         *
+         * @throws IOException To stop the walk.
+         */
+        public abstract void visitFile(File file, String path, BasicFileAttributes attrs) throws IOException;
+
+        /**
+         * Called for each folder after its contents.
+         *
+         * @throws IOException To stop the walk.
+         */
+        public void leaveDirectory(File dir, String path, BasicFileAttributes attrs) throws IOException {
+        }
+    }
+
+    private FileTreeWalker() {
+    }
+
+    /**
+     * Walks a folder.
+     *
+     * @param root The folder to walk. It is not passed to the filter.
+     * @param filter The filter to apply to files and folders, null for all.
+     * A folder it rejects is not walked.
+     * @param followLinks True to walk into linked folders and read linked
+     * files, false to visit links as they are.
+     * @param visitor Receives the files and folders.
+     * @throws IOException If a folder cannot be read, or the visitor fails.
+     */
+    public static void walk(File root, final FileFilter filter, boolean followLinks, final Visitor visitor) throws IOException {
+        final Path rootPath = root.toPath();
+        EnumSet<FileVisitOption> options = followLinks ? EnumSet.of(FileVisitOption.FOLLOW_LINKS) : EnumSet.noneOf(FileVisitOption.class);
+        Files.walkFileTree(rootPath, options, Integer.MAX_VALUE, new FileVisitor<Path>() {
+
+            private final Deque<BasicFileAttributes> dirAttrs = new ArrayDeque<BasicFileAttributes>();
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                File file = dir.toFile();
+                if (!dir.equals(rootPath) && !accepts(filter, file, attrs)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (!visitor.enterDirectory(file, relativePath(dir), attrs)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                dirAttrs.push(attrs);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+                File file = path.toFile();
+                if (accepts(filter, file, attrs)) {
+                    visitor.visitFile(file, relativePath(path), attrs);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException exc) throws IOException {
+                // Gone since the folder was read, or a link back up the tree.
+                if (exc instanceof NoSuchFileException || exc instanceof FileSystemLoopException) {
+                    return FileVisitResult.CONTINUE;
+                }
+                throw exc;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                visitor.leaveDirectory(dir.toFile(), relativePath(dir), dirAttrs.pop());
+                return FileVisitResult.CONTINUE;
+            }
+
+            private String relativePath(Path path) {
+                return rootPath.relativize(path).toString();
+            }
+        });
+    }
+
+    private static boolean accepts(FileFilter filter, File file, BasicFileAttributes attrs) {
+        if (filter == null) {
+            return true;
+        }
+        if (filter instanceof AttributeFilter) {
+            return ((AttributeFilter) filter).accept(file, attrs);
+        }
+        return filter.accept(file);
+    }
+}
@@ -20,10 +20,11 @@ package com.bukkitbackup.lite.utils;
 
 import java.io.*;
 import java.nio.channels.FileChannel;
-import java.util.ArrayList;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * General file manipulation utilities. <p> Facilities are provided in the
@@ -71,16 +72,29 @@ public class FileUtils {
      */
     private static final long FIFTY_MB = ONE_MB * 50;
     /**
-     * The number of bytes in a gigabyte.
+     * The step copies are made in while reads or writes are rate limited.
+     */
+    private static final long LIMITED_COPY_STEP = ONE_MB;
+    /**
+     * What deleting one file counts as against the write limit.
      */
+    public static final long DELETE_COST = ONE_KB * 4;
     /**
-     * The system separator character.
+     * Limits how fast backups read files.
      */
-    private static final char SYSTEM_SEPARATOR = File.separatorChar;
+    public static final RateLimiter READ_LIMIT = new RateLimiter();
     /**
-     * The Windows separator character.
+     * Limits how fast backups write and delete files.
      */
-    private static final char WINDOWS_SEPARATOR = '\\';
+    public static final RateLimiter WRITE_LIMIT = new RateLimiter();
+    /**
+     * Counts what the running backup has done, for /backup status.
+     */
+    public static final BackupProgress PROGRESS = new BackupProgress();
+    /**
+     * The number of bytes in a gigabyte.
+     */
+    public static final long ONE_GB = ONE_KB * ONE_MB;
 
     /**
      * Copies a whole directory to a new location preserving the file dates. <p>
@@ -190,39 +204,59 @@ public class FileUtils {
      */
     public static void copyDirectory(File srcDir, File destDir,
             FileFilter filter, boolean preserveFileDate) throws IOException {
+        copyDirectory(srcDir, destDir, filter, preserveFileDate, null);
+    }
+
+    /**
+     * Copies a filtered directory to a new location, letting a handler take
+     * over the copying of some files.
+     *
+     * @param srcDir an existing directory to copy, must not be
+     * <code>null</code>
+     * @param destDir the new directory, must not be <code>null</code>
+     * @param filter the filter to apply, null means copy all directories and
+     * files
+     * @param preserveFileDate true if the file date of the copy should be the
+     * same as the original
+     * @param handler the handler to offer each file to first, may be null
+     *
+     * @throws IOException if source or destination is invalid
+     * @throws IOException if an IO error occurs during copying
+     */
+    public static void copyDirectory(File srcDir, File destDir,
+            FileFilter filter, boolean preserveFileDate, FileCopyHandler handler) throws IOException {
         if (srcDir == null) {
             throw new NullPointerException("Source must not be null");
         }
         if (destDir == null) {
             throw new NullPointerException("Destination must not be null");
         }
-        if (!srcDir.exists()) {
+        BasicFileAttributes srcAttrs;
+        try {
+            srcAttrs = Files.readAttributes(srcDir.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException nsfe) {
             throw new FileNotFoundException("Source '" + srcDir + "' does not exist");
         }
-        if (!srcDir.isDirectory()) {
+        if (!srcAttrs.isDirectory()) {
             throw new IOException("Source '" + srcDir + "' exists but is not a directory");
         }
-        if (srcDir.getCanonicalPath().equals(destDir.getCanonicalPath())) {
+        String srcCanonical = srcDir.getCanonicalPath();
+        String destCanonical = destDir.getCanonicalPath();
+        if (srcCanonical.equals(destCanonical)) {
             throw new IOException("Source '" + srcDir + "' and destination '" + destDir + "' are the same");
         }
 
         // Cater for destination being directory within the source directory (see IO-141)
-        List<String> exclusionList = null;
-        if (destDir.getCanonicalPath().startsWith(srcDir.getCanonicalPath())) {
-            File[] srcFiles = filter == null ? srcDir.listFiles() : srcDir.listFiles(filter);
-            if (srcFiles != null && srcFiles.length > 0) {
-                exclusionList = new ArrayList<String>(srcFiles.length);
-                for (File srcFile : srcFiles) {
-                    File copiedFile = new File(destDir, srcFile.getName());
-                    exclusionList.add(copiedFile.getCanonicalPath());
-                }
-            }
+        String excludedPath = null;
+        if (destCanonical.startsWith(srcCanonical.concat(File.separator))) {
+            excludedPath = destCanonical.substring(srcCanonical.length() + 1);
         }
-        doCopyDirectory(srcDir, destDir, filter, preserveFileDate, exclusionList);
+        doCopyDirectory(srcDir, destDir, filter, preserveFileDate, excludedPath, handler);
     }
 
     /**
-     * Internal copy directory method.
+     * Internal copy directory method. The tree is walked once, and each
+     * file's attributes are read with the walk.
      *
      * @param srcDir the validated source directory, must not be
      * <code>null</code>
@@ -231,44 +265,48 @@ public class FileUtils {
      * @param filter the filter to apply, null means copy all directories and
      * files
      * @param preserveFileDate whether to preserve the file date
-     * @param exclusionList List of files and directories to exclude from the
-     * copy, may be null
+     * @param excludedPath the path, relative to the source, of the
+     * destination if it is inside the source, may be null
+     * @param handler the handler to offer each file to first, may be null
      * @throws IOException if an error occurs
      * @since Commons IO 1.1
      */
-    private static void doCopyDirectory(File srcDir, File destDir, FileFilter filter,
-            boolean preserveFileDate, List<String> exclusionList) throws IOException {
-        // recurse
-        File[] files = filter == null ? srcDir.listFiles() : srcDir.listFiles(filter);
-        if (files == null) // null if security restricted
-        {
-            throw new IOException("Failed to list contents of " + srcDir);
-        }
-        if (destDir.exists()) {
-            if (!destDir.isDirectory()) {
-                throw new IOException("Destination '" + destDir + "' exists but is not a directory");
+    private static void doCopyDirectory(File srcDir, final File destDir, FileFilter filter,
+            final boolean preserveFileDate, final String excludedPath, final FileCopyHandler handler) throws IOException {
+        FileTreeWalker.walk(srcDir, filter, true, new FileTreeWalker.Visitor() {
+
+            @Override
+            public boolean enterDirectory(File dir, String path, BasicFileAttributes attrs) throws IOException {
+                if (path.equals(excludedPath)) {
+                    return false;
+                }
+                File copiedDir = new File(destDir, path);
+                if (!copiedDir.mkdirs() && !copiedDir.isDirectory()) {
+                    throw new IOException("Destination '" + copiedDir + "' directory cannot be created");
+                }
+                return true;
             }
-        } else if (!destDir.mkdirs()) {
-            throw new IOException("Destination '" + destDir + "' directory cannot be created");
-        }
-        if (!destDir.canWrite()) {
-            throw new IOException("Destination '" + destDir + "' cannot be written to");
-        }
-        for (File file : files) {
-            File copiedFile = new File(destDir, file.getName());
-            if (exclusionList == null || !exclusionList.contains(file.getCanonicalPath())) {
-                if (file.isDirectory()) {
-                    doCopyDirectory(file, copiedFile, filter, preserveFileDate, exclusionList);
-                } else {
-                    doCopyFile(file, copiedFile, preserveFileDate);
+
+            @Override
+            public void visitFile(File file, String path, BasicFileAttributes attrs) throws IOException {
+                if (path.equals(excludedPath)) {
+                    return;
                 }
+                File copiedFile = new File(destDir, path);
+                if (handler == null || !handler.copyFile(file, copiedFile)) {
+                    doCopyFile(file, copiedFile, preserveFileDate ? attrs.lastModifiedTime().toMillis() : -1);
+                }
+                PROGRESS.fileDone();
             }
-        }
 
-        // Do this last, as the above has probably affected directory metadata
-        if (preserveFileDate) {
-            destDir.setLastModified(srcDir.lastModified());
-        }
+            @Override
+            public void leaveDirectory(File dir, String path, BasicFileAttributes attrs) {
+                // Do this last, as the above has probably affected directory metadata
+                if (preserveFileDate) {
+                    new File(destDir, path).setLastModified(attrs.lastModifiedTime().toMillis());
+                }
+            }
+        });
     }
 
     /**
@@ -278,31 +316,36 @@ public class FileUtils {
      * <code>null</code>
      * @param destFile the validated destination file, must not be
      * <code>null</code>
-     * @param preserveFileDate whether to preserve the file date
+     * @param lastModified the date to give the copy, -1 to leave it
      * @throws IOException if an error occurs
      */
-    private static void doCopyFile(File srcFile, File destFile, boolean preserveFileDate) throws IOException {
-        if (destFile.exists() && destFile.isDirectory()) {
-            throw new IOException("Destination '" + destFile + "' exists but is a directory");
-        }
-        if(!srcFile.exists()){
-            throw new IOException("Source file '"+srcFile+"' does not exist");
-        }
+    private static void doCopyFile(File srcFile, File destFile, long lastModified) throws IOException {
         FileInputStream fis = null;
         FileOutputStream fos = null;
         FileChannel input = null;
         FileChannel output = null;
+        long size = 0;
+        long pos = 0;
         try {
             fis = new FileInputStream(srcFile);
             fos = new FileOutputStream(destFile);
             input = fis.getChannel();
             output = fos.getChannel();
-            long size = input.size();
-            long pos = 0;
+            size = input.size();
             long count = 0;
+            long step = READ_LIMIT.isLimited() || WRITE_LIMIT.isLimited() ? LIMITED_COPY_STEP : FIFTY_MB;
             while (pos < size) {
-                count = (size - pos) > FIFTY_MB ? FIFTY_MB : (size - pos);
-                pos += output.transferFrom(input, pos, count);
+                count = (size - pos) > step ? step : (size - pos);
+                READ_LIMIT.acquire(count);
+                WRITE_LIMIT.acquire(count);
+                long transferred = output.transferFrom(input, pos, count);
+                if (transferred <= 0) {
+                    // The source was cut short while copying.
+                    break;
+                }
+                pos += transferred;
+                PROGRESS.read(transferred);
+                PROGRESS.written(transferred);
             }
         } finally {
             closeQuietly(output);
@@ -311,12 +354,12 @@ public class FileUtils {
             closeQuietly(fis);
         }
 
-        if (srcFile.length() != destFile.length()) {
+        if (pos != size) {
             throw new IOException("Failed to copy full contents from '"
                     + srcFile + "' to '" + destFile + "'");
         }
-        if (preserveFileDate) {
-            destFile.setLastModified(srcFile.lastModified());
+        if (lastModified != -1) {
+            destFile.setLastModified(lastModified);
         }
     }
 
@@ -352,185 +395,130 @@ public class FileUtils {
     }
 
     /**
-     * Deletes a directory recursively.
+     * Deletes a directory recursively. Links are deleted, not followed. Every
+     * file that can be deleted is, before the first failure is thrown.
      *
      * @param directory directory to delete
      * @throws IOException in case deletion is unsuccessful
      */
     public static void deleteDirectory(File directory) throws IOException {
-        if (!directory.exists()) {
+        if (Files.notExists(directory.toPath(), LinkOption.NOFOLLOW_LINKS)) {
             return;
         }
+        final IOException[] failure = new IOException[1];
+        FileTreeWalker.walk(directory, null, false, new FileTreeWalker.Visitor() {
 
-        if (!isSymlink(directory)) {
-            cleanDirectory(directory);
-        }
-
-        if (!directory.delete()) {
-            String message = "Unable to delete directory " + directory + ".";
-            throw new IOException(message);
-        }
-    }
-
-    /**
-     * Cleans a directory without deleting it.
-     *
-     * @param directory directory to clean
-     * @throws IOException in case cleaning is unsuccessful
-     */
-    private static void cleanDirectory(File directory) throws IOException {
-        if (!directory.exists()) {
-            String message = directory + " does not exist";
-            throw new IllegalArgumentException(message);
-        }
-
-        if (!directory.isDirectory()) {
-            String message = directory + " is not a directory";
-            throw new IllegalArgumentException(message);
-        }
-
-        File[] files = directory.listFiles();
-        if (files == null) // null if security restricted
-        {
-            throw new IOException("Failed to list contents of " + directory);
-        }
-
-        IOException exception = null;
-        for (File file : files) {
-            try {
-                forceDelete(file);
-            } catch (IOException ioe) {
-                exception = ioe;
+            @Override
+            public void visitFile(File file, String path, BasicFileAttributes attrs) throws IOException {
+                WRITE_LIMIT.acquire(DELETE_COST);
+                delete(file);
+                PROGRESS.deleted();
             }
-        }
 
-        if (null != exception) {
-            throw exception;
-        }
-    }
+            @Override
+            public void leaveDirectory(File dir, String path, BasicFileAttributes attrs) {
+                delete(dir);
+            }
 
-    /**
-     * Deletes a file. If file is a directory, delete it and all
-     * sub-directories. <p> The difference between File.delete() and this method
-     * are: <ul> <li>A directory to be deleted does not have to be empty.</li>
-     * <li>You get exceptions when a file or directory cannot be deleted.
-     * (java.io.File methods returns a boolean)</li> </ul>
-     *
-     * @param file file or directory to delete, must not be
-     * <code>null</code>
-     * @throws NullPointerException if the directory is
-     * <code>null</code>
-     * @throws FileNotFoundException if the file was not found
-     * @throws IOException in case deletion is unsuccessful
-     */
-    private static void forceDelete(File file) throws IOException {
-        if (file.isDirectory()) {
-            deleteDirectory(file);
-        } else {
-            boolean filePresent = file.exists();
-            if (!file.delete()) {
-                if (!filePresent) {
-                    throw new FileNotFoundException("File does not exist: " + file);
+            private void delete(File file) {
+                try {
+                    Files.deleteIfExists(file.toPath());
+                } catch (IOException ioe) {
+                    if (failure[0] == null) {
+                        failure[0] = ioe;
+                    }
                 }
-                String message =
-                        "Unable to delete file: " + file;
-                throw new IOException(message);
             }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
         }
     }
 
-    /**
-     * Determines whether the specified file is a Symbolic Link rather than an
-     * actual file. <p> Will not return true if there is a Symbolic Link
-     * anywhere in the path, only if the specific file is.
-     *
-     * @param file the file to check
-     * @return true if the file is a Symbolic Link
-     * @throws IOException if an IO error occurs while checking the file
-     * @since Commons IO 2.0
-     */
-    private static boolean isSymlink(File file) throws IOException {
-        if (file == null) {
-            throw new NullPointerException("File must not be null");
-        }
-        if (isSystemWindows()) {
-            return false;
-        }
-        File fileInCanonicalDir = null;
-        if (file.getParent() == null) {
-            fileInCanonicalDir = file;
-        } else {
-            File canonicalDir = file.getParentFile().getCanonicalFile();
-            fileInCanonicalDir = new File(canonicalDir, file.getName());
-        }
-
-        return !fileInCanonicalDir.getCanonicalFile().equals(fileInCanonicalDir.getAbsoluteFile());
-    }
+    public final static String LINE_SEPARATOR = System.getProperty("line.separator");
+    public final static String FILE_SEPARATOR = System.getProperty("file.separator");
 
     /**
-     * Determines if Windows file system is in use.
+     * Zip up a directory
      *
-     * @return true if the system is Windows
+     * @param directory
+     * @param zipName
+     * @throws IOException
      */
-    private static boolean isSystemWindows() {
-        return SYSTEM_SEPARATOR == WINDOWS_SEPARATOR;
+    public static void zipDir(String directory, String zipName) throws IOException {
+        zipDir(directory, zipName, 1, ZipPipeline.DEFAULT_BUDGET);
     }
-    public final static String LINE_SEPARATOR = System.getProperty("line.separator");
-    public final static String FILE_SEPARATOR = System.getProperty("file.separator");
 
     /**
-     * Zip up a directory
+     * Zip up a directory, compressing files on several threads.
      *
      * @param directory
      * @param zipName
+     * @param threads the number of compression threads to use
+     * @param budgetBytes the most file data to hold in memory while compressing
+     * @return the entries written to the archive
      * @throws IOException
      */
-    public static void zipDir(String directory, String zipName) throws IOException {
+    public static List<ZipArchiveWriter.Entry> zipDir(String directory, String zipName, int threads, long budgetBytes) throws IOException {
         // Make sure name is correct.
         if (!zipName.endsWith(".zip")) {
             zipName += ".zip";
         }
-		
-        // create a ZipOutputStream to zip the data to
-        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipName));
-        zipDir(directory, zos, "");
-        // close the stream
-        closeQuietly(zos);
+
+        // create a ZipArchiveWriter to zip the data to
+        ZipArchiveWriter zip = new ZipArchiveWriter(new File(zipName));
+        ParallelDeflater deflater = new ParallelDeflater(threads);
+        ZipPipeline pipeline = new ZipPipeline(zip, deflater, budgetBytes);
+        try {
+            zipDirectory(new File(directory), pipeline, "", null);
+            pipeline.flush();
+            zip.close();
+            return zip.getEntries();
+        } finally {
+            pipeline.abort();
+            deflater.shutdown();
+            // close the stream
+            closeQuietly(zip);
+        }
     }
 
     /**
-     * Zip up a directory path
+     * Zip up a filtered directory into an already open archive. <p> Files are
+     * read straight from their source location, so this can be used to
+     * archive a live tree without staging a copy of it first. The filter is
+     * applied to both files and directories, in the same way as
+     * {@link #copyDirectory(File, File, FileFilter, boolean)}.
      *
-     * @param directory
-     * @param zos
-     * @param path
-     * @throws IOException
+     * @param directory the directory to add, must not be <code>null</code>
+     * @param pipeline the pipeline to add entries to
+     * @param path the entry prefix for this directory, with trailing separator
+     * @param filter the filter to apply, null means add all directories and
+     * files
+     * @throws IOException if an IO error occurs while reading or writing
      */
-    private static void zipDir(String directory, ZipOutputStream zos, String path) throws IOException {
-        File zipDir = new File(directory);
-        // get a listing of the directory content
-        String[] dirList = zipDir.list();
-        byte[] readBuffer = new byte[2156];
-        int bytesIn = 0;
-        // loop through dirList, and zip the files
-        for (int i = 0; i < dirList.length; ++i) {
-            File f = new File(zipDir, dirList[i]);
-            if (f.isDirectory()) {
-                zipDir(f.getPath(), zos, path.concat(f.getName()).concat(FILE_SEPARATOR));
-                continue;
-            }
-            FileInputStream fis = new FileInputStream(f);
-            try {
-                zos.putNextEntry(new ZipEntry(path.concat(f.getName())));
-                bytesIn = fis.read(readBuffer);
-                while (bytesIn != -1) {
-                    zos.write(readBuffer, 0, bytesIn);
-                    bytesIn = fis.read(readBuffer);
-                }
-            } finally {
-                closeQuietly(fis);
+    public static void zipDirectory(File directory, final ZipPipeline pipeline, final String path, FileFilter filter) throws IOException {
+        FileTreeWalker.walk(directory, filter, true, new FileTreeWalker.Visitor() {
+
+            @Override
+            public void visitFile(File file, String filePath, BasicFileAttributes attrs) throws IOException {
+                pipeline.addFile(file, path.concat(filePath), attrs);
             }
-        }
+        });
+    }
+
+    /**
+     * Takes over the copying of particular files in a directory copy.
+     */
+    public interface FileCopyHandler {
 
+        /**
+         * Copies a file in its own way, if it wants to.
+         *
+         * @param srcFile the file to copy
+         * @param destFile where a plain copy of it would go
+         * @return true if the file was dealt with, false to copy it normally
+         * @throws IOException if an error occurs
+         */
+        boolean copyFile(File srcFile, File destFile) throws IOException;
     }
 }
@@ -0,0 +1,409 @@
+package com.bukkitbackup.lite.utils;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates files into a ZipArchiveWriter, splitting large files into blocks
+ * that are compressed on a pool of worker threads.
+ *
+ * Every block except the last is ended with a sync flush, and primed with the
+ * last 32 KB of the block before it, so the blocks join up into one ordinary
+ * deflate stream (the same trick pigz uses). Small files are not worth
+ * splitting; they are deflated whole, either on the calling thread or on the
+ * pool through {@link #deflateAsync(File, String)}.
+ */
+public class ParallelDeflater {
+
+    /**
+     * The amount of uncompressed data given to each worker.
+     */
+    public static final int BLOCK_SIZE = 128 * 1024;
+    /**
+     * Files smaller than this are deflated on the calling thread.
+     */
+    public static final long PARALLEL_THRESHOLD = FileUtils.ONE_MB;
+    /**
+     * The size of the deflate window, carried between blocks.
+     */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    /**
+     * How long shutdown waits for workers to finish what they are on.
+     */
+    private static final long SHUTDOWN_WAIT_SECONDS = 10;
+
+    private final int threads;
+    private final ExecutorService pool;
+    private final Deflater deflater;
+    private final byte[] readBuffer = new byte[64 * 1024];
+    private final byte[] deflateBuffer = new byte[64 * 1024];
+    private final List<Deflater> workerDeflaters = Collections.synchronizedList(new ArrayList<Deflater>()); // ended on shutdown
+    private final ThreadLocal<Deflater> workerDeflater = new ThreadLocal<Deflater>() {
+
+        @Override
+        protected Deflater initialValue() {
+            Deflater fileDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            workerDeflaters.add(fileDeflater);
+            return fileDeflater;
+        }
+    };
+
+    /**
+     * Creates a deflater using the given number of threads.
+     *
+     * @param threads The number of compression threads, 1 disables the pool.
+     */
+    public ParallelDeflater(int threads) {
+        this.threads = Math.max(1, threads);
+        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        if (this.threads > 1) {
+            this.pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "BackupLite-Deflate-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            this.pool = null;
+        }
+    }
+
+    /**
+     * Checks if this deflater has worker threads to hand work to.
+     *
+     * @return True if there is a worker pool.
+     */
+    public boolean isParallel() {
+        return pool != null;
+    }
+
+    /**
+     * Reads and deflates a whole file on the worker pool. The result is held
+     * in memory until it is written with {@link DeflatedFile#writeTo(ZipArchiveWriter)},
+     * so this should only be used for small files.
+     *
+     * @param file The file to read.
+     * @param entryName The name of the entry in the archive.
+     * @param length The file's length when it was listed.
+     * @param time The file's modification time.
+     * @return The pending result.
+     */
+    public Future<DeflatedFile> deflateAsync(final File file, final String entryName, final long length, final long time) {
+        return pool.submit(new Callable<DeflatedFile>() {
+
+            @Override
+            public DeflatedFile call() throws IOException {
+                byte[] data = readFile(file, length);
+                CRC32 crc = new CRC32();
+                crc.update(data, 0, data.length);
+
+                Deflater fileDeflater = workerDeflater.get();
+                fileDeflater.reset();
+                fileDeflater.setInput(data);
+                fileDeflater.finish();
+                byte[] compressed = new byte[(int) getDeflatedCapacity(data.length)];
+                int len = 0;
+                while (!fileDeflater.finished()) {
+                    if (len == compressed.length) {
+                        compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                    }
+                    len += fileDeflater.deflate(compressed, len, compressed.length - len);
+                }
+                return new DeflatedFile(entryName, time, compressed, len, crc.getValue(), data.length);
+            }
+        });
+    }
+
+    /**
+     * Gets the size of the buffer a file is deflated into on the pool, which
+     * is held until the file is written. Deflate can make data slightly
+     * larger, so this is a little over the file's own size.
+     *
+     * @param length The file's length.
+     * @return The buffer size, in bytes.
+     */
+    public static long getDeflatedCapacity(long length) {
+        return length + (length >> 12) + (length >> 14) + 64;
+    }
+
+    /**
+     * Reads all of a file into memory. The file may still be growing if it
+     * is being read from a live world, so this reads until the end of the
+     * stream rather than trusting the length.
+     */
+    private static byte[] readFile(File file, long length) throws IOException {
+        InputStream fis = FileUtils.READ_LIMIT.throttle(new FileInputStream(file));
+        try {
+            byte[] data = new byte[(int) Math.min(length, Integer.MAX_VALUE - 8)];
+            int filled = 0;
+            while (true) {
+                if (filled == data.length) {
+                    int next = fis.read();
+                    if (next == -1) {
+                        return data;
+                    }
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, 4096));
+                    data[filled++] = (byte) next;
+                }
+                int bytesIn = fis.read(data, filled, data.length - filled);
+                if (bytesIn == -1) {
+                    return filled == data.length ? data : Arrays.copyOf(data, filled);
+                }
+                filled += bytesIn;
+            }
+        } finally {
+            closeQuietly(fis);
+        }
+    }
+
+    /**
+     * Adds a file to the archive as one deflated entry.
+     *
+     * @param file The file to read.
+     * @param zip The archive to write to.
+     * @param entryName The name of the entry in the archive.
+     * @param length The file's length when it was listed.
+     * @param time The file's modification time.
+     * @throws IOException If the file cannot be read, or the archive written.
+     */
+    public void deflateFile(File file, ZipArchiveWriter zip, String entryName, long length, long time) throws IOException {
+        InputStream fis = FileUtils.READ_LIMIT.throttle(new FileInputStream(file));
+        try {
+            zip.putNextEntry(entryName, time, length);
+            if (pool == null || length < PARALLEL_THRESHOLD) {
+                deflateSequential(fis, zip);
+            } else {
+                deflateParallel(fis, zip);
+            }
+        } finally {
+            closeQuietly(fis);
+        }
+    }
+
+    /**
+     * Deflates a stream on this thread.
+     */
+    private void deflateSequential(InputStream in, ZipArchiveWriter zip) throws IOException {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        deflater.reset();
+        int bytesIn = in.read(readBuffer);
+        while (bytesIn != -1) {
+            crc.update(readBuffer, 0, bytesIn);
+            size += bytesIn;
+            deflater.setInput(readBuffer, 0, bytesIn);
+            while (!deflater.needsInput()) {
+                int len = deflater.deflate(deflateBuffer);
+                zip.write(deflateBuffer, 0, len);
+            }
+            bytesIn = in.read(readBuffer);
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            int len = deflater.deflate(deflateBuffer);
+            zip.write(deflateBuffer, 0, len);
+        }
+        zip.closeEntry(crc.getValue(), size);
+    }
+
+    /**
+     * Deflates a stream in blocks on the worker pool. Finished blocks are
+     * written in order, and only a few blocks per thread are kept in flight.
+     */
+    private void deflateParallel(InputStream in, ZipArchiveWriter zip) throws IOException {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        byte[] dictionary = null;
+        try {
+            byte[] block = readBlock(in);
+            if (block == null) {
+                block = new byte[0];
+            }
+            while (true) {
+
+                // Read ahead, so we know if this is the last block.
+                byte[] next = readBlock(in);
+                boolean last = next == null;
+
+                crc.update(block, 0, block.length);
+                size += block.length;
+                pending.add(pool.submit(new BlockTask(block, dictionary, last)));
+                if (pending.size() >= threads * 2) {
+                    writeBlock(pending.poll(), zip);
+                }
+                if (last) {
+                    break;
+                }
+                dictionary = block.length > DICTIONARY_SIZE
+                        ? Arrays.copyOfRange(block, block.length - DICTIONARY_SIZE, block.length)
+                        : block;
+                block = next;
+            }
+            while (!pending.isEmpty()) {
+                writeBlock(pending.poll(), zip);
+            }
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+        }
+        zip.closeEntry(crc.getValue(), size);
+    }
+
+    private void writeBlock(Future<byte[]> future, ZipArchiveWriter zip) throws IOException {
+        byte[] compressed;
+        try {
+            compressed = future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException ee) {
+            throw new IOException("Failed to compress block", ee.getCause());
+        }
+        zip.write(compressed, 0, compressed.length);
+    }
+
+    /**
+     * Reads up to one full block.
+     *
+     * @return The block, or null at the end of the stream.
+     */
+    private byte[] readBlock(InputStream in) throws IOException {
+        byte[] block = new byte[BLOCK_SIZE];
+        int filled = 0;
+        while (filled < BLOCK_SIZE) {
+            int bytesIn = in.read(block, filled, BLOCK_SIZE - filled);
+            if (bytesIn == -1) {
+                break;
+            }
+            filled += bytesIn;
+        }
+        if (filled == 0) {
+            return null;
+        }
+        return filled == BLOCK_SIZE ? block : Arrays.copyOf(block, filled);
+    }
+
+    /**
+     * Stops the worker threads, and frees the native memory held by every
+     * deflater, once the workers have finished what they were on.
+     */
+    public void shutdown() {
+        deflater.end();
+        if (pool != null) {
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (workerDeflaters) {
+            for (Deflater fileDeflater : workerDeflaters) {
+                fileDeflater.end();
+            }
+            workerDeflaters.clear();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException ioe) {
+            // ignore
+        }
+    }
+
+    /**
+     * A whole file that has been deflated into memory, waiting to be written.
+     */
+    public static class DeflatedFile {
+
+        private final String entryName;
+        private final long time;
+        private final byte[] data;
+        private final int length;
+        private final long crc;
+        private final long size;
+
+        DeflatedFile(String entryName, long time, byte[] data, int length, long crc, long size) {
+            this.entryName = entryName;
+            this.time = time;
+            this.data = data;
+            this.length = length;
+            this.crc = crc;
+            this.size = size;
+        }
+
+        /**
+         * Writes this file to the archive as a complete entry.
+         *
+         * @param zip The archive to write to.
+         * @throws IOException If the entry cannot be written.
+         */
+        public void writeTo(ZipArchiveWriter zip) throws IOException {
+            zip.writeEntry(entryName, time, data, length, crc, size);
+        }
+    }
+
+    /**
+     * Compresses one block into a self-contained piece of a deflate stream.
+     */
+    private static class BlockTask implements Callable<byte[]> {
+
+        private final byte[] block;
+        private final byte[] dictionary;
+        private final boolean last;
+
+        BlockTask(byte[] block, byte[] dictionary, boolean last) {
+            this.block = block;
+            this.dictionary = dictionary;
+            this.last = last;
+        }
+
+        @Override
+        public byte[] call() {
+            Deflater blockDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                if (dictionary != null) {
+                    blockDeflater.setDictionary(dictionary);
+                }
+                blockDeflater.setInput(block);
+                ByteArrayOutputStream out = new ByteArrayOutputStream(block.length / 2 + 64);
+                byte[] buffer = new byte[32 * 1024];
+                if (last) {
+                    blockDeflater.finish();
+                    while (!blockDeflater.finished()) {
+                        int len = blockDeflater.deflate(buffer);
+                        out.write(buffer, 0, len);
+                    }
+                } else {
+                    int len;
+                    do {
+                        len = blockDeflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        out.write(buffer, 0, len);
+                    } while (len == buffer.length);
+                }
+                return out.toByteArray();
+            } finally {
+                blockDeflater.end();
+            }
+        }
+    }
+}
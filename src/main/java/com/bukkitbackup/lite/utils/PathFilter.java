@@ -0,0 +1,282 @@
+package com.bukkitbackup.lite.utils;
+
+import java.io.File;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Includes or excludes files by a list of glob patterns, matched against
+ * their path from a root folder, such as "dynmap/web/tiles" or
+ * "**&#47;cache/**". The patterns are compiled once, when the filter is made.
+ *
+ * A pattern matches a file or folder, and everything inside it, so an
+ * excluded folder is rejected as a whole and the walk never goes into it. In
+ * include mode, folders are only entered if they can hold something that is
+ * included. A leading "**&#47;" also matches at the root.
+ *
+ * Only patterns with a glob character, one of "*?[{", are globs. Others are
+ * matched as they are written: as the whole path, or in prefix mode as the
+ * start of it, so "Essentials" matches both "Essentials/" and
+ * "Essentials.jar" the way pluginlist always has. A glob still matches a name
+ * that is written the same, such as a world called "[Creative]".
+ */
+public class PathFilter implements FileTreeWalker.AttributeFilter {
+
+    private final Path root;
+    private final boolean exclude;
+    private final boolean prefixes;
+    private final List<String> patterns;
+    private final List<PathMatcher> matchers = new ArrayList<PathMatcher>();
+    private final List<PathMatcher[]> segments = new ArrayList<PathMatcher[]>();
+
+    /**
+     * Creates a filter.
+     *
+     * @param root The folder paths are matched from, may be null if only
+     * {@link #matches(String)} is used.
+     * @param patterns The patterns, separated by semicolons.
+     * @param exclude True to reject what the patterns match, false to accept
+     * only what they match.
+     */
+    public PathFilter(File root, String patterns, boolean exclude) {
+        this(root, split(patterns), exclude, false);
+    }
+
+    /**
+     * Creates a filter.
+     *
+     * @param root The folder paths are matched from, may be null if only
+     * {@link #matches(String)} is used.
+     * @param patterns The patterns, separated by semicolons.
+     * @param exclude True to reject what the patterns match, false to accept
+     * only what they match.
+     * @param prefixes True to match patterns that are not globs as the start
+     * of a path, rather than the whole of it.
+     */
+    public PathFilter(File root, String patterns, boolean exclude, boolean prefixes) {
+        this(root, split(patterns), exclude, prefixes);
+    }
+
+    /**
+     * Creates a filter.
+     *
+     * @param root The folder paths are matched from, may be null if only
+     * {@link #matches(String)} is used.
+     * @param patterns The patterns.
+     * @param exclude True to reject what the patterns match, false to accept
+     * only what they match.
+     */
+    public PathFilter(File root, List<String> patterns, boolean exclude) {
+        this(root, patterns, exclude, false);
+    }
+
+    /**
+     * Creates a filter.
+     *
+     * @param root The folder paths are matched from, may be null if only
+     * {@link #matches(String)} is used.
+     * @param patterns The patterns.
+     * @param exclude True to reject what the patterns match, false to accept
+     * only what they match.
+     * @param prefixes True to match patterns that are not globs as the start
+     * of a path, rather than the whole of it.
+     */
+    public PathFilter(File root, List<String> patterns, boolean exclude, boolean prefixes) {
+        this.root = root == null ? null : root.toPath();
+        this.exclude = exclude;
+        this.prefixes = prefixes;
+        this.patterns = Collections.unmodifiableList(new ArrayList<String>(patterns));
+
+        FileSystem fileSystem = FileSystems.getDefault();
+        Set<String> globs = new LinkedHashSet<String>();
+        for (String pattern : this.patterns) {
+            if (!isGlob(pattern)) {
+                continue;
+            }
+            globs.add(pattern);
+            if (pattern.startsWith("**/")) {
+                globs.add(pattern.substring(3));
+            }
+        }
+        for (String glob : globs) {
+            try {
+                addGlob(fileSystem, glob);
+            } catch (PatternSyntaxException pse) {
+                // Not a valid glob, such as "world[", so only matched as written.
+            }
+        }
+    }
+
+    /**
+     * Compiles a glob, into matchers for it and everything inside it, and one
+     * for each of its folders.
+     */
+    private void addGlob(FileSystem fileSystem, String glob) {
+        String base = glob.endsWith("/**") ? glob.substring(0, glob.length() - 3) : glob;
+        PathMatcher matcher = fileSystem.getPathMatcher("glob:".concat(base));
+        PathMatcher insideMatcher = fileSystem.getPathMatcher("glob:".concat(base).concat("/**"));
+
+        // Each folder of the pattern, for telling if a folder can hold a match.
+        String[] names = base.split("/");
+        PathMatcher[] nameMatchers = new PathMatcher[names.length];
+        for (int i = 0; i < names.length; i++) {
+            nameMatchers[i] = names[i].equals("**") ? null : fileSystem.getPathMatcher("glob:".concat(names[i]));
+        }
+        matchers.add(matcher);
+        matchers.add(insideMatcher);
+        segments.add(nameMatchers);
+    }
+
+    /**
+     * Checks if a pattern has any glob characters.
+     */
+    private static boolean isGlob(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("*?[{".indexOf(pattern.charAt(i)) != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits a semicolon separated list of patterns, leaving out blanks.
+     *
+     * @param patterns The list.
+     * @return The patterns, with "/" between folders.
+     */
+    public static List<String> split(String patterns) {
+        List<String> list = new ArrayList<String>();
+        if (patterns == null) {
+            return list;
+        }
+        for (String pattern : patterns.split(";")) {
+            pattern = pattern.trim().replace('\\', '/');
+            while (pattern.startsWith("./")) {
+                pattern = pattern.substring(2);
+            }
+            while (pattern.endsWith("/")) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            if (!pattern.isEmpty()) {
+                list.add(pattern);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Checks if there are no patterns.
+     *
+     * @return True if there are none.
+     */
+    public boolean isEmpty() {
+        return patterns.isEmpty();
+    }
+
+    /**
+     * Gets the patterns, as they were given.
+     *
+     * @return The patterns.
+     */
+    public List<String> getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * Checks if a path is matched by any of the patterns, whatever the mode.
+     *
+     * @param path The path from the root, such as a world name.
+     * @return True if it matches.
+     */
+    public boolean matches(String path) {
+        return matches(Paths.get(path));
+    }
+
+    @Override
+    public boolean accept(File file) {
+        return accept(file, file.isDirectory());
+    }
+
+    @Override
+    public boolean accept(File file, BasicFileAttributes attrs) {
+        return accept(file, attrs.isDirectory());
+    }
+
+    private boolean accept(File file, boolean directory) {
+        if (patterns.isEmpty()) {
+            return exclude;
+        }
+        Path path = root.relativize(file.toPath());
+        if (matches(path)) {
+            return !exclude;
+        }
+        return exclude || (directory && canContainMatch(path));
+    }
+
+    private boolean matches(Path path) {
+        String name = toName(path);
+        for (String pattern : patterns) {
+            if (prefixes ? name.startsWith(pattern) : (name.equals(pattern) || name.startsWith(pattern.concat("/")))) {
+                return true;
+            }
+        }
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if a folder is on the way to something a pattern matches, so
+     * must be entered in include mode.
+     */
+    private boolean canContainMatch(Path folder) {
+        String folderPrefix = toName(folder).concat("/");
+        for (String pattern : patterns) {
+            if (pattern.startsWith(folderPrefix)) {
+                return true;
+            }
+        }
+        int depth = folder.getNameCount();
+        for (PathMatcher[] names : segments) {
+            for (int i = 0; i < depth && i < names.length - 1; i++) {
+                if (names[i] == null) {
+                    return true; // "**" can be any number of folders
+                }
+                if (!names[i].matches(folder.getName(i))) {
+                    break;
+                }
+                if (i == depth - 1) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets a path as it would be written in a pattern, with "/" between
+     * folders.
+     */
+    private static String toName(Path path) {
+        return path.toString().replace(File.separatorChar, '/');
+    }
+
+    @Override
+    public String toString() {
+        return patterns.toString();
+    }
+}
@@ -0,0 +1,184 @@
+package com.bukkitbackup.lite.utils;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that limits how many bytes a second pass through it.
+ *
+ * The bucket holds up to a burst's worth of bytes, and refills at the set
+ * rate. Anything that fits in the bucket goes straight through, so small files
+ * are not slowed down, while long reads or writes settle to the rate. Callers
+ * that take more than is there go into debt, and wait for it to be paid back,
+ * so the threads sharing a limiter queue up fairly.
+ *
+ * A limiter with no rate set lets everything through. A throttle can be put
+ * on top of the set rate for a while, such as when the server is lagging, and
+ * whichever is lower applies.
+ */
+public class RateLimiter {
+
+    private double bytesPerSecond;
+    private double throttleBytesPerSecond;
+    private double burstBytes;
+    private double available;
+    private long lastRefill = System.nanoTime();
+    private final AtomicLong bytesPassed = new AtomicLong();
+
+    /**
+     * Creates a limiter with no limit.
+     */
+    public RateLimiter() {
+        this(0, 0);
+    }
+
+    /**
+     * Creates a limiter.
+     *
+     * @param bytesPerSecond The rate, 0 or less for no limit.
+     * @param burstBytes How many bytes may go through at once.
+     */
+    public RateLimiter(double bytesPerSecond, double burstBytes) {
+        setLimit(bytesPerSecond, burstBytes);
+    }
+
+    /**
+     * Changes the rate and burst allowance. The bucket starts full.
+     *
+     * @param bytesPerSecond The rate, 0 or less for no limit.
+     * @param burstBytes How many bytes may go through at once.
+     */
+    public synchronized void setLimit(double bytesPerSecond, double burstBytes) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstBytes = Math.max(0, burstBytes);
+        this.available = this.burstBytes;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public synchronized double getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Puts a throttle on top of the set rate, or takes it off.
+     *
+     * @param bytesPerSecond The throttled rate, 0 or less to remove it.
+     */
+    public synchronized void setThrottle(double bytesPerSecond) {
+        this.throttleBytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    public synchronized double getThrottle() {
+        return throttleBytesPerSecond;
+    }
+
+    public synchronized boolean isLimited() {
+        return getEffectiveRate() > 0;
+    }
+
+    /**
+     * Gets the number of bytes that have passed since this was last called.
+     *
+     * @return The byte count.
+     */
+    public long takeBytesPassed() {
+        return bytesPassed.getAndSet(0);
+    }
+
+    /**
+     * Gets the rate that applies, the lower of the set rate and the throttle.
+     */
+    private double getEffectiveRate() {
+        if (bytesPerSecond > 0 && throttleBytesPerSecond > 0) {
+            return Math.min(bytesPerSecond, throttleBytesPerSecond);
+        }
+        return Math.max(bytesPerSecond, throttleBytesPerSecond);
+    }
+
+    /**
+     * Takes bytes from the bucket, waiting until they are paid for.
+     *
+     * @param bytes The number of bytes.
+     * @throws InterruptedIOException If interrupted while waiting.
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        if (bytes <= 0) {
+            return;
+        }
+        bytesPassed.addAndGet(bytes);
+        long waitNanos;
+        synchronized (this) {
+            double rate = getEffectiveRate();
+            if (rate <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            available = Math.min(burstBytes, available + (now - lastRefill) * rate / 1000000000D);
+            lastRefill = now;
+            available -= bytes;
+            if (available >= 0) {
+                return;
+            }
+            waitNanos = (long) (-available / rate * 1000000000D);
+        }
+        try {
+            Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while rate limited");
+        }
+    }
+
+    /**
+     * Wraps a stream so every byte read from it is taken from this limiter.
+     *
+     * @param in The stream to limit.
+     * @return The limited stream.
+     */
+    public InputStream throttle(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int next = super.read();
+                if (next != -1) {
+                    acquire(1);
+                }
+                return next;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int bytesIn = super.read(b, off, len);
+                acquire(bytesIn);
+                return bytesIn;
+            }
+        };
+    }
+
+    /**
+     * Wraps a stream so every byte written to it is taken from this limiter.
+     *
+     * @param out The stream to limit.
+     * @return The limited stream.
+     */
+    public OutputStream throttle(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                acquire(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                acquire(len);
+                out.write(b, off, len);
+            }
+        };
+    }
+}
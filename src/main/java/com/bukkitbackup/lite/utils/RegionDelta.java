@@ -0,0 +1,248 @@
+package com.bukkitbackup.lite.utils;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes chunk level deltas of Minecraft region (.mca) files.
+ *
+ * A region file starts with two 4 KB tables: the location (sector offset and
+ * sector count) of each of its 1024 chunks, then the time each chunk was last
+ * saved. A delta holds the new copy of both tables, and the data of only the
+ * chunks whose save time differs from the previous backup. Applying it to the
+ * previous copy of the region rebuilds the full file.
+ *
+ * Delta layout: "MCAD" and a version, the 8 KB header, a chunk count, then for
+ * each chunk its index, its length and its data as stored in the region.
+ */
+public class RegionDelta {
+
+    /**
+     * Added to the name of a region file to store its delta.
+     */
+    public static final String DELTA_SUFFIX = ".delta";
+    private static final int SECTOR_SIZE = 4096;
+    private static final int CHUNK_COUNT = 1024;
+    private static final int HEADER_SIZE = SECTOR_SIZE * 2;
+    private static final int MAGIC = 0x4d434144; // "MCAD"
+    private static final int VERSION = 1;
+
+    /**
+     * Checks if a file is a region file that deltas can be made of.
+     *
+     * @param file The file to check.
+     * @return True for .mca files.
+     */
+    public static boolean isRegionFile(File file) {
+        return file.getName().endsWith(".mca");
+    }
+
+    /**
+     * Reads the chunk save times from a stored region file or delta.
+     *
+     * @param in The stream, at the start of the file.
+     * @param isDelta True if the stream holds a delta, not a full region.
+     * @return The 1024 save times.
+     * @throws IOException If the header cannot be read.
+     */
+    public static int[] readTimestamps(InputStream in, boolean isDelta) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (isDelta) {
+            readMagic(data);
+        }
+        skipFully(data, SECTOR_SIZE);
+        int[] timestamps = new int[CHUNK_COUNT];
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            timestamps[i] = data.readInt();
+        }
+        return timestamps;
+    }
+
+    /**
+     * Writes a delta holding the chunks of a region that were saved since the
+     * given times.
+     *
+     * @param region The live region file.
+     * @param deltaFile Where to write the delta.
+     * @param previousTimestamps The save times from the previous backup.
+     * @return The number of chunks written, or -1 if the region file is not
+     * valid and should be copied whole instead.
+     * @throws IOException If the region cannot be read or the delta written.
+     */
+    public static int writeDelta(File region, File deltaFile, int[] previousTimestamps) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(region, "r");
+        try {
+            long regionLength = in.length();
+            if (regionLength < HEADER_SIZE) {
+                return -1;
+            }
+            byte[] header = new byte[HEADER_SIZE];
+            in.readFully(header);
+            DataInputStream headerData = new DataInputStream(new ByteArrayInputStream(header));
+            int[] locations = new int[CHUNK_COUNT];
+            int[] timestamps = new int[CHUNK_COUNT];
+            for (int i = 0; i < CHUNK_COUNT; i++) {
+                locations[i] = headerData.readInt();
+            }
+            for (int i = 0; i < CHUNK_COUNT; i++) {
+                timestamps[i] = headerData.readInt();
+            }
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(deltaFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(header);
+
+                int changedCount = 0;
+                for (int i = 0; i < CHUNK_COUNT; i++) {
+                    if (locations[i] != 0 && timestamps[i] != previousTimestamps[i]) {
+                        changedCount++;
+                    }
+                }
+                out.writeInt(changedCount);
+
+                for (int i = 0; i < CHUNK_COUNT; i++) {
+                    if (locations[i] == 0 || timestamps[i] == previousTimestamps[i]) {
+                        continue;
+                    }
+                    byte[] chunk = readChunk(in, locations[i], regionLength);
+                    if (chunk == null) {
+                        return -1;
+                    }
+                    out.writeShort(i);
+                    out.writeInt(chunk.length);
+                    out.write(chunk);
+                }
+                return changedCount;
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Rebuilds a full region file from the previous copy and a delta.
+     *
+     * @param base The previous full copy of the region.
+     * @param delta The delta, from the backup after the base.
+     * @param out Where to write the rebuilt region.
+     * @throws IOException If a chunk is missing, or the files cannot be used.
+     */
+    public static void rebuild(File base, InputStream delta, File out) throws IOException {
+        DataInputStream deltaData = new DataInputStream(new BufferedInputStream(delta));
+        readMagic(deltaData);
+        int[] locations = new int[CHUNK_COUNT];
+        int[] timestamps = new int[CHUNK_COUNT];
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            locations[i] = deltaData.readInt();
+        }
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            timestamps[i] = deltaData.readInt();
+        }
+        int changedCount = deltaData.readInt();
+        Map<Integer, byte[]> changedChunks = new HashMap<Integer, byte[]>();
+        for (int n = 0; n < changedCount; n++) {
+            int index = deltaData.readUnsignedShort();
+            byte[] chunk = new byte[deltaData.readInt()];
+            deltaData.readFully(chunk);
+            changedChunks.put(index, chunk);
+        }
+
+        RandomAccessFile baseIn = new RandomAccessFile(base, "r");
+        RandomAccessFile regionOut = new RandomAccessFile(out, "rw");
+        try {
+            long baseLength = baseIn.length();
+            int[] baseLocations = new int[CHUNK_COUNT];
+            if (baseLength >= HEADER_SIZE) {
+                for (int i = 0; i < CHUNK_COUNT; i++) {
+                    baseLocations[i] = baseIn.readInt();
+                }
+            }
+
+            regionOut.setLength(0);
+            regionOut.seek(HEADER_SIZE);
+            int[] newLocations = new int[CHUNK_COUNT];
+            int sector = 2;
+            for (int i = 0; i < CHUNK_COUNT; i++) {
+                if (locations[i] == 0) {
+                    continue;
+                }
+                byte[] chunk = changedChunks.get(i);
+                if (chunk == null) {
+                    chunk = baseLocations[i] == 0 ? null : readChunk(baseIn, baseLocations[i], baseLength);
+                    if (chunk == null) {
+                        throw new IOException("Chunk " + i + " of " + out.getName() + " is missing from the base region");
+                    }
+                }
+
+                // Chunks are packed one after the other, padded to whole sectors.
+                int sectors = (chunk.length + 4 + SECTOR_SIZE - 1) / SECTOR_SIZE;
+                regionOut.writeInt(chunk.length);
+                regionOut.write(chunk);
+                regionOut.write(new byte[sectors * SECTOR_SIZE - chunk.length - 4]);
+                newLocations[i] = (sector << 8) | Math.min(sectors, 255);
+                sector += sectors;
+            }
+
+            regionOut.seek(0);
+            for (int i = 0; i < CHUNK_COUNT; i++) {
+                regionOut.writeInt(newLocations[i]);
+            }
+            for (int i = 0; i < CHUNK_COUNT; i++) {
+                regionOut.writeInt(timestamps[i]);
+            }
+        } finally {
+            baseIn.close();
+            regionOut.close();
+        }
+    }
+
+    /**
+     * Reads one chunk's data, as stored after its length field.
+     *
+     * @return The chunk, or null if its location is not valid.
+     */
+    private static byte[] readChunk(RandomAccessFile in, int location, long regionLength) throws IOException {
+        long offset = (long) (location >>> 8) * SECTOR_SIZE;
+        int sectors = location & 0xFF;
+        if (offset < HEADER_SIZE || offset + 4 > regionLength) {
+            return null;
+        }
+        in.seek(offset);
+        int length = in.readInt();
+        if (length <= 0 || offset + 4 + length > regionLength || (sectors != 255 && length + 4 > sectors * SECTOR_SIZE)) {
+            return null;
+        }
+        byte[] chunk = new byte[length];
+        in.readFully(chunk);
+        return chunk;
+    }
+
+    private static void readMagic(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a region delta");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unknown region delta version " + version);
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+}
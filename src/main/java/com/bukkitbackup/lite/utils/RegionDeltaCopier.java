@@ -0,0 +1,136 @@
+package com.bukkitbackup.lite.utils;
+
+import com.bukkitbackup.lite.utils.BackupManifest.FileRecord;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Copies changed region files as deltas against the previous backup, so only
+ * the chunks saved since then are stored.
+ *
+ * The previous chunk save times are read from the header of the region, or of
+ * its delta, in the archive that holds it. A region with no earlier copy, or
+ * where most of the file has changed anyway, is copied whole, which also keeps
+ * delta chains from growing when the world is being rewritten.
+ */
+public class RegionDeltaCopier implements FileUtils.FileCopyHandler {
+
+    private final File backupsFolder;
+    private final BackupManifest previous;
+    private final Map<String, ZipFile> openArchives = new HashMap<String, ZipFile>();
+    private final AtomicInteger deltaCount = new AtomicInteger();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * Creates a copier comparing against a previous backup.
+     *
+     * @param backupsFolder The backup path.
+     * @param previous The manifest of the previous backup.
+     */
+    public RegionDeltaCopier(File backupsFolder, BackupManifest previous) {
+        this.backupsFolder = backupsFolder;
+        this.previous = previous;
+    }
+
+    @Override
+    public boolean copyFile(File srcFile, File destFile) throws IOException {
+        if (!RegionDelta.isRegionFile(srcFile)) {
+            return false;
+        }
+        FileRecord record = previous.get(BackupManifest.getEntryName(srcFile));
+        if (record == null) {
+            return false;
+        }
+        int[] previousTimestamps = readPreviousTimestamps(record);
+        if (previousTimestamps == null) {
+            return false;
+        }
+
+        File deltaFile = new File(destFile.getPath().concat(RegionDelta.DELTA_SUFFIX));
+        long regionLength = srcFile.length();
+        int chunkCount = RegionDelta.writeDelta(srcFile, deltaFile, previousTimestamps);
+
+        // Not worth it, or not a region we understand: copy it whole.
+        if (chunkCount < 0 || deltaFile.length() > regionLength / 2) {
+            deltaFile.delete();
+            return false;
+        }
+        deltaFile.setLastModified(srcFile.lastModified());
+        deltaCount.incrementAndGet();
+        bytesSaved.addAndGet(regionLength - deltaFile.length());
+        return true;
+    }
+
+    /**
+     * Reads the chunk save times of a region's previous copy.
+     *
+     * @return The save times, or null if the copy cannot be read.
+     */
+    private int[] readPreviousTimestamps(FileRecord record) {
+        String entryName = record.isDelta() ? record.getPath().concat(RegionDelta.DELTA_SUFFIX) : record.getPath();
+        try {
+            ZipFile archive = getArchive(record.getBackupName());
+            ZipEntry entry = archive.getEntry(entryName);
+            if (entry == null) {
+                return null;
+            }
+            InputStream in = archive.getInputStream(entry);
+            try {
+                return RegionDelta.readTimestamps(in, record.isDelta());
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to read previous copy of " + record.getPath() + ", copying it whole.");
+            return null;
+        }
+    }
+
+    private synchronized ZipFile getArchive(String backupName) throws IOException {
+        ZipFile archive = openArchives.get(backupName);
+        if (archive == null) {
+            archive = new ZipFile(new File(backupsFolder, backupName.concat(".zip")));
+            openArchives.put(backupName, archive);
+        }
+        return archive;
+    }
+
+    /**
+     * Gets the number of regions stored as deltas.
+     *
+     * @return The count.
+     */
+    public int getDeltaCount() {
+        return deltaCount.get();
+    }
+
+    /**
+     * Gets the number of bytes not copied thanks to deltas.
+     *
+     * @return The byte count.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * Closes the archives opened to read previous copies.
+     */
+    public synchronized void close() {
+        for (ZipFile archive : openArchives.values()) {
+            try {
+                archive.close();
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe);
+            }
+        }
+        openArchives.clear();
+    }
+}
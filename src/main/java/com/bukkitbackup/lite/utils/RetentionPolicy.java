@@ -0,0 +1,120 @@
+package com.bukkitbackup.lite.utils;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * A grandfather-father-son retention policy: a list of tiers by age, each
+ * keeping one backup per interval.
+ *
+ * For example "2h:all;2d:1h;30d:1d;all:1w" keeps every backup from the last
+ * 2 hours, the newest of each hour for 2 days, of each day for 30 days, and
+ * of each week after that. Ages and intervals are in minutes, or end in m, h,
+ * d or w, like the backup interval. Days and weeks follow the server's time
+ * zone, and weeks start on the first day of the week for its locale.
+ */
+public class RetentionPolicy {
+
+    private static final long MINUTE = 60000L;
+    private static final long DAY = 1440 * MINUTE;
+    private static final long WEEK = 7 * DAY;
+    private final long[] maxAges; // Long.MAX_VALUE for no limit
+    private final long[] intervals; // 0 to keep every backup
+
+    private RetentionPolicy(long[] maxAges, long[] intervals) {
+        this.maxAges = maxAges;
+        this.intervals = intervals;
+    }
+
+    /**
+     * Reads a policy from its setting.
+     *
+     * @param spec The tiers, seperated by semicolons.
+     * @return The policy.
+     * @throws IllegalArgumentException If a tier cannot be read, or the tiers
+     * are not in order of age.
+     */
+    public static RetentionPolicy parse(String spec) {
+        String[] tiers = spec.trim().toLowerCase().split(";");
+        long[] maxAges = new long[tiers.length];
+        long[] intervals = new long[tiers.length];
+        for (int i = 0; i < tiers.length; i++) {
+            String[] parts = tiers[i].trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Tier '" + tiers[i] + "' is not age:interval");
+            }
+            maxAges[i] = parts[0].trim().equals("all") ? Long.MAX_VALUE : parseDuration(parts[0]);
+            intervals[i] = parts[1].trim().equals("all") ? 0 : parseDuration(parts[1]);
+            if (i > 0 && maxAges[i] <= maxAges[i - 1]) {
+                throw new IllegalArgumentException("Tier '" + tiers[i] + "' must be for older backups than the one before");
+            }
+        }
+        return new RetentionPolicy(maxAges, intervals);
+    }
+
+    private static long parseDuration(String duration) {
+        duration = duration.trim();
+        if (!duration.matches("^[0-9]+[mhdw]?$")) {
+            throw new IllegalArgumentException("'" + duration + "' is not a time");
+        }
+        char unit = duration.charAt(duration.length() - 1);
+        long minutes = Character.isDigit(unit) ? 1 : unit == 'h' ? 60 : unit == 'd' ? 1440 : unit == 'w' ? 10080 : 1;
+        long amount = Long.parseLong(Character.isDigit(unit) ? duration : duration.substring(0, duration.length() - 1));
+        if (amount <= 0) {
+            throw new IllegalArgumentException("'" + duration + "' must be more than 0");
+        }
+        return amount * minutes * MINUTE;
+    }
+
+    /**
+     * Works out which backups the policy does not keep, in one pass from the
+     * newest to the oldest.
+     *
+     * @param backups The backups, oldest first.
+     * @param now The current time.
+     * @return The backups to remove, oldest first.
+     */
+    public List<BackupCatalog.Record> selectExpired(List<BackupCatalog.Record> backups, long now) {
+        List<BackupCatalog.Record> expired = new ArrayList<BackupCatalog.Record>();
+        TimeZone timeZone = TimeZone.getDefault();
+
+        // The epoch was a Thursday, so weeks are moved to start on the locale's first day.
+        long weekShift = ((Calendar.THURSDAY - Calendar.getInstance().getFirstDayOfWeek() + 7) % 7) * DAY;
+        int tier = 0;
+        long lastBucket = Long.MIN_VALUE;
+        for (int i = backups.size() - 1; i >= 0; i--) {
+            BackupCatalog.Record backup = backups.get(i);
+            long age = now - backup.getTime();
+
+            // Backups only get older, so the tier only moves forward.
+            while (tier < maxAges.length && age > maxAges[tier]) {
+                tier++;
+                lastBucket = Long.MIN_VALUE;
+            }
+            if (tier == maxAges.length) {
+                expired.add(backup);
+                continue;
+            }
+            if (intervals[tier] == 0) {
+                continue;
+            }
+
+            // Keep the newest backup in each interval.
+            long localTime = backup.getTime() + timeZone.getOffset(backup.getTime());
+            if (intervals[tier] % WEEK == 0) {
+                localTime += weekShift;
+            }
+            long bucket = localTime / intervals[tier];
+            if (bucket == lastBucket) {
+                expired.add(backup);
+            } else {
+                lastBucket = bucket;
+            }
+        }
+        Collections.reverse(expired);
+        return expired;
+    }
+}
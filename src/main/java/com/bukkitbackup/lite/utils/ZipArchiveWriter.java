@@ -0,0 +1,404 @@
+package com.bukkitbackup.lite.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a ZIP archive from entries that are already deflated.
+ *
+ * Unlike ZipOutputStream, this accepts raw deflate data, so entries can be
+ * compressed elsewhere (and in parallel) and appended here in order. Sizes and
+ * CRCs are patched into the local header once an entry is closed, so no data
+ * descriptors are needed. ZIP64 records are written when the archive, an entry
+ * or the entry count outgrows the classic format, so large worlds stay
+ * readable by standard unzip tools.
+ */
+public class ZipArchiveWriter implements Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int METHOD_DEFLATED = 8;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    /**
+     * Entries expected to be at least this big reserve a ZIP64 extra field in
+     * their local header, leaving room for deflate expansion.
+     */
+    private static final long ZIP64_ENTRY_THRESHOLD = 0xF0000000L;
+
+    private final File archiveFile;
+    private final FileOutputStream fileStream;
+    private final FileChannel channel;
+    private final OutputStream out;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private Entry current;
+    private long written;
+    private boolean closed;
+
+    /**
+     * Creates the archive file, replacing any existing file.
+     *
+     * @param archiveFile The ZIP file to write.
+     * @throws IOException If the file cannot be created.
+     */
+    public ZipArchiveWriter(File archiveFile) throws IOException {
+        this.archiveFile = archiveFile;
+        this.fileStream = new FileOutputStream(archiveFile);
+        this.channel = fileStream.getChannel();
+        this.out = new BufferedOutputStream(FileUtils.WRITE_LIMIT.throttle(fileStream), 64 * 1024);
+    }
+
+    /**
+     * Starts a new deflated entry. The compressed data is then passed to
+     * {@link #write(byte[], int, int)} and the entry finished with
+     * {@link #closeEntry(long, long)}.
+     *
+     * @param name The entry name.
+     * @param time The modification time of the entry.
+     * @param expectedSize The uncompressed size if known, or -1.
+     * @throws IOException If the header cannot be written.
+     */
+    public void putNextEntry(String name, long time, long expectedSize) throws IOException {
+        if (closed) {
+            throw new IOException("Archive '" + archiveFile + "' is closed");
+        }
+        if (current != null) {
+            throw new ZipException("Entry '" + current.name + "' has not been closed");
+        }
+        Entry entry = newEntry(name, time, expectedSize < 0 || expectedSize >= ZIP64_ENTRY_THRESHOLD);
+        writeLocalHeader(entry);
+        current = entry;
+    }
+
+    private Entry newEntry(String name, long time, boolean zip64Local) {
+        Entry entry = new Entry();
+        entry.name = name;
+        entry.nameBytes = name.getBytes(UTF8);
+        entry.time = time;
+        entry.dosTime = javaToDosTime(time);
+        entry.offset = written;
+        entry.zip64Local = zip64Local;
+        return entry;
+    }
+
+    /**
+     * Writes the local header for an entry, using whatever sizes and CRC it
+     * holds at the time.
+     */
+    private void writeLocalHeader(Entry entry) throws IOException {
+        ByteBuffer header = newBuffer(30 + entry.nameBytes.length + (entry.zip64Local ? 20 : 0));
+        header.putInt(LOCAL_HEADER_SIG);
+        header.putShort((short) (entry.zip64Local ? 45 : 20));
+        header.putShort((short) FLAG_UTF8);
+        header.putShort((short) METHOD_DEFLATED);
+        header.putInt((int) entry.dosTime);
+        header.putInt((int) entry.crc);
+        header.putInt(entry.zip64Local ? (int) ZIP64_MAGIC : (int) entry.compressedSize);
+        header.putInt(entry.zip64Local ? (int) ZIP64_MAGIC : (int) entry.size);
+        header.putShort((short) entry.nameBytes.length);
+        header.putShort((short) (entry.zip64Local ? 20 : 0));
+        header.put(entry.nameBytes);
+        if (entry.zip64Local) {
+            header.putShort((short) ZIP64_EXTRA_ID);
+            header.putShort((short) 16);
+            header.putLong(entry.size);
+            header.putLong(entry.compressedSize);
+        }
+        writeBuffer(header);
+    }
+
+    /**
+     * Appends deflated data to the current entry.
+     *
+     * @param b The buffer holding the data.
+     * @param off The start offset in the buffer.
+     * @param len The number of bytes to write.
+     * @throws IOException If there is no open entry, or the write fails.
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (current == null) {
+            throw new ZipException("No current ZIP entry");
+        }
+        out.write(b, off, len);
+        written += len;
+        current.compressedSize += len;
+    }
+
+    /**
+     * Finishes the current entry, and patches its local header.
+     *
+     * @param crc The CRC-32 of the uncompressed data.
+     * @param size The uncompressed size of the data.
+     * @throws IOException If the header cannot be updated.
+     */
+    public void closeEntry(long crc, long size) throws IOException {
+        if (current == null) {
+            throw new ZipException("No current ZIP entry");
+        }
+        Entry entry = current;
+        current = null;
+        entry.crc = crc;
+        entry.size = size;
+        if (!entry.zip64Local && (size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC)) {
+            throw new ZipException("Entry '" + entry.name + "' is larger than expected");
+        }
+
+        // Everything before this point has to be on disk before patching.
+        out.flush();
+        ByteBuffer patch = newBuffer(12);
+        patch.putInt((int) crc);
+        patch.putInt(entry.zip64Local ? (int) ZIP64_MAGIC : (int) entry.compressedSize);
+        patch.putInt(entry.zip64Local ? (int) ZIP64_MAGIC : (int) size);
+        writeAt(patch, entry.offset + 14);
+        if (entry.zip64Local) {
+            ByteBuffer extra = newBuffer(16);
+            extra.putLong(size);
+            extra.putLong(entry.compressedSize);
+            writeAt(extra, entry.offset + 30 + entry.nameBytes.length + 4);
+        }
+        entries.add(entry);
+        countEntry(entry);
+    }
+
+    /**
+     * Writes a complete entry from one buffer of deflated data. As everything
+     * is known up front, the header is written once and never patched.
+     *
+     * @param name The entry name.
+     * @param time The modification time of the entry.
+     * @param data The deflated data.
+     * @param len The number of bytes of data in the buffer.
+     * @param crc The CRC-32 of the uncompressed data.
+     * @param size The uncompressed size of the data.
+     * @throws IOException If the entry cannot be written.
+     */
+    public void writeEntry(String name, long time, byte[] data, int len, long crc, long size) throws IOException {
+        if (closed) {
+            throw new IOException("Archive '" + archiveFile + "' is closed");
+        }
+        if (current != null) {
+            throw new ZipException("Entry '" + current.name + "' has not been closed");
+        }
+        Entry entry = newEntry(name, time, size >= ZIP64_MAGIC || len >= ZIP64_MAGIC);
+        entry.crc = crc;
+        entry.size = size;
+        entry.compressedSize = len;
+        writeLocalHeader(entry);
+        out.write(data, 0, len);
+        written += len;
+        entries.add(entry);
+        countEntry(entry);
+    }
+
+    /**
+     * Adds a finished entry to the backup's progress, and records it.
+     */
+    private static void countEntry(Entry entry) {
+        FileUtils.PROGRESS.read(entry.size);
+        FileUtils.PROGRESS.written(entry.compressedSize);
+        FileUtils.PROGRESS.compressed(entry.size, entry.compressedSize);
+        FileUtils.PROGRESS.fileDone();
+        BackupEvents.archiveEntry(entry.name, entry.size, entry.compressedSize);
+    }
+
+    /**
+     * Gets the entries that have been written so far.
+     *
+     * @return The entries, in the order they were written.
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Gets the number of bytes written to the archive so far.
+     *
+     * @return The archive size in bytes.
+     */
+    public long getBytesWritten() {
+        return written;
+    }
+
+    /**
+     * Writes the central directory and closes the archive.
+     *
+     * @throws IOException If the directory cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (current != null) {
+                throw new ZipException("Entry '" + current.name + "' has not been closed");
+            }
+            writeCentralDirectory();
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long centralOffset = written;
+        for (Entry entry : entries) {
+            boolean bigSize = entry.size >= ZIP64_MAGIC;
+            boolean bigCompressed = entry.compressedSize >= ZIP64_MAGIC;
+            boolean bigOffset = entry.offset >= ZIP64_MAGIC;
+            int extraLength = (bigSize ? 8 : 0) + (bigCompressed ? 8 : 0) + (bigOffset ? 8 : 0);
+            boolean zip64 = extraLength > 0;
+
+            ByteBuffer header = newBuffer(46 + entry.nameBytes.length + (zip64 ? 4 + extraLength : 0));
+            header.putInt(CENTRAL_HEADER_SIG);
+            header.putShort((short) 45);
+            header.putShort((short) (zip64 || entry.zip64Local ? 45 : 20));
+            header.putShort((short) FLAG_UTF8);
+            header.putShort((short) METHOD_DEFLATED);
+            header.putInt((int) entry.dosTime);
+            header.putInt((int) entry.crc);
+            header.putInt(bigCompressed ? (int) ZIP64_MAGIC : (int) entry.compressedSize);
+            header.putInt(bigSize ? (int) ZIP64_MAGIC : (int) entry.size);
+            header.putShort((short) entry.nameBytes.length);
+            header.putShort((short) (zip64 ? 4 + extraLength : 0));
+            header.putShort((short) 0); // comment length
+            header.putShort((short) 0); // disk number
+            header.putShort((short) 0); // internal attributes
+            header.putInt(0); // external attributes
+            header.putInt(bigOffset ? (int) ZIP64_MAGIC : (int) entry.offset);
+            header.put(entry.nameBytes);
+            if (zip64) {
+                header.putShort((short) ZIP64_EXTRA_ID);
+                header.putShort((short) extraLength);
+                if (bigSize) {
+                    header.putLong(entry.size);
+                }
+                if (bigCompressed) {
+                    header.putLong(entry.compressedSize);
+                }
+                if (bigOffset) {
+                    header.putLong(entry.offset);
+                }
+            }
+            writeBuffer(header);
+        }
+        long centralSize = written - centralOffset;
+        int count = entries.size();
+
+        if (count >= 0xFFFF || centralOffset >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC) {
+            long zip64EndOffset = written;
+            ByteBuffer zip64End = newBuffer(56 + 20);
+            zip64End.putInt(ZIP64_END_SIG);
+            zip64End.putLong(44);
+            zip64End.putShort((short) 45);
+            zip64End.putShort((short) 45);
+            zip64End.putInt(0);
+            zip64End.putInt(0);
+            zip64End.putLong(count);
+            zip64End.putLong(count);
+            zip64End.putLong(centralSize);
+            zip64End.putLong(centralOffset);
+            zip64End.putInt(ZIP64_LOCATOR_SIG);
+            zip64End.putInt(0);
+            zip64End.putLong(zip64EndOffset);
+            zip64End.putInt(1);
+            writeBuffer(zip64End);
+        }
+
+        ByteBuffer end = newBuffer(22);
+        end.putInt(END_SIG);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) Math.min(count, 0xFFFF));
+        end.putShort((short) Math.min(count, 0xFFFF));
+        end.putInt((int) Math.min(centralSize, ZIP64_MAGIC));
+        end.putInt((int) Math.min(centralOffset, ZIP64_MAGIC));
+        end.putShort((short) 0);
+        writeBuffer(end);
+    }
+
+    private ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void writeBuffer(ByteBuffer buffer) throws IOException {
+        out.write(buffer.array(), 0, buffer.position());
+        written += buffer.position();
+    }
+
+    private void writeAt(ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Converts a Java time to the MS-DOS date and time used by ZIP headers.
+     *
+     * @param time The time in milliseconds.
+     * @return The packed DOS time.
+     */
+    private static long javaToDosTime(long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (cal.get(Calendar.MONTH) + 1) << 21
+                | cal.get(Calendar.DAY_OF_MONTH) << 16 | cal.get(Calendar.HOUR_OF_DAY) << 11
+                | cal.get(Calendar.MINUTE) << 5 | cal.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * The details of a written entry, as needed for its central directory
+     * record.
+     */
+    public static class Entry {
+
+        private String name;
+        private byte[] nameBytes;
+        private long time;
+        private long dosTime;
+        private long offset;
+        private long crc;
+        private long size;
+        private long compressedSize;
+        private boolean zip64Local;
+
+        public String getName() {
+            return name;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+    }
+}
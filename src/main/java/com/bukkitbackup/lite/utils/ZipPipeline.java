@@ -0,0 +1,154 @@
+package com.bukkitbackup.lite.utils;
+
+import com.bukkitbackup.lite.utils.ParallelDeflater.DeflatedFile;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Feeds files to a ZipArchiveWriter through the deflater's worker pool.
+ *
+ * Small files are read and deflated on the pool, while the thread adding them
+ * is the only one that writes to the archive, so entries always land in the
+ * order they were added. The memory held for queued files is capped by a
+ * byte budget, which counts both a file's data and the buffer it is deflated
+ * into; when it runs out, the oldest entries are written out before more are
+ * read. Large files bypass the queue and use the deflater's block compression
+ * instead.
+ */
+public class ZipPipeline {
+
+    /**
+     * The default amount of memory held for queued files, 64 MB.
+     */
+    public static final long DEFAULT_BUDGET = 64 * FileUtils.ONE_MB;
+
+    private final ZipArchiveWriter zip;
+    private final ParallelDeflater deflater;
+    private final Semaphore budget;
+    private final int budgetKB;
+    private final ArrayDeque<PendingFile> pending = new ArrayDeque<PendingFile>();
+
+    /**
+     * Creates a pipeline writing to the given archive.
+     *
+     * @param zip The archive to write to.
+     * @param deflater The deflater to compress files with.
+     * @param budgetBytes The most memory to hold for queued files at once.
+     */
+    public ZipPipeline(ZipArchiveWriter zip, ParallelDeflater deflater, long budgetBytes) {
+        this.zip = zip;
+        this.deflater = deflater;
+        this.budgetKB = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / FileUtils.ONE_KB));
+        this.budget = new Semaphore(budgetKB);
+    }
+
+    /**
+     * Adds a file to the archive. The entry may be written later, but always
+     * before any file added after it.
+     *
+     * @param file The file to add.
+     * @param entryName The name of the entry in the archive.
+     * @throws IOException If an earlier entry or this one fails.
+     */
+    public void addFile(File file, String entryName) throws IOException {
+        addFile(file, entryName, Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+    }
+
+    /**
+     * Adds a file to the archive, using attributes already read for it.
+     *
+     * @param file The file to add.
+     * @param entryName The name of the entry in the archive.
+     * @param attrs The file's attributes.
+     * @throws IOException If an earlier entry or this one fails.
+     */
+    public void addFile(File file, String entryName, BasicFileAttributes attrs) throws IOException {
+        long length = attrs.size();
+        long time = attrs.lastModifiedTime().toMillis();
+        if (!deflater.isParallel() || length >= ParallelDeflater.PARALLEL_THRESHOLD) {
+            flush();
+            deflater.deflateFile(file, zip, entryName, length, time);
+            return;
+        }
+
+        // A file holds its data and its deflated copy until written, and costs at
+        // least 1 KB, so lots of empty files are bounded too.
+        long heldBytes = length + ParallelDeflater.getDeflatedCapacity(length);
+        int permits = (int) Math.min(budgetKB, heldBytes / FileUtils.ONE_KB + 1);
+        while (!budget.tryAcquire(permits)) {
+            writeNext();
+        }
+        pending.add(new PendingFile(deflater.deflateAsync(file, entryName, length, time), permits));
+
+        // Write out anything that is already finished.
+        while (!pending.isEmpty() && pending.peek().future.isDone()) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Writes all queued entries to the archive.
+     *
+     * @throws IOException If any of them fail.
+     */
+    public void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Drops anything still queued, after a failure.
+     */
+    public void abort() {
+        for (PendingFile pendingFile : pending) {
+            pendingFile.future.cancel(true);
+            budget.release(pendingFile.permits);
+        }
+        pending.clear();
+    }
+
+    /**
+     * Waits for the oldest queued entry and writes it.
+     */
+    private void writeNext() throws IOException {
+        PendingFile next = pending.poll();
+        if (next == null) {
+            throw new IllegalStateException("Byte budget exhausted with nothing queued");
+        }
+        try {
+            next.future.get().writeTo(zip);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException) ee.getCause();
+            }
+            throw new IOException("Failed to compress file", ee.getCause());
+        } finally {
+            budget.release(next.permits);
+        }
+    }
+
+    /**
+     * A file on the pool, and the share of the budget it holds.
+     */
+    private static class PendingFile {
+
+        final Future<DeflatedFile> future;
+        final int permits;
+
+        PendingFile(Future<DeflatedFile> future, int permits) {
+            this.future = future;
+            this.permits = permits;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.bukkitbackup.lite.utils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.nio.file.attribute.BasicFileAttributes;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Records backups as Flight Recorder events. Built for Java 11, as jdk.jfr
+ * is not in the Java 8 API, and only loaded by {@link BackupEvents} on JVMs
+ * that have it.
+ *
+ * Events are left out of recordings that have them turned off before any
+ * counting is done, and none carry stack traces, so they are cheap enough
+ * for a recording that is always on.
+ */
+final class JfrRecorder extends BackupEvents {
+
+    private static final String CATEGORY = "BackupLite";
+
+    @Override
+    Span beginWorldSave(String commands) {
+        final WorldSaveEvent event = new WorldSaveEvent();
+        if (!event.isEnabled()) {
+            return super.beginWorldSave(commands);
+        }
+        event.commands = commands;
+        return new EventSpan(event) {
+            @Override
+            void setCounts(long count, long bytes) {
+            }
+        };
+    }
+
+    @Override
+    Span beginWorldCopy(String world) {
+        final WorldCopyEvent event = new WorldCopyEvent();
+        if (!event.isEnabled()) {
+            return super.beginWorldCopy(world);
+        }
+        event.world = world;
+        return new EventSpan(event) {
+            @Override
+            void setCounts(long count, long bytes) {
+                event.files = count;
+                event.bytes = bytes;
+            }
+        };
+    }
+
+    @Override
+    Span beginPluginCopy() {
+        final PluginCopyEvent event = new PluginCopyEvent();
+        if (!event.isEnabled()) {
+            return super.beginPluginCopy();
+        }
+        return new EventSpan(event) {
+            @Override
+            void setCounts(long count, long bytes) {
+                event.files = count;
+                event.bytes = bytes;
+            }
+        };
+    }
+
+    @Override
+    Span beginArchive(String target) {
+        final ArchiveEvent event = new ArchiveEvent();
+        if (!event.isEnabled()) {
+            return super.beginArchive(target);
+        }
+        event.target = target;
+        final BackupProgress progress = FileUtils.PROGRESS;
+        final long files = progress.getFilesDone();
+        final long bytesRead = progress.getBytesRead();
+        final long bytesWritten = progress.getBytesWritten();
+        return new EventSpan(event) {
+            @Override
+            void setCounts(long count, long bytes) {
+                event.files = progress.getFilesDone() - files;
+                event.bytesRead = progress.getBytesRead() - bytesRead;
+                event.bytesWritten = progress.getBytesWritten() - bytesWritten;
+            }
+        };
+    }
+
+    @Override
+    Span beginRetention() {
+        final RetentionEvent event = new RetentionEvent();
+        if (!event.isEnabled()) {
+            return super.beginRetention();
+        }
+        return new EventSpan(event) {
+            @Override
+            void setCounts(long count, long bytes) {
+                event.backups = count;
+                event.bytes = bytes;
+            }
+        };
+    }
+
+    @Override
+    Span beginDelete(File file) {
+        final DeleteEvent event = new DeleteEvent();
+        if (!event.isEnabled()) {
+            return super.beginDelete(file);
+        }
+        event.path = file.getPath();
+        return new EventSpan(event) {
+            @Override
+            void setCounts(long count, long bytes) {
+                event.files = count;
+                event.bytes = bytes;
+            }
+        };
+    }
+
+    @Override
+    void recordArchiveEntry(String name, long size, long compressedSize) {
+        ArchiveEntryEvent event = new ArchiveEntryEvent();
+        if (event.shouldCommit()) {
+            event.name = name;
+            event.size = size;
+            event.compressedSize = compressedSize;
+            event.commit();
+        }
+    }
+
+    /**
+     * A span that times an event, and sets its counts when it ends. Spans
+     * are used by one thread at a time.
+     */
+    private abstract static class EventSpan extends Span {
+
+        private final Event event;
+        private long count;
+        private long bytes;
+
+        EventSpan(Event event) {
+            this.event = event;
+            event.begin();
+        }
+
+        @Override
+        public FileFilter count(final FileFilter filter) {
+            return new FileTreeWalker.AttributeFilter() {
+
+                @Override
+                public boolean accept(File file) {
+                    if (filter != null && !filter.accept(file)) {
+                        return false;
+                    }
+                    if (file.isFile()) {
+                        add(1, file.length());
+                    }
+                    return true;
+                }
+
+                @Override
+                public boolean accept(File file, BasicFileAttributes attrs) {
+                    if (filter instanceof FileTreeWalker.AttributeFilter) {
+                        if (!((FileTreeWalker.AttributeFilter) filter).accept(file, attrs)) {
+                            return false;
+                        }
+                    } else if (filter != null && !filter.accept(file)) {
+                        return false;
+                    }
+                    if (!attrs.isDirectory()) {
+                        add(1, attrs.size());
+                    }
+                    return true;
+                }
+            };
+        }
+
+        @Override
+        public void add(long count, long bytes) {
+            this.count += count;
+            this.bytes += bytes;
+        }
+
+        @Override
+        public void end() {
+            event.end();
+            if (event.shouldCommit()) {
+                setCounts(count, bytes);
+                event.commit();
+            }
+        }
+
+        abstract void setCounts(long count, long bytes);
+    }
+
+    @Name("com.bukkitbackup.lite.WorldSave")
+    @Label("World Save")
+    @Description("Save commands sent to the server around a backup, such as the save-all before it.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class WorldSaveEvent extends Event {
+
+        @Label("Commands")
+        String commands;
+    }
+
+    @Name("com.bukkitbackup.lite.WorldCopy")
+    @Label("World Copy")
+    @Description("A world copied into the temp folder, or straight into the archive.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class WorldCopyEvent extends Event {
+
+        @Label("World")
+        String world;
+        @Label("Files")
+        long files;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.bukkitbackup.lite.PluginCopy")
+    @Label("Plugin Copy")
+    @Description("The plugins folder copied into the temp folder, or straight into the archive.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class PluginCopyEvent extends Event {
+
+        @Label("Files")
+        long files;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.bukkitbackup.lite.Archive")
+    @Label("Archive")
+    @Description("A backup written into a ZIP file or the chunk store.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class ArchiveEvent extends Event {
+
+        @Label("Target")
+        String target;
+        @Label("Files")
+        long files;
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+    }
+
+    @Name("com.bukkitbackup.lite.ArchiveEntry")
+    @Label("Archive Entry")
+    @Description("A file written into a ZIP backup.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class ArchiveEntryEvent extends Event {
+
+        @Label("Name")
+        String name;
+        @Label("Size")
+        @DataAmount
+        long size;
+        @Label("Compressed Size")
+        @DataAmount
+        long compressedSize;
+    }
+
+    @Name("com.bukkitbackup.lite.Retention")
+    @Label("Retention")
+    @Description("Old backups removed to keep within maxbackups, the retention policy and the size quota.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class RetentionEvent extends Event {
+
+        @Label("Backups")
+        long backups;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.bukkitbackup.lite.Delete")
+    @Label("Delete")
+    @Description("A folder deleted in the background, such as the temp folder or an old backup.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class DeleteEvent extends Event {
+
+        @Label("Path")
+        String path;
+        @Label("Files")
+        long files;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+}